@@ -0,0 +1,311 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Append-only journal of the conversations started and ended, so the conversations survive a restart of the node. The
+ * journal is a series of generations, each a memory-mapped file of a fixed size; an append copies the record into the
+ * mapped file and nothing else, the operating system writes the pages back. The records therefore survive the crash of
+ * the process, but not of the machine, unless they were forced to disk since.
+ *
+ * A record is a type byte, the length and the UTF-8 bytes of the client id and, for a start, the time the conversation
+ * started. The type byte is written last, so a record torn by a crash is never read: a zero type ends the generation.
+ *
+ * Compaction rotates to a new generation, then writes the conversations alive at that moment into a snapshot stating
+ * the first generation to replay on top of it; the generations before are deleted. Replaying is idempotent, so a
+ * conversation started or ended while the snapshot is being written may appear in both.
+ */
+public class ConversationJournal {
+	private static final Logger LOG = LoggerFactory.getLogger( ConversationJournal.class );
+	private static final Pattern GENERATION_PATTERN = Pattern.compile( "conversations-(\\d+)\\.journal" );
+	private static final String SNAPSHOT_FILE = "conversations.snapshot";
+	private static final int SNAPSHOT_MAGIC = 0x434a5331;
+	private static final byte START = 1;
+	private static final byte END = 2;
+
+	private final File directory;
+	private final int segmentBytes;
+	private MappedByteBuffer segment;
+	private long generation;
+	private long appends;
+
+	public ConversationJournal( File directory, int segmentBytes ) {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+	}
+
+	/*
+	 * Replays the snapshot and the generations after it, and opens a new generation for the appends. Returns the
+	 * conversations alive, by client id, with the time they started, in the order they started.
+	 */
+	public synchronized Map<String, Long> load() throws IOException {
+		Map<String, Long> retval = new LinkedHashMap<>( );
+
+		if ( !directory.isDirectory( ) && !directory.mkdirs( ) ) {
+			throw new IOException( String.format( "could not create the journal directory [%s]", directory ) );
+		}
+
+		long firstGeneration = readSnapshot( retval );
+		TreeMap<Long, File> generations = listGenerations( );
+
+		for ( Entry<Long, File> entry : generations.entrySet( ) ) {
+			if ( entry.getKey( ) < firstGeneration ) {
+				delete( entry.getValue( ) );
+			} else {
+				replay( entry.getValue( ), retval );
+			}
+		}
+
+		long lastGeneration = generations.isEmpty( ) ? 0 : generations.lastKey( );
+
+		open( Math.max( lastGeneration, firstGeneration - 1 ) + 1 );
+
+		return retval;
+	}
+
+	public synchronized void started( String clientId, long startedAt ) {
+		append( START, clientId, startedAt );
+	}
+
+	public synchronized void ended( String clientId ) {
+		append( END, clientId, 0 );
+	}
+
+	/*
+	 * records appended since the journal was loaded
+	 */
+	public synchronized long getAppends() {
+		return appends;
+	}
+
+	/*
+	 * Starts a new generation and returns it; a snapshot of the conversations taken from now on may be written with it.
+	 */
+	public synchronized long rotate() throws IOException {
+		open( generation + 1 );
+
+		return generation;
+	}
+
+	/*
+	 * Writes the snapshot of the conversations alive, taken after `rotate' returned the given generation, and deletes
+	 * the generations it covers. The snapshot is written next to the journal and moved over the previous one.
+	 */
+	public void writeSnapshot( long firstGeneration, Map<String, Long> conversations ) throws IOException {
+		File temporary = new File( directory, SNAPSHOT_FILE + ".tmp" );
+
+		try ( FileOutputStream fileStream = new FileOutputStream( temporary );
+				DataOutputStream output = new DataOutputStream( new BufferedOutputStream( fileStream, 65536 ) ) ) {
+			output.writeInt( SNAPSHOT_MAGIC );
+			output.writeLong( firstGeneration );
+			output.writeInt( conversations.size( ) );
+
+			for ( Entry<String, Long> entry : conversations.entrySet( ) ) {
+				output.writeUTF( entry.getKey( ) );
+				output.writeLong( entry.getValue( ) );
+			}
+
+			output.flush( );
+			fileStream.getFD( ).sync( );
+		}
+
+		Files.move( temporary.toPath( ), new File( directory, SNAPSHOT_FILE ).toPath( ), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE );
+
+		for ( Entry<Long, File> entry : listGenerations( ).headMap( firstGeneration ).entrySet( ) ) {
+			delete( entry.getValue( ) );
+		}
+	}
+
+	/*
+	 * writes the records appended so far to disk
+	 */
+	public synchronized void force() {
+		if ( segment != null ) {
+			segment.force( );
+		}
+	}
+
+	public synchronized void close() {
+		force( );
+
+		// the mapping itself is released when the buffer is collected
+		segment = null;
+	}
+
+	private void append( byte type, String clientId, long startedAt ) {
+		if ( segment == null ) {
+			throw new IllegalStateException( "the conversation journal is not open" );
+		}
+
+		byte[] bytes = clientId.getBytes( StandardCharsets.UTF_8 );
+		int length = 1 + 2 + bytes.length + ( type == START ? 8 : 0 );
+
+		if ( bytes.length > Short.MAX_VALUE ) {
+			throw new IllegalArgumentException( String.format( "client id of [%s] bytes is too long for the journal", bytes.length ) );
+		}
+
+		// the terminating zero type must fit after the record
+		if ( segment.remaining( ) < length + 1 ) {
+			try {
+				open( generation + 1 );
+			} catch ( IOException ex ) {
+				throw new IllegalStateException( String.format( "could not open generation [%s] of the conversation journal", generation + 1 ), ex );
+			}
+		}
+
+		int position = segment.position( );
+
+		segment.position( position + 1 );
+		segment.putShort( ( short ) bytes.length );
+		segment.put( bytes );
+
+		if ( type == START ) {
+			segment.putLong( startedAt );
+		}
+
+		// the type goes last, a torn record stays invisible
+		segment.put( position, type );
+
+		appends++;
+	}
+
+	private void open( long nextGeneration ) throws IOException {
+		File file = new File( directory, String.format( "conversations-%s.journal", nextGeneration ) );
+
+		try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" ) ) {
+			MappedByteBuffer next = randomAccessFile.getChannel( ).map( FileChannel.MapMode.READ_WRITE, 0, segmentBytes );
+
+			if ( segment != null ) {
+				segment.force( );
+			}
+
+			segment = next;
+			generation = nextGeneration;
+		}
+
+		LOG.debug( String.format( "open=journal generation [%s] opened in [%s]", nextGeneration, directory ) );
+	}
+
+	private long readSnapshot( Map<String, Long> conversations ) throws IOException {
+		File file = new File( directory, SNAPSHOT_FILE );
+		long retval = 0;
+
+		if ( file.isFile( ) ) {
+			try ( DataInputStream input = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 65536 ) ) ) {
+				if ( input.readInt( ) != SNAPSHOT_MAGIC ) {
+					throw new IOException( String.format( "[%s] is not a conversation snapshot", file ) );
+				}
+
+				retval = input.readLong( );
+
+				for ( int count = input.readInt( ); count > 0; count-- ) {
+					String clientId = input.readUTF( );
+
+					conversations.put( clientId, input.readLong( ) );
+				}
+			}
+		}
+
+		return retval;
+	}
+
+	private void replay( File file, Map<String, Long> conversations ) throws IOException {
+		try ( RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" ) ) {
+			MappedByteBuffer buffer = randomAccessFile.getChannel( ).map( FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length( ) );
+
+			while ( buffer.remaining( ) > 3 ) {
+				byte type = buffer.get( );
+
+				if ( type != START && type != END ) {
+					break;
+				}
+
+				int length = buffer.getShort( );
+
+				if ( length < 0 || buffer.remaining( ) < length + ( type == START ? 8 : 0 ) ) {
+					LOG.warn( String.format( "replay=[%s] ends with a damaged record", file ) );
+
+					break;
+				}
+
+				byte[] bytes = new byte[length];
+				buffer.get( bytes );
+
+				String clientId = new String( bytes, StandardCharsets.UTF_8 );
+
+				if ( type == START ) {
+					long startedAt = buffer.getLong( );
+
+					if ( !conversations.containsKey( clientId ) ) {
+						conversations.put( clientId, startedAt );
+					}
+				} else {
+					conversations.remove( clientId );
+				}
+			}
+		}
+	}
+
+	private TreeMap<Long, File> listGenerations() {
+		TreeMap<Long, File> retval = new TreeMap<>( );
+		File[] files = directory.listFiles( );
+
+		if ( files != null ) {
+			for ( File file : files ) {
+				Matcher matcher = GENERATION_PATTERN.matcher( file.getName( ) );
+
+				if ( matcher.matches( ) ) {
+					retval.put( Long.parseLong( matcher.group( 1 ) ), file );
+				}
+			}
+		}
+
+		return retval;
+	}
+
+	private void delete( File file ) {
+		if ( !file.delete( ) ) {
+			LOG.warn( String.format( "delete=could not delete [%s]", file ) );
+		}
+	}
+
+}
@@ -16,100 +16,519 @@
 
 package org.horizontaldb.shard;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.horizontaldb.example.model.UserToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
+/*
+ * Keeps the conversations of the clients and the resources they hold. `hasConversation' is asked on every shard bean
+ * invocation and `addResource' on every connection selection, so both are lock-free reads when the conversation exists
+ * and the resource is already registered. Registering a new resource locks its conversation only, so a conversation
+ * torn down meanwhile never ends up holding a resource that is not released.
+ *
+ * Conversations of clients which never log off expire: after the idle timeout without a `hasConversation' or
+ * `addResource', and after the absolute timeout in any case. The conversations are kept on a HashedTimerWheel, a touch
+ * on the hot path only records the coarse time of the wheel, and a background thread advancing the wheel tears the
+ * expired conversations down. A timeout of zero disables that kind of expiry.
+ *
+ * A conversation torn down or expired is detached at once, its resources are released by a bounded pool of release
+ * threads, so closing a tenant pool never holds up the logoff. When the release queue is full the caller releases the
+ * resources itself. Without release threads the resources are released right away, by the caller.
+ *
+ * With a journal directory configured the conversations started and ended are appended to a ConversationJournal, and
+ * the conversations alive are restored from it at startup, so the clients do not have to log on again after a restart.
+ * The resources are not restored, they are registered again as the conversations go on. The journal is compacted in
+ * the background. A conversation is put into or removed from the map and journaled under the same lock, one of
+ * `CLIENT_LOCKS' picked by the client id, so the records of a client are journaled in the order the map changed.
+ */
 @Component
 public class ConversationRegistry {
 	private static final Logger LOG = LoggerFactory.getLogger( ConversationRegistry.class );
+	private static final int EXPIRY_WHEEL_BUCKETS = 512;
+	private static final int CLIENT_LOCKS = 64;
+
+	@Value( "#{dbProperties['conversationRegistry.idleTimeoutMillis']}" )
+	private long idleTimeoutMillis;
+	@Value( "#{dbProperties['conversationRegistry.absoluteTimeoutMillis']}" )
+	private long absoluteTimeoutMillis;
+	@Value( "#{dbProperties['conversationRegistry.expiryTickMillis']}" )
+	private long expiryTickMillis;
+	@Value( "#{dbProperties['conversationRegistry.releaseThreads']}" )
+	private int releaseThreads;
+	@Value( "#{dbProperties['conversationRegistry.releaseQueueSize']}" )
+	private int releaseQueueSize;
+	@Value( "#{dbProperties['conversationRegistry.journalDirectory']}" )
+	private String journalDirectory;
+	@Value( "#{dbProperties['conversationRegistry.journalSegmentBytes']}" )
+	private int journalSegmentBytes;
+	@Value( "#{dbProperties['conversationRegistry.journalCompactionIntervalMillis']}" )
+	private long journalCompactionIntervalMillis;
+
+	private volatile HashedTimerWheel<Conversation> expiryWheel;
+	private ScheduledExecutorService expiryExecutor;
+	private ThreadPoolExecutor releaseExecutor;
+	private ConversationJournal journal;
+	private ScheduledExecutorService journalExecutor;
+	private long compactedAppends = -1;
+	private final AtomicLong releases = new AtomicLong( );
+	private final AtomicLong releaseNanos = new AtomicLong( );
+	private final AtomicLong maxReleaseNanos = new AtomicLong( );
+	private final ConcurrentMap<String, Conversation> conversationMap = new ConcurrentHashMap<>( );
+	private final List<ConversationListener> listeners = new CopyOnWriteArrayList<>( );
+	private final Object[] clientLocks = new Object[CLIENT_LOCKS];
+
+	public ConversationRegistry() {
+		for ( int i = 0; i < clientLocks.length; i++ ) {
+			clientLocks[i] = new Object( );
+		}
+	}
+
+	@PostConstruct
+	public void init() {
+		if ( releaseThreads > 0 ) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory( "conversation-release-" );
+			threadFactory.setDaemon( true );
+
+			releaseExecutor = new ThreadPoolExecutor( releaseThreads, releaseThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>( Math.max(
+					releaseQueueSize, 1 ) ), threadFactory, new ThreadPoolExecutor.CallerRunsPolicy( ) );
+		}
+
+		if ( idleTimeoutMillis > 0 || absoluteTimeoutMillis > 0 ) {
+			long tickMillis = expiryTickMillis > 0 ? expiryTickMillis : 1000;
+
+			expiryWheel = new HashedTimerWheel<>( EXPIRY_WHEEL_BUCKETS, tickMillis, System.currentTimeMillis( ) );
+
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory( "conversation-expiry-" );
+			threadFactory.setDaemon( true );
+
+			expiryExecutor = Executors.newSingleThreadScheduledExecutor( threadFactory );
+			expiryExecutor.scheduleWithFixedDelay( new Runnable( ) {
+
+				@Override
+				public void run() {
+					try {
+						expireConversations( );
+					} catch ( Exception ex ) {
+						LOG.error( "expireConversations=could not expire conversations", ex );
+					}
+				}
+			}, tickMillis, tickMillis, TimeUnit.MILLISECONDS );
+
+			LOG.info( String.format( "init=conversations expire after [%s] ms idle, [%s] ms at most", idleTimeoutMillis, absoluteTimeoutMillis ) );
+		}
+
+		if ( StringUtils.hasText( journalDirectory ) ) {
+			openJournal( );
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if ( expiryExecutor != null ) {
+			expiryExecutor.shutdownNow( );
+		}
+
+		// the releases queued still run
+		if ( releaseExecutor != null ) {
+			releaseExecutor.shutdown( );
+		}
 
-	private final Object lock = new Object( );
-	private Map<String, Boolean> conversationMap = new HashMap<>( );
-	private Map<String, Set<Resource>> conversationResourceMap = new HashMap<>( );
+		if ( journalExecutor != null ) {
+			journalExecutor.shutdownNow( );
+		}
+
+		if ( journal != null ) {
+			journal.close( );
+		}
+	}
+
+	public void addListener( ConversationListener listener ) {
+		listeners.add( listener );
+	}
 
 	public void startConversation( UserToken userToken ) {
-		synchronized ( lock ) {
-			if ( !conversationMap.containsKey( userToken.getUserId( ) ) ) {
-				conversationMap.put( userToken.getUserId( ), true );
+		HashedTimerWheel<Conversation> wheel = expiryWheel;
+		long now = wheel != null ? wheel.getTime( ) : System.currentTimeMillis( );
+		Conversation conversation = new Conversation( userToken.getUserId( ), now, now );
+		boolean started;
 
-				LOG.debug( String.format( "startConversation.%s=conversation started", userToken.getUserId( ) ) );
-			} else {
-				LOG.debug( String.format( "startConversation.%s=conversation already started", userToken.getUserId( ) ) );
+		synchronized ( getClientLock( userToken.getUserId( ) ) ) {
+			started = conversationMap.putIfAbsent( userToken.getUserId( ), conversation ) == null;
+
+			if ( started && journal != null ) {
+				try {
+					journal.started( conversation.getClientId( ), conversation.getStartedAt( ) );
+				} catch ( Exception ex ) {
+					LOG.error( String.format( "startConversation.%s=could not journal the conversation", userToken.getUserId( ) ), ex );
+				}
+			}
+		}
+
+		if ( started ) {
+			if ( wheel != null ) {
+				wheel.schedule( conversation );
+			}
+
+			LOG.debug( String.format( "startConversation.%s=conversation started", userToken.getUserId( ) ) );
+
+			// listeners may register resources with the conversation
+			for ( ConversationListener listener : listeners ) {
+				try {
+					listener.conversationStarted( userToken.getUserId( ) );
+				} catch ( Exception ex ) {
+					LOG.error( String.format( "startConversation.%s=listener [%s] failed", userToken.getUserId( ), listener ), ex );
+				}
 			}
+		} else {
+			LOG.debug( String.format( "startConversation.%s=conversation already started", userToken.getUserId( ) ) );
 		}
 	}
 
 	public boolean hasConversation( String clientId ) {
-		boolean retval = false;
+		Conversation conversation = conversationMap.get( clientId );
 
-		synchronized ( lock ) {
-			retval = conversationMap.containsKey( clientId );
+		if ( conversation != null ) {
+			touch( conversation );
 		}
 
-		return retval;
+		return conversation != null;
 	}
 
 	public void teardownConversation( UserToken userToken ) {
-		synchronized ( lock ) {
-			if ( conversationMap.containsKey( userToken.getUserId( ) ) ) {
-				releaseResources( userToken.getUserId( ) );
+		Conversation conversation;
 
-				conversationMap.remove( userToken.getUserId( ) );
+		synchronized ( getClientLock( userToken.getUserId( ) ) ) {
+			conversation = conversationMap.remove( userToken.getUserId( ) );
 
-				LOG.debug( String.format( "teardownConversation.%s=conversation torn down", userToken.getUserId( ) ) );
-			} else {
-				LOG.error( String.format( "teardownConversation.%s=client is not involved in a valid conversation", userToken.getUserId( ) ) );
+			if ( conversation != null ) {
+				journalEnded( userToken.getUserId( ) );
 			}
 		}
+
+		if ( conversation != null ) {
+			release( conversation );
+
+			LOG.debug( String.format( "teardownConversation.%s=conversation torn down", userToken.getUserId( ) ) );
+		} else {
+			LOG.error( String.format( "teardownConversation.%s=client is not involved in a valid conversation", userToken.getUserId( ) ) );
+		}
 	}
 
 	public void addResource( String clientId, Object resource ) {
 		if ( resource instanceof Resource ) {
-			synchronized ( lock ) {
-				if ( conversationMap.containsKey( clientId ) ) {
-					Set<Resource> resourceSet = conversationResourceMap.get( clientId );
-
-					if ( resourceSet == null ) {
-						resourceSet = new HashSet<>( );
+			Conversation conversation = conversationMap.get( clientId );
 
-						conversationResourceMap.put( clientId, resourceSet );
-					}
+			if ( conversation == null ) {
+				LOG.error( String.format( "addResource.%s=client is not involved in a valid conversation", clientId ) );
+			} else {
+				touch( conversation );
 
-					if ( resourceSet.add( ( Resource ) resource ) ) {
-						LOG.debug( String.format( "addResource.%s=resource registered", clientId ) );
-					} else {
+				if ( conversation.contains( ( Resource ) resource ) ) {
+					// the hot path, nothing is formatted unless it is logged
+					if ( LOG.isDebugEnabled( ) ) {
 						LOG.debug( String.format( "addResource.%s=resource already registered", clientId ) );
 					}
 				} else {
-					LOG.error( String.format( "addResource.%s=client is not involved in a valid conversation", clientId ) );
+					conversation.add( clientId, ( Resource ) resource );
 				}
 			}
 		}
 	}
 
-	private void releaseResources( String clientId ) {
-		if ( conversationResourceMap.containsKey( clientId ) ) {
-			Iterator<Resource> iterator = conversationResourceMap.get( clientId ).iterator( );
+	public int getConversationCount() {
+		return conversationMap.size( );
+	}
 
-			while ( iterator.hasNext( ) ) {
-				Resource resource = iterator.next( );
+	/*
+	 * the conversations torn down whose resources wait for a release thread
+	 */
+	public int getReleaseQueueDepth() {
+		return releaseExecutor != null ? releaseExecutor.getQueue( ).size( ) : 0;
+	}
 
-				try {
-					resource.release( );
-				} catch ( Exception ex ) {
-					LOG.error( String.format( "releaseResource.%s=could not release dataSource [%s]", clientId, resource ), ex );
+	public long getReleaseCount() {
+		return releases.get( );
+	}
+
+	/*
+	 * the time it took to release the resources of a conversation, waiting in the queue excluded
+	 */
+	public double getReleaseMeanMicros() {
+		long count = releases.get( );
+
+		return count > 0 ? releaseNanos.get( ) / 1000d / count : 0;
+	}
+
+	public long getReleaseMaxMicros() {
+		return maxReleaseNanos.get( ) / 1000;
+	}
+
+	/*
+	 * tears down the conversations which expired by now, run by the background thread
+	 */
+	void expireConversations() {
+		HashedTimerWheel<Conversation> wheel = expiryWheel;
+
+		if ( wheel != null ) {
+			for ( Conversation conversation : wheel.advance( System.currentTimeMillis( ) ) ) {
+				boolean expired;
+
+				synchronized ( getClientLock( conversation.getClientId( ) ) ) {
+					// a conversation torn down and started again in the meantime is a new one
+					expired = conversationMap.remove( conversation.getClientId( ), conversation );
+
+					if ( expired ) {
+						journalEnded( conversation.getClientId( ) );
+					}
+				}
+
+				if ( expired ) {
+					release( conversation );
+
+					LOG.info( String.format( "expireConversations.%s=conversation expired", conversation.getClientId( ) ) );
+				}
+			}
+		}
+	}
+
+	/*
+	 * Compacts the journal if anything was appended since the last compaction. The conversations are taken after the
+	 * rotation, the ones started or ended meanwhile are in the new generation as well.
+	 */
+	void compactJournal() throws IOException {
+		long appends = journal.getAppends( );
+
+		if ( appends != compactedAppends ) {
+			long start = System.nanoTime( );
+			long firstGeneration = journal.rotate( );
+			Map<String, Long> snapshot = new LinkedHashMap<>( );
+
+			for ( Conversation conversation : conversationMap.values( ) ) {
+				snapshot.put( conversation.getClientId( ), conversation.getStartedAt( ) );
+			}
+
+			journal.writeSnapshot( firstGeneration, snapshot );
+
+			compactedAppends = appends;
+
+			LOG.debug( String.format( "compactJournal=[%s] conversations written in [%s] ms", snapshot.size( ), ( System.nanoTime( ) - start ) / 1000000 ) );
+		}
+	}
+
+	private void openJournal() {
+		long start = System.nanoTime( );
+		Map<String, Long> restored;
+
+		journal = new ConversationJournal( new File( journalDirectory ), journalSegmentBytes > 0 ? journalSegmentBytes : 1 << 24 );
+
+		try {
+			restored = journal.load( );
+		} catch ( IOException ex ) {
+			throw new IllegalStateException( String.format( "could not load the conversation journal of [%s]", journalDirectory ), ex );
+		}
+
+		HashedTimerWheel<Conversation> wheel = expiryWheel;
+		long now = wheel != null ? wheel.getTime( ) : System.currentTimeMillis( );
+
+		// the listeners are not told, the resources of the conversations are not restored
+		for ( Entry<String, Long> entry : restored.entrySet( ) ) {
+			Conversation conversation = new Conversation( entry.getKey( ), entry.getValue( ), now );
+
+			if ( conversationMap.putIfAbsent( entry.getKey( ), conversation ) == null && wheel != null ) {
+				wheel.schedule( conversation );
+			}
+		}
+
+		LOG.info( String.format( "openJournal=[%s] conversations restored from [%s] in [%s] ms", restored.size( ), journalDirectory,
+				( System.nanoTime( ) - start ) / 1000000 ) );
+
+		if ( journalCompactionIntervalMillis > 0 ) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory( "conversation-journal-" );
+			threadFactory.setDaemon( true );
+
+			journalExecutor = Executors.newSingleThreadScheduledExecutor( threadFactory );
+			journalExecutor.scheduleWithFixedDelay( new Runnable( ) {
+
+				@Override
+				public void run() {
+					try {
+						compactJournal( );
+					} catch ( Exception ex ) {
+						LOG.error( "compactJournal=could not compact the conversation journal", ex );
+					}
+				}
+			}, 0, journalCompactionIntervalMillis, TimeUnit.MILLISECONDS );
+		}
+	}
+
+	private void release( Conversation conversation ) {
+		final String clientId = conversation.getClientId( );
+		final List<Resource> detached = conversation.close( );
+
+		if ( !detached.isEmpty( ) ) {
+			Runnable task = new Runnable( ) {
+
+				@Override
+				public void run() {
+					releaseResources( clientId, detached );
 				}
+			};
+
+			if ( releaseExecutor != null ) {
+				releaseExecutor.execute( task );
+			} else {
+				task.run( );
+			}
+		}
+	}
+
+	private Object getClientLock( String clientId ) {
+		return clientLocks[( clientId.hashCode( ) & Integer.MAX_VALUE ) % clientLocks.length];
+	}
+
+	/*
+	 * called under the lock of the client, after the conversation left the map
+	 */
+	private void journalEnded( String clientId ) {
+		if ( journal != null ) {
+			try {
+				journal.ended( clientId );
+			} catch ( Exception ex ) {
+				LOG.error( String.format( "journalEnded.%s=could not journal the end of the conversation", clientId ), ex );
 			}
+		}
+	}
+
+	private void releaseResources( String clientId, List<Resource> resources ) {
+		long start = System.nanoTime( );
+
+		for ( Resource resource : resources ) {
+			try {
+				resource.release( );
+			} catch ( Exception ex ) {
+				LOG.error( String.format( "releaseResource.%s=could not release dataSource [%s]", clientId, resource ), ex );
+			}
+		}
+
+		long nanos = System.nanoTime( ) - start;
+		long max;
+
+		releases.incrementAndGet( );
+		releaseNanos.addAndGet( nanos );
+
+		do {
+			max = maxReleaseNanos.get( );
+		} while ( nanos > max && !maxReleaseNanos.compareAndSet( max, nanos ) );
+	}
+
+	private void touch( Conversation conversation ) {
+		HashedTimerWheel<Conversation> wheel = expiryWheel;
+
+		if ( wheel != null ) {
+			conversation.touch( wheel.getTime( ) );
+		}
+	}
+
+	private class Conversation implements HashedTimerWheel.Timeout {
+		private final String clientId;
+		private final long startedAt;
+		private volatile long lastAccess;
+		private final Set<Resource> resources = Collections.newSetFromMap( new ConcurrentHashMap<Resource, Boolean>( 4 ) );
+		private boolean closed;
+
+		public Conversation( String clientId, long startedAt, long lastAccess ) {
+			this.clientId = clientId;
+			this.startedAt = startedAt;
+			this.lastAccess = lastAccess;
+		}
+
+		public String getClientId() {
+			return clientId;
+		}
+
+		public long getStartedAt() {
+			return startedAt;
+		}
+
+		/*
+		 * the coarse time only changes once a tick, so most touches are a read
+		 */
+		public void touch( long time ) {
+			if ( lastAccess != time ) {
+				lastAccess = time;
+			}
+		}
+
+		@Override
+		public long getDeadline() {
+			long retval = Long.MAX_VALUE;
+
+			if ( idleTimeoutMillis > 0 ) {
+				retval = lastAccess + idleTimeoutMillis;
+			}
+
+			if ( absoluteTimeoutMillis > 0 ) {
+				retval = Math.min( retval, startedAt + absoluteTimeoutMillis );
+			}
+
+			return retval;
+		}
+
+		public boolean contains( Resource resource ) {
+			return resources.contains( resource );
+		}
+
+		public synchronized void add( String clientId, Resource resource ) {
+			if ( closed ) {
+				LOG.error( String.format( "addResource.%s=client is not involved in a valid conversation", clientId ) );
+			} else if ( resources.add( resource ) ) {
+				if ( resource instanceof SharedResource ) {
+					( ( SharedResource ) resource ).acquire( );
+				}
+
+				LOG.debug( String.format( "addResource.%s=resource registered", clientId ) );
+			} else {
+				LOG.debug( String.format( "addResource.%s=resource already registered", clientId ) );
+			}
+		}
+
+		/*
+		 * detaches the resources, a resource added concurrently is either among them or rejected
+		 */
+		public synchronized List<Resource> close() {
+			closed = true;
+
+			List<Resource> retval = new ArrayList<>( resources );
+
+			resources.clear( );
 
-			conversationResourceMap.remove( clientId );
+			return retval;
 		}
 	}
 
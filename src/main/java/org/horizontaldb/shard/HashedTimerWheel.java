@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A hashed timer wheel of timeouts whose deadline may move. A timeout is hashed into the bucket of the tick its deadline
+ * falls into; deadlines more than a round away share the bucket with the nearer ones. Postponing a deadline costs the
+ * owner of the timeout nothing but a field write: when the wheel reaches the bucket it asks the timeout for its current
+ * deadline again and moves it on if the deadline is still ahead.
+ *
+ * The wheel also serves as a coarse clock. `getTime' is the time the wheel was last advanced to, so the timeouts can be
+ * touched on hot paths without reading the system clock.
+ */
+public class HashedTimerWheel<E extends HashedTimerWheel.Timeout> {
+	private final long tickMillis;
+	private final List<ArrayDeque<E>> buckets;
+	private long currentTick;
+	private int size;
+	private volatile long time;
+
+	public HashedTimerWheel( int bucketCount, long tickMillis, long startMillis ) {
+		if ( bucketCount <= 0 || tickMillis <= 0 ) {
+			throw new IllegalArgumentException( String.format( "invalid timer wheel of [%s] buckets of [%s] ms", bucketCount, tickMillis ) );
+		}
+
+		this.tickMillis = tickMillis;
+
+		buckets = new ArrayList<>( bucketCount );
+
+		for ( int i = 0; i < bucketCount; i++ ) {
+			buckets.add( new ArrayDeque<E>( ) );
+		}
+
+		currentTick = startMillis / tickMillis;
+		time = startMillis;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public synchronized void schedule( E timeout ) {
+		add( timeout, currentTick + 1 );
+	}
+
+	/*
+	 * Moves the wheel to the given time and returns the timeouts whose deadline has passed, they are no longer scheduled.
+	 * Each bucket is visited once at most, however long ago the wheel was advanced last.
+	 */
+	public List<E> advance( long nowMillis ) {
+		List<E> retval = new ArrayList<>( );
+
+		synchronized ( this ) {
+			long targetTick = nowMillis / tickMillis;
+
+			time = nowMillis;
+
+			for ( long tick = Math.max( currentTick + 1, targetTick - buckets.size( ) + 1 ); tick <= targetTick; tick++ ) {
+				ArrayDeque<E> bucket = buckets.get( ( int ) ( tick % buckets.size( ) ) );
+				List<E> due = new ArrayList<>( bucket );
+
+				bucket.clear( );
+				size -= due.size( );
+
+				for ( E timeout : due ) {
+					if ( timeout.getDeadline( ) <= nowMillis ) {
+						retval.add( timeout );
+					} else {
+						add( timeout, tick + 1 );
+					}
+				}
+			}
+
+			currentTick = Math.max( currentTick, targetTick );
+		}
+
+		return retval;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void add( E timeout, long earliestTick ) {
+		long tick = Math.max( timeout.getDeadline( ) / tickMillis, earliestTick );
+
+		buckets.get( ( int ) ( tick % buckets.size( ) ) ).add( timeout );
+		size++;
+	}
+
+	public interface Timeout {
+
+		long getDeadline();
+
+	}
+
+}
@@ -16,18 +16,33 @@
 
 package org.horizontaldb.shard;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
  * Configuration for the sharded data source access machinery. The client id will be propagated to the Hibernate
  * framework in case the method is decorated with the Transactional annotation. DataSourceType will be propagated to dao
  * resolvers and can be used for further type refinements. The clientId is immutable, dataSourceType is mutable.
+ *
+ * The shard beans are kept in an array indexed by bean type. Every bean type gets a slot the first time it is seen in
+ * the JVM, so `setBean' and `getBean' are an array access. The array is allocated with the first bean and only grows
+ * when a bean type with a higher slot comes along. `reset' drops the beans but keeps the array, so a context can be
+ * reused for the next request of its client.
  */
 public class ShardContext {
+    private static final Object[] NO_BEANS = new Object[0];
+    private static final AtomicInteger SLOT_COUNT = new AtomicInteger( );
+    private static final ClassValue<Integer> SLOTS = new ClassValue<Integer>( ) {
+
+        @Override
+        protected Integer computeValue( Class<?> type ) {
+            return SLOT_COUNT.getAndIncrement( );
+        }
+    };
+
     private String clientId;
     private DataSourceType dataSourceType;
-    private Map<Class<?>, Object> beans = new HashMap<>( );
+    private Object[] beans = NO_BEANS;
 
     public ShardContext( String clientId ) {
         this( clientId, null );
@@ -48,13 +63,33 @@ public class ShardContext {
 
     @SuppressWarnings( "unchecked" )
     public <T> T getBean( Class<T> beanClass ) {
-        T retval = ( T ) beans.get( beanClass );
+        T retval = null;
+
+        int slot = SLOTS.get( beanClass );
+
+        if ( slot < beans.length ) {
+            retval = ( T ) beans[slot];
+        }
 
         return retval;
     }
 
     public void setBean( Class<?> beanClass, Object bean ) {
-        beans.put( beanClass, bean );
+        int slot = SLOTS.get( beanClass );
+
+        if ( slot >= beans.length ) {
+            // room for the bean types registered meanwhile as well, they are likely to come next
+            beans = Arrays.copyOf( beans, Math.max( slot + 1, SLOT_COUNT.get( ) ) );
+        }
+
+        beans[slot] = bean;
+    }
+
+    /*
+     * removes the beans, for reusing the context in the next request of the same client
+     */
+    public void reset() {
+        Arrays.fill( beans, null );
     }
 
     @Override
@@ -16,12 +16,13 @@
 
 package org.horizontaldb.shard;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 
@@ -31,39 +32,62 @@ import org.horizontaldb.shard.resolver.ShardBeanResolver;
 import org.horizontaldb.util.BeanUtils;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
 
+/*
+ * Resolves the shard beans a method declares into its ShardContext and runs their enrichers around the call. The
+ * ShardBeans of a method never change, so the deduplicated bean types and their resolvers are worked out at the first
+ * call of the method and kept in an InvocationPlan, later calls only run the plan. The plan also remembers the enricher
+ * of each bean, for the class of the bean it was last looked up for.
+ *
+ * The bean arrays handed out by the setup of a method are reused: the teardown clears the array and keeps it for the
+ * next call of the thread needing as many beans, so the array must not be used after its teardown.
+ */
 public abstract class ShardContextEnricher {
+	private static final Object[] NO_BEANS = new Object[0];
+
 	@Inject
 	private ConversationRegistry registry;
 
 	@Inject
 	private BeanUtils beanUtils;
 
-	private Map<Class<?>, ShardBeanResolver> targetResolvers;
-	private Map<Class<?>, ShardBeanEnricher> targetEnrichers;
+	private volatile TypeLookup<ShardBeanResolver> targetResolvers = new TypeLookup<>( null );
+	private volatile TypeLookup<ShardBeanEnricher> targetEnrichers = new TypeLookup<>( null );
+	private volatile ConcurrentMap<Method, InvocationPlan> invocationPlans = new ConcurrentHashMap<>( );
+	// the bean arrays torn down by a thread, indexed by their length
+	private final ThreadLocal<Object[][]> spareBeanArrays = new ThreadLocal<>( );
 
+	/*
+	 * the mappings are copied, setting them again discards the cached lookups and invocation plans
+	 */
 	public void setTargetResolvers( Map<Class<?>, ShardBeanResolver> targetResolvers ) {
-		this.targetResolvers = targetResolvers;
+		this.targetResolvers = new TypeLookup<>( targetResolvers );
+		this.invocationPlans = new ConcurrentHashMap<>( );
 	}
 
 	public void setTargetEnrichers( Map<Class<?>, ShardBeanEnricher> targetEnrichers ) {
-		this.targetEnrichers = targetEnrichers;
+		this.targetEnrichers = new TypeLookup<>( targetEnrichers );
+		this.invocationPlans = new ConcurrentHashMap<>( );
 	}
 
-	protected Collection<Object> doSetup( ShardBeans shardBeans, ShardContext shardContext ) {
-		Collection<Object> resolvedBeans = new LinkedList<>( );
+	protected ConversationRegistry getRegistry() {
+		return registry;
+	}
 
-		Set<ShardBean> resolvedTypes = new HashSet<>( );
+	/*
+	 * The method and the annotation instance are the key of the invocation plan. With proxies the method may be the
+	 * interface method, shared by implementations declaring different beans, the annotation tells them apart.
+	 */
+	protected Object[] doSetup( Method method, ShardBeans shardBeans, ShardContext shardContext ) {
+		InvocationPlan plan = getInvocationPlan( method, shardBeans );
 
-		for ( ShardBean shardBean : shardBeans.value( ) ) {
-			if ( !resolvedTypes.contains( shardBean ) ) {
-				resolvedTypes.add( shardBean );
+		Object[] resolvedBeans = takeBeanArray( plan.beanTypes.length );
 
-				resolvedBeans.add( populateShardContextWithBean( shardBean, shardContext ) );
-			}
+		for ( int i = 0; i < resolvedBeans.length; i++ ) {
+			resolvedBeans[i] = populateShardContextWithBean( plan.beanTypes[i], plan.resolvers[i], shardContext );
 		}
 
-		for ( Object bean : resolvedBeans ) {
-			enricherDoSetup( bean, shardContext );
+		for ( int i = 0; i < resolvedBeans.length; i++ ) {
+			enricherDoSetup( plan, i, resolvedBeans[i], shardContext );
 		}
 
 		return resolvedBeans;
@@ -77,9 +101,13 @@ public abstract class ShardContextEnricher {
 		return resolvedBean;
 	}
 
-	protected void doTearDown( Collection<Object> beans, ShardContext shardContext ) {
-		for ( Object bean : beans ) {
-			doTearDown( bean, shardContext );
+	protected void doTearDown( Object[] beans, ShardContext shardContext ) {
+		try {
+			for ( Object bean : beans ) {
+				doTearDown( bean, shardContext );
+			}
+		} finally {
+			giveBackBeanArray( beans );
 		}
 	}
 
@@ -88,39 +116,60 @@ public abstract class ShardContextEnricher {
 	}
 
 	private Object populateShardContextWithBean( ShardBean shardBean, ShardContext shardContext ) {
-		Object bean = getResolver( shardBean.value( ) ).getBean( shardBean.value( ), shardContext );
+		return populateShardContextWithBean( shardBean.value( ), getResolver( shardBean.value( ) ), shardContext );
+	}
+
+	private Object populateShardContextWithBean( Class<?> beanType, ShardBeanResolver resolver, ShardContext shardContext ) {
+		Object bean = resolver.getBean( beanType, shardContext );
 
 		if ( bean == null ) {
-			throw new NoSuchBeanDefinitionException( shardBean.value( ).toString( ) );
+			throw new NoSuchBeanDefinitionException( beanType.toString( ) );
 		}
 
 		registerResourceWithConversation( shardContext, bean );
 
-		shardContext.setBean( shardBean.value( ), bean );
+		shardContext.setBean( beanType, bean );
 
 		return bean;
 	}
 
-	private void registerResourceWithConversation( ShardContext shardContext, Object bean ) {
-		registry.addResource( shardContext.getClientId( ), bean );
-	}
-
 	/*
-	 * returns the first matching resolver, based on equality, then assignability
+	 * The plans of a method are chained, one for each annotation instance seen with it, which is a single plan unless
+	 * the method is an interface method. A plan is built without locking, concurrent first calls may build it more
+	 * than once, but only one is kept.
 	 */
-	private ShardBeanResolver getResolver( Class<?> value ) {
-		ShardBeanResolver retval = null;
+	private InvocationPlan getInvocationPlan( Method method, ShardBeans shardBeans ) {
+		ConcurrentMap<Method, InvocationPlan> plans = invocationPlans;
 
-		if ( targetResolvers != null ) {
-			for ( Entry<Class<?>, ShardBeanResolver> entry : targetResolvers.entrySet( ) ) {
-				if ( entry.getKey( ).equals( value ) || entry.getKey( ).isAssignableFrom( value ) ) {
-					retval = entry.getValue( );
+		InvocationPlan retval = null;
 
-					break;
+		while ( retval == null ) {
+			InvocationPlan head = plans.get( method );
+
+			retval = findInvocationPlan( head, shardBeans );
+
+			if ( retval == null ) {
+				InvocationPlan plan = new InvocationPlan( shardBeans, head );
+
+				if ( head == null ? plans.putIfAbsent( method, plan ) == null : plans.replace( method, head, plan ) ) {
+					retval = plan;
 				}
 			}
 		}
 
+		return retval;
+	}
+
+	private void registerResourceWithConversation( ShardContext shardContext, Object bean ) {
+		registry.addResource( shardContext.getClientId( ), bean );
+	}
+
+	/*
+	 * returns the resolver registered for the most specific supertype of the value, see TypeLookup
+	 */
+	private ShardBeanResolver getResolver( Class<?> value ) {
+		ShardBeanResolver retval = targetResolvers.get( value );
+
 		if ( retval == null ) {
 			throw new IllegalStateException( "ShardContextEnricher is not configured for [" + value + "]" );
 		}
@@ -138,6 +187,28 @@ public abstract class ShardContextEnricher {
 		}
 	}
 
+	/*
+	 * the enricher of the bean is taken from the plan as long as the bean class is the one it was looked up for
+	 */
+	private void enricherDoSetup( InvocationPlan plan, int index, Object bean, ShardContext shardContext ) {
+		Object target = beanUtils.unpackDynamicProxy( bean );
+
+		if ( target != null ) {
+			EnricherBinding binding = plan.enrichers[index];
+
+			if ( binding == null || binding.beanClass != target.getClass( ) ) {
+				binding = new EnricherBinding( target.getClass( ), getEnricher( target ) );
+
+				// racing calls may overwrite each other's binding, each of them is correct
+				plan.enrichers[index] = binding;
+			}
+
+			if ( binding.enricher != null ) {
+				binding.enricher.setup( target, shardContext );
+			}
+		}
+	}
+
 	private void enricherDoTearDown( Object bean, ShardContext shardContext ) {
 		Object target = beanUtils.unpackDynamicProxy( bean );
 
@@ -149,23 +220,122 @@ public abstract class ShardContextEnricher {
 	}
 
 	/*
-	 * returns the first matching enricher for a bean, based on the key's assignment compatibility. the return value
-	 * could be null if there is no match
+	 * returns the enricher registered for the most specific supertype of the bean's class. the return value could be
+	 * null if there is no match
 	 */
 	private ShardBeanEnricher getEnricher( Object bean ) {
 		ShardBeanEnricher retval = null;
 
-		if ( targetEnrichers != null ) {
-			for ( Entry<Class<?>, ShardBeanEnricher> entry : targetEnrichers.entrySet( ) ) {
-				if ( entry.getKey( ).isInstance( bean ) ) {
-					retval = entry.getValue( );
+		if ( bean != null ) {
+			retval = targetEnrichers.get( bean.getClass( ) );
+		}
 
-					break;
-				}
+		return retval;
+	}
+
+	private Object[] takeBeanArray( int length ) {
+		Object[] retval = NO_BEANS;
+
+		if ( length > 0 ) {
+			Object[][] spare = spareBeanArrays.get( );
+
+			retval = spare != null && length < spare.length ? spare[length] : null;
+
+			if ( retval != null ) {
+				spare[length] = null;
+			} else {
+				retval = new Object[length];
+			}
+		}
+
+		return retval;
+	}
+
+	private void giveBackBeanArray( Object[] beans ) {
+		if ( beans.length > 0 ) {
+			Object[][] spare = spareBeanArrays.get( );
+
+			if ( spare == null || beans.length >= spare.length ) {
+				spare = spare == null ? new Object[beans.length + 1][] : Arrays.copyOf( spare, beans.length + 1 );
+
+				spareBeanArrays.set( spare );
+			}
+
+			// the beans of the call are not kept alive by the thread
+			Arrays.fill( beans, null );
+
+			spare[beans.length] = beans;
+		}
+	}
+
+	/*
+	 * the plan of the annotation in the chain, compared by identity first, so the annotation is not hashed on
+	 * every call, then by equality, so the chain cannot grow with equal annotation instances
+	 */
+	private InvocationPlan findInvocationPlan( InvocationPlan head, ShardBeans shardBeans ) {
+		InvocationPlan retval = null;
+
+		for ( InvocationPlan plan = head; plan != null && retval == null; plan = plan.next ) {
+			if ( plan.shardBeans == shardBeans ) {
+				retval = plan;
+			}
+		}
+
+		for ( InvocationPlan plan = head; plan != null && retval == null; plan = plan.next ) {
+			if ( plan.shardBeans.equals( shardBeans ) ) {
+				retval = plan;
 			}
 		}
 
 		return retval;
 	}
 
+	/*
+	 * the deduplicated bean types of a ShardBeans annotation, in declaration order, with their resolvers and enrichers
+	 */
+	private class InvocationPlan {
+		private final ShardBeans shardBeans;
+		private final InvocationPlan next;
+		private final Class<?>[] beanTypes;
+		private final ShardBeanResolver[] resolvers;
+		private final EnricherBinding[] enrichers;
+
+		public InvocationPlan( ShardBeans shardBeans, InvocationPlan next ) {
+			this.shardBeans = shardBeans;
+			this.next = next;
+
+			Set<ShardBean> uniqueBeans = new LinkedHashSet<>( );
+
+			for ( ShardBean shardBean : shardBeans.value( ) ) {
+				uniqueBeans.add( shardBean );
+			}
+
+			beanTypes = new Class<?>[uniqueBeans.size( )];
+			resolvers = new ShardBeanResolver[uniqueBeans.size( )];
+			enrichers = new EnricherBinding[uniqueBeans.size( )];
+
+			int i = 0;
+
+			for ( ShardBean shardBean : uniqueBeans ) {
+				beanTypes[i] = shardBean.value( );
+				resolvers[i] = getResolver( shardBean.value( ) );
+
+				i++;
+			}
+		}
+	}
+
+	/*
+	 * the enricher of a bean class, null when there is none, immutable so it can be shared between threads as it is
+	 */
+	private static class EnricherBinding {
+		private final Class<?> beanClass;
+		private final ShardBeanEnricher enricher;
+
+		public EnricherBinding( Class<?> beanClass, ShardBeanEnricher enricher ) {
+			this.beanClass = beanClass;
+			this.enricher = enricher;
+		}
+	}
+
 }
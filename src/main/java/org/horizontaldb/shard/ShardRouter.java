@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/*
+ * Maps tenant ids onto the database servers. Every server is placed onto a hash ring at a number of virtual nodes, and
+ * a tenant lives on the server of the first node following the hash of its id; adding or removing a server therefore
+ * moves only the tenants of the affected arcs, roughly 1/N of them. Tenants can be pinned to a server explicitly, e.g.
+ * while they are migrated, the overrides take precedence over the ring.
+ *
+ * The lookup does not allocate: the ring is an immutable pair of arrays, and a bucket table indexed by the upper bits of
+ * the hash points to the first node of the bucket, so a lookup walks a node or two at most. The ring is rebuilt and
+ * swapped as a whole whenever the servers change.
+ */
+@Component
+public class ShardRouter {
+	private static final Logger LOG = LoggerFactory.getLogger( ShardRouter.class );
+	private static final int BUCKET_BITS = 16;
+
+	@Value( "#{dbProperties['shardRouter.servers']}" )
+	private String configuredServers;
+	@Value( "#{dbProperties['shardRouter.virtualNodes']}" )
+	private int virtualNodes;
+	@Value( "#{dbProperties['shardRouter.overrides']}" )
+	private String configuredOverrides;
+
+	private final ConcurrentMap<String, String> overrides = new ConcurrentHashMap<>( );
+	private volatile Ring ring = new Ring( Collections.<String> emptyList( ), 1 );
+
+	@PostConstruct
+	public void init() {
+		setServers( Arrays.asList( StringUtils.commaDelimitedListToStringArray( StringUtils.trimAllWhitespace( configuredServers ) ) ) );
+
+		if ( StringUtils.hasText( configuredOverrides ) ) {
+			for ( String override : StringUtils.commaDelimitedListToStringArray( StringUtils.trimAllWhitespace( configuredOverrides ) ) ) {
+				String[] tenantAndServer = StringUtils.split( override, "=" );
+
+				if ( tenantAndServer == null ) {
+					throw new IllegalArgumentException( String.format( "invalid shard override [%s], tenant=server is expected", override ) );
+				}
+
+				setOverride( tenantAndServer[0], tenantAndServer[1] );
+			}
+		}
+	}
+
+	public void setVirtualNodes( int virtualNodes ) {
+		this.virtualNodes = virtualNodes;
+	}
+
+	public void setServers( Collection<String> servers ) {
+		ring = new Ring( new ArrayList<>( servers ), Math.max( virtualNodes, 1 ) );
+
+		LOG.info( String.format( "setServers=routing to %s with [%s] virtual nodes each", servers, Math.max( virtualNodes, 1 ) ) );
+	}
+
+	public void addServer( String server ) {
+		List<String> servers = new ArrayList<>( ring.getServers( ) );
+
+		if ( !servers.contains( server ) ) {
+			servers.add( server );
+
+			setServers( servers );
+		}
+	}
+
+	public List<String> getServers() {
+		return ring.getServers( );
+	}
+
+	public void setOverrides( Map<String, String> overrides ) {
+		this.overrides.clear( );
+		this.overrides.putAll( overrides );
+	}
+
+	public void setOverride( String tenantId, String server ) {
+		overrides.put( tenantId, server );
+	}
+
+	public void removeOverride( String tenantId ) {
+		overrides.remove( tenantId );
+	}
+
+	public String getServer( String tenantId ) {
+		String retval = overrides.get( tenantId );
+
+		if ( retval == null ) {
+			retval = ring.getServer( hash( tenantId ) );
+		}
+
+		return retval;
+	}
+
+	/*
+	 * murmur3 style mixing over the characters, so the id does not have to be encoded into bytes first
+	 */
+	static int hash( String value ) {
+		int h = 0x9747b28c;
+
+		for ( int i = 0; i < value.length( ); i++ ) {
+			int k = value.charAt( i ) * 0xcc9e2d51;
+			k = Integer.rotateLeft( k, 15 ) * 0x1b873593;
+
+			h ^= k;
+			h = Integer.rotateLeft( h, 13 ) * 5 + 0xe6546b64;
+		}
+
+		h ^= value.length( );
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
+	private static class Ring {
+		private final List<String> servers;
+		// node positions as unsigned values in ascending order, and the server owning each node
+		private final long[] nodes;
+		private final String[] nodeServers;
+		private final int[] buckets = new int[1 << BUCKET_BITS];
+
+		public Ring( List<String> servers, int virtualNodes ) {
+			this.servers = Collections.unmodifiableList( servers );
+
+			long[] positions = new long[servers.size( ) * virtualNodes];
+
+			for ( int i = 0; i < servers.size( ); i++ ) {
+				for ( int node = 0; node < virtualNodes; node++ ) {
+					// the server index sits in the low bits, so equal positions still sort deterministically
+					positions[i * virtualNodes + node] = ( ( hash( servers.get( i ) + "#" + node ) & 0xffffffffL ) << 16 ) | i;
+				}
+			}
+
+			Arrays.sort( positions );
+
+			nodes = new long[positions.length];
+			nodeServers = new String[positions.length];
+
+			for ( int i = 0; i < positions.length; i++ ) {
+				nodes[i] = positions[i] >>> 16;
+				nodeServers[i] = servers.get( ( int ) ( positions[i] & 0xffff ) );
+			}
+
+			int node = 0;
+
+			for ( int bucket = 0; bucket < buckets.length; bucket++ ) {
+				long bucketStart = ( long ) bucket << ( 32 - BUCKET_BITS );
+
+				while ( node < nodes.length && nodes[node] < bucketStart ) {
+					node++;
+				}
+
+				buckets[bucket] = node;
+			}
+		}
+
+		public List<String> getServers() {
+			return servers;
+		}
+
+		public String getServer( int hash ) {
+			if ( nodes.length == 0 ) {
+				throw new IllegalStateException( "no shard servers are configured" );
+			}
+
+			long position = hash & 0xffffffffL;
+			int node = buckets[( int ) ( position >>> ( 32 - BUCKET_BITS ) )];
+
+			while ( node < nodes.length && nodes[node] < position ) {
+				node++;
+			}
+
+			// past the last node the ring wraps around to the first one
+			return nodeServers[node < nodes.length ? node : 0];
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+/*
+ * A resource which may be held by several conversations at the same time. The ConversationRegistry calls `acquire'
+ * once for every conversation the resource is registered with, and `release' once when that conversation is torn
+ * down, so the resource can tell when it is no longer used by anyone.
+ */
+public interface SharedResource extends Resource {
+
+	void acquire();
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+/*
+ * The data source types understood by the framework itself. A context of the REPLICA type - or of any type named
+ * `replica' - is served by the read replicas of the tenant, when there are any.
+ */
+public enum StandardDataSourceType implements DataSourceType {
+	PRIMARY( "primary" ),
+	REPLICA( "replica" );
+
+	private final String typeName;
+
+	private StandardDataSourceType( String typeName ) {
+		this.typeName = typeName;
+	}
+
+	@Override
+	public String getId() {
+		return name( );
+	}
+
+	@Override
+	public String getTypeName() {
+		return typeName;
+	}
+
+	public static boolean isReplica( DataSourceType dataSourceType ) {
+		return dataSourceType != null && REPLICA.getTypeName( ).equals( dataSourceType.getTypeName( ) );
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Maps a class to the value registered for its most specific supertype (or the class itself). The match is computed once
+ * per looked up class and cached, the mappings are copied on construction, so a lookup is a single map read once warm.
+ *
+ * Among the matching keys the ones which are supertypes of another matching key are dropped. If unrelated keys remain,
+ * e.g. two interfaces of the class, the one closest to the class in its type hierarchy wins, superclasses are visited
+ * before interfaces, and the class name decides a tie. The result never depends on the iteration order of the mappings.
+ */
+final class TypeLookup<V> {
+	private static final Object NO_MATCH = new Object( );
+
+	private final Map<Class<?>, V> mappings;
+	private final ConcurrentMap<Class<?>, Object> cache = new ConcurrentHashMap<>( );
+
+	public TypeLookup( Map<Class<?>, V> mappings ) {
+		this.mappings = mappings == null ? Collections.<Class<?>, V> emptyMap( ) : new LinkedHashMap<>( mappings );
+	}
+
+	/*
+	 * returns null if no key is assignable from the given type
+	 */
+	@SuppressWarnings( "unchecked" )
+	public V get( Class<?> type ) {
+		Object retval = cache.get( type );
+
+		if ( retval == null ) {
+			retval = findMostSpecific( type );
+
+			if ( retval == null ) {
+				retval = NO_MATCH;
+			}
+
+			cache.putIfAbsent( type, retval );
+		}
+
+		return retval == NO_MATCH ? null : ( V ) retval;
+	}
+
+	private V findMostSpecific( Class<?> type ) {
+		List<Class<?>> candidates = new ArrayList<>( );
+
+		for ( Class<?> key : mappings.keySet( ) ) {
+			if ( key.isAssignableFrom( type ) ) {
+				candidates.add( key );
+			}
+		}
+
+		for ( Iterator<Class<?>> it = candidates.iterator( ); it.hasNext( ); ) {
+			Class<?> candidate = it.next( );
+
+			for ( Class<?> other : candidates ) {
+				if ( other != candidate && candidate.isAssignableFrom( other ) ) {
+					it.remove( );
+
+					break;
+				}
+			}
+		}
+
+		V retval = null;
+
+		if ( candidates.size( ) == 1 ) {
+			retval = mappings.get( candidates.get( 0 ) );
+		} else if ( !candidates.isEmpty( ) ) {
+			final Map<Class<?>, Integer> distances = getDistances( type );
+
+			retval = mappings.get( Collections.min( candidates, new Comparator<Class<?>>( ) {
+
+				@Override
+				public int compare( Class<?> c1, Class<?> c2 ) {
+					int retval = distances.get( c1 ).compareTo( distances.get( c2 ) );
+
+					if ( retval == 0 ) {
+						retval = c1.getName( ).compareTo( c2.getName( ) );
+					}
+
+					return retval;
+				}
+			} ) );
+		}
+
+		return retval;
+	}
+
+	/*
+	 * breadth-first walk of the supertypes, superclass first
+	 */
+	private static Map<Class<?>, Integer> getDistances( Class<?> type ) {
+		Map<Class<?>, Integer> retval = new HashMap<>( );
+		Set<Class<?>> visited = new HashSet<>( );
+		Queue<Class<?>> queue = new ArrayDeque<>( );
+
+		retval.put( type, 0 );
+		visited.add( type );
+		queue.add( type );
+
+		while ( !queue.isEmpty( ) ) {
+			Class<?> current = queue.remove( );
+			int distance = retval.get( current ) + 1;
+
+			List<Class<?>> supertypes = new ArrayList<>( );
+
+			if ( current.getSuperclass( ) != null ) {
+				supertypes.add( current.getSuperclass( ) );
+			}
+
+			Collections.addAll( supertypes, current.getInterfaces( ) );
+
+			if ( current.isInterface( ) ) {
+				supertypes.add( Object.class );
+			}
+
+			for ( Class<?> supertype : supertypes ) {
+				if ( visited.add( supertype ) ) {
+					retval.put( supertype, distance );
+					queue.add( supertype );
+				}
+			}
+		}
+
+		return retval;
+	}
+
+}
@@ -16,11 +16,12 @@
 
 package org.horizontaldb.shard.advise;
 
-import java.util.Collection;
+import java.lang.reflect.Method;
 
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
 import org.horizontaldb.shard.ShardContext;
 import org.horizontaldb.shard.ShardContextEnricher;
 import org.horizontaldb.shard.annotation.ShardBean;
@@ -42,7 +43,9 @@ public class ShardContextEnricherAspect extends ShardContextEnricher implements
 
 	@Around( value = "( within( org.horizontaldb..* ) ) && @annotation( shardBeans ) && args(shardContext, ..)", argNames = "shardBeans, shardContext" )
 	public Object populateShardContext( ProceedingJoinPoint pjp, ShardBeans shardBeans, ShardContext shardContext ) throws Throwable {
-		Collection<Object> beans = doSetup( shardBeans, shardContext );
+		Method method = ( ( MethodSignature ) pjp.getSignature( ) ).getMethod( );
+
+		Object[] beans = doSetup( method, shardBeans, shardContext );
 
 		Object proceed = null;
 
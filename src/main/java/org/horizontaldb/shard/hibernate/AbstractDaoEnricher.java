@@ -16,9 +16,8 @@
 
 package org.horizontaldb.shard.hibernate;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
@@ -44,6 +43,12 @@ import org.springframework.stereotype.Component;
  *  same dao type, it is ensured that upon returning from calls the dao instance will hold the same
  *  session as it was holding before, and cleared for the next time upon returning.
  *  
+ *  The stack of each thread is kept with its frames for reuse, and it indexes the frames by dao
+ *  type, so neither setup nor tearDown walks the stack or allocates once the stack is deep enough.
+ *  The stack is not removed when it empties: a thread which ever called an advised method holds
+ *  its stack - sized by the deepest nesting and the number of dao types seen - until the thread
+ *  ends or the enricher is collected. An empty stack references no session or shard context.
+ *  
  *  Additionally, the Hibernate Second Level Cache Statistics are logged upon returning from an
  *  advised method.
  */
@@ -52,8 +57,21 @@ import org.springframework.stereotype.Component;
 public class AbstractDaoEnricher implements ShardBeanEnricher {
     private static final Logger LOG = LoggerFactory.getLogger( AbstractDaoEnricher.class );
 
+    private static final AtomicInteger TYPE_COUNT = new AtomicInteger( );
+
+    /*
+     * dense index of each dao type, the position of the type in the index of the context stacks
+     */
+    private static final ClassValue<Integer> TYPE_SLOTS = new ClassValue<Integer>( ) {
+
+        @Override
+        protected Integer computeValue( Class<?> type ) {
+            return TYPE_COUNT.getAndIncrement( );
+        }
+    };
+
     private HibernateTransactionManager txManager;
-    private ThreadLocal<QueueList<ContextFrame>> contextStack = new ThreadLocal<>( );
+    private ThreadLocal<ContextStack> contextStack = new ThreadLocal<>( );
 
     @Inject
     public AbstractDaoEnricher( HibernateTransactionManager txManager ) {
@@ -62,10 +80,10 @@ public class AbstractDaoEnricher implements ShardBeanEnricher {
 
     @Override
     public void setup( Object bean, ShardContext shardContext ) {
-        pushContextFrame( shardContext, bean );
+        ContextFrame currentFrame = pushContextFrame( shardContext, bean );
 
         AbstractDao abstractDao = ( AbstractDao ) bean;
-        abstractDao.setSession( contextStack( ).peek( ).getSession( ) );
+        abstractDao.setSession( currentFrame.getSession( ) );
     }
 
     @Override
@@ -74,26 +92,26 @@ public class AbstractDaoEnricher implements ShardBeanEnricher {
         abstractDao.setSession( pollContextSession( bean ) );
     }
 
-    private void pushContextFrame( ShardContext shardContext, Object bean ) {
-        ContextFrame currentFrame = contextStack( ).peek( );
+    private ContextFrame pushContextFrame( ShardContext shardContext, Object bean ) {
+        ContextStack stack = contextStack( );
 
-        if ( currentFrame == null || !currentFrame.isSame( shardContext ) ) {
-            currentFrame = getNewFrame( shardContext );
+        ContextFrame currentFrame = stack.peek( );
 
-            contextStack( ).push( currentFrame );
+        if ( currentFrame == null || !currentFrame.isSame( shardContext ) ) {
+            currentFrame = stack.push( shardContext, getCurrentSession( ) );
         } else {
             currentFrame.increaseUsageCount( );
         }
 
-        currentFrame.addType( bean );
+        stack.addType( TYPE_SLOTS.get( bean.getClass( ) ) );
+
+        return currentFrame;
     }
 
-    private ContextFrame getNewFrame( ShardContext shardContext ) {
+    private Session getCurrentSession() {
         SessionFactory sessionFactory = txManager.getSessionFactory( );
 
-        Session session = sessionFactory.getCurrentSession( );
-
-        return new ContextFrame( shardContext, session );
+        return sessionFactory.getCurrentSession( );
     }
 
     /*
@@ -109,23 +127,33 @@ public class AbstractDaoEnricher implements ShardBeanEnricher {
     private Session pollContextSession( Object bean ) {
         Session retval = null;
 
-        ContextFrame currentFrame = contextStack( ).peek( );
+        ContextStack stack = contextStack( );
+
+        ContextFrame currentFrame = stack.peek( );
         currentFrame.decreaseUsageCount( );
 
-        if ( contextStack( ).size( ) > 1 ) {
-            for ( ContextFrame previousFrame : contextStack( ) ) {
-                if ( currentFrame != previousFrame && previousFrame.hasType( bean ) ) {
-                    retval = previousFrame.getSession( );
+        ContextFrame previousFrame = stack.getPreviousFrame( TYPE_SLOTS.get( bean.getClass( ) ) );
 
-                    break;
-                }
-            }
+        if ( previousFrame != null ) {
+            retval = previousFrame.getSession( );
         }
 
         if ( currentFrame.isSpent( ) ) {
             logSlcStats( currentFrame.getSession( ), currentFrame.getShardContext( ).getClientId( ) );
 
-            contextStack( ).poll( );
+            stack.poll( );
+        }
+
+        return retval;
+    }
+
+    private ContextStack contextStack() {
+        ContextStack retval = contextStack.get( );
+
+        if ( retval == null ) {
+            retval = new ContextStack( );
+
+            contextStack.set( retval );
         }
 
         return retval;
@@ -150,70 +178,148 @@ public class AbstractDaoEnricher implements ShardBeanEnricher {
         }
     }
 
-    private QueueList<ContextFrame> contextStack() {
-        QueueList<ContextFrame> retval = contextStack.get( );
+    /*
+     * Array stack of the frames of a thread. For each dao type it keeps the depth of the topmost frame
+     * holding the type and the depth of the next one below, -1 meaning none; each frame saves the
+     * values it overwrote and restores them when it is polled.
+     */
+    private static class ContextStack {
+        private ContextFrame[ ] frames = new ContextFrame[ 8 ];
+        private int size;
+        private int[ ] topDepths = new int[ 0 ];
+        private int[ ] belowDepths = new int[ 0 ];
 
-        if ( retval == null ) {
-            retval = new QueueList<>( );
+        public ContextFrame peek() {
+            ContextFrame retval = null;
 
-            contextStack.set( retval );
+            if ( size > 0 ) {
+                retval = frames[ size - 1 ];
+            }
+
+            return retval;
         }
 
-        return retval;
-    }
+        public ContextFrame push( ShardContext shardContext, Session session ) {
+            if ( size == frames.length ) {
+                frames = Arrays.copyOf( frames, size * 2 );
+            }
 
-    public class QueueList<T> extends ArrayList<T> {
-        private static final long serialVersionUID = 7549664185950822943L;
+            ContextFrame retval = frames[ size ];
 
-        public T peek() {
-            T retval = null;
+            if ( retval == null ) {
+                retval = new ContextFrame( );
 
-            if ( size( ) > 0 ) {
-                retval = get( 0 );
+                frames[ size ] = retval;
             }
 
+            retval.init( shardContext, session );
+
+            size++;
+
             return retval;
         }
 
-        public T poll() {
-            T retval = null;
+        public void poll() {
+            ContextFrame frame = frames[ --size ];
+
+            for ( int i = frame.getTypeCount( ) - 1; i >= 0; i-- ) {
+                int slot = frame.getTypeSlot( i );
 
-            if ( size( ) > 0 ) {
-                retval = remove( 0 );
+                topDepths[ slot ] = belowDepths[ slot ];
+                belowDepths[ slot ] = frame.getSavedBelowDepth( i );
             }
 
-            if ( size( ) == 0 ) {
-                contextStack.set( null );
+            frame.clear( );
+        }
+
+        /*
+         * adds the type to the current frame
+         */
+        public void addType( int slot ) {
+            if ( slot >= topDepths.length ) {
+                int length = Math.max( slot + 1, topDepths.length * 2 );
+
+                topDepths = grow( topDepths, length );
+                belowDepths = grow( belowDepths, length );
             }
 
-            return retval;
+            int depth = size - 1;
+
+            if ( topDepths[ slot ] != depth ) {
+                frames[ depth ].addType( slot, belowDepths[ slot ] );
+
+                belowDepths[ slot ] = topDepths[ slot ];
+                topDepths[ slot ] = depth;
+            }
+        }
+
+        /*
+         * the topmost frame below the current one which holds the type
+         */
+        public ContextFrame getPreviousFrame( int slot ) {
+            int depth = -1;
+
+            if ( slot < topDepths.length ) {
+                depth = topDepths[ slot ] == size - 1 ? belowDepths[ slot ] : topDepths[ slot ];
+            }
+
+            return depth < 0 ? null : frames[ depth ];
         }
 
-        public void push( T element ) {
-            add( 0, element );
+        private int[ ] grow( int[ ] depths, int length ) {
+            int[ ] retval = Arrays.copyOf( depths, length );
+
+            Arrays.fill( retval, depths.length, length, -1 );
+
+            return retval;
         }
     }
 
     /*
-     * Helper class to track Session usage per context
+     * Helper class to track Session usage per context, reused by the stack
      */
-    public class ContextFrame {
+    private static class ContextFrame {
         private int usageCount;
         private Session session;
         private ShardContext shardContext;
-        private Set<Class<?>> beanTypes = new HashSet<>( );
+        private int[ ] typeSlots = new int[ 4 ];
+        private int[ ] savedBelowDepths = new int[ 4 ];
+        private int typeCount;
 
-        public ContextFrame( ShardContext shardContext, Session session ) {
+        public void init( ShardContext shardContext, Session session ) {
             this.shardContext = shardContext;
             this.session = session;
         }
 
-        public void addType( Object bean ) {
-            beanTypes.add( bean.getClass( ) );
+        public void clear() {
+            usageCount = 0;
+            session = null;
+            shardContext = null;
+            typeCount = 0;
+        }
+
+        public void addType( int slot, int savedBelowDepth ) {
+            if ( typeCount == typeSlots.length ) {
+                typeSlots = Arrays.copyOf( typeSlots, typeCount * 2 );
+                savedBelowDepths = Arrays.copyOf( savedBelowDepths, typeCount * 2 );
+            }
+
+            typeSlots[ typeCount ] = slot;
+            savedBelowDepths[ typeCount ] = savedBelowDepth;
+
+            typeCount++;
+        }
+
+        public int getTypeCount() {
+            return typeCount;
+        }
+
+        public int getTypeSlot( int index ) {
+            return typeSlots[ index ];
         }
 
-        public boolean hasType( Object bean ) {
-            return beanTypes.contains( bean.getClass( ) );
+        public int getSavedBelowDepth( int index ) {
+            return savedBelowDepths[ index ];
         }
 
         public void increaseUsageCount() {
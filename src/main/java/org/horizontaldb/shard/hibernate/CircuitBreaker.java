@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Guards the database of one tenant. The breaker opens after `failureThreshold' consecutive failed borrows, and while it
+ * is open, borrows fail without touching the pool. Once `openMillis' passed, a single borrow is let through as a
+ * probe: the breaker closes when it succeeds and opens again when it fails. A threshold of zero never opens.
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openMillis;
+	private final AtomicReference<State> state = new AtomicReference<>( State.CLOSED );
+	private final AtomicInteger consecutiveFailures = new AtomicInteger( );
+	private volatile long openedAt;
+
+	public CircuitBreaker( int failureThreshold, long openMillis ) {
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/*
+	 * false while the breaker is open, or while the probe of a half open breaker is under way
+	 */
+	public boolean allowRequest() {
+		boolean retval = true;
+
+		switch ( state.get( ) ) {
+			case OPEN:
+				retval = System.currentTimeMillis( ) - openedAt >= openMillis && state.compareAndSet( State.OPEN, State.HALF_OPEN );
+				break;
+			case HALF_OPEN:
+				retval = false;
+				break;
+			default:
+				break;
+		}
+
+		return retval;
+	}
+
+	/*
+	 * returns true if the breaker has just closed
+	 */
+	public boolean recordSuccess() {
+		boolean retval = false;
+
+		// nothing is written in the common case, the breaker is shared by all borrowers of the tenant
+		if ( consecutiveFailures.get( ) != 0 || state.get( ) != State.CLOSED ) {
+			consecutiveFailures.set( 0 );
+
+			retval = state.getAndSet( State.CLOSED ) != State.CLOSED;
+		}
+
+		return retval;
+	}
+
+	/*
+	 * returns true if the breaker has just opened
+	 */
+	public boolean recordFailure() {
+		int failures = consecutiveFailures.incrementAndGet( );
+		State current = state.get( );
+		boolean retval = false;
+
+		if ( current == State.HALF_OPEN || ( current == State.CLOSED && failureThreshold > 0 && failures >= failureThreshold ) ) {
+			// set before the state, so nobody sees an open breaker with a stale opening time
+			openedAt = System.currentTimeMillis( );
+
+			retval = state.compareAndSet( current, State.OPEN );
+		}
+
+		return retval;
+	}
+
+	/*
+	 * opens the breaker right away, unless the threshold is zero, returns true if it has just opened
+	 */
+	public boolean trip() {
+		State current = state.get( );
+		boolean retval = false;
+
+		if ( current != State.OPEN && failureThreshold > 0 ) {
+			openedAt = System.currentTimeMillis( );
+
+			retval = state.compareAndSet( current, State.OPEN );
+		}
+
+		return retval;
+	}
+
+	public void reset() {
+		consecutiveFailures.set( 0 );
+		state.set( State.CLOSED );
+	}
+
+	public State getState() {
+		return state.get( );
+	}
+
+	public int getConsecutiveFailures() {
+		return consecutiveFailures.get( );
+	}
+
+	@Override
+	public String toString() {
+		return "CircuitBreaker [state=" + state + ", consecutiveFailures=" + consecutiveFailures + "]";
+	}
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Node-wide limit on the connections lent out by all tenant pools together. Every connection handed to Hibernate takes
+ * a permit, and gives it back when Hibernate releases the connection. A limit of zero means unbounded.
+ *
+ * When the permits run out the callers queue up by tenant, and a permit given back goes to the tenants with callers
+ * waiting in turn: to the first caller of the tenant longest without one, which then moves to the end of the line. A
+ * tenant bursting with many requests therefore gets one permit in each round, and the other tenants are not stuck
+ * behind its burst. Only the tenants with callers waiting have a queue.
+ *
+ * The time callers spent waiting for a permit is collected, it tells whether the budget is too tight for the load.
+ */
+public class ConnectionBudget {
+	private final int maxConnections;
+	private final long maxWaitMillis;
+
+	private final ReentrantLock lock = new ReentrantLock( );
+	// the tenants with callers waiting, in the order they get the next permits
+	private final LinkedHashMap<String, ArrayDeque<Waiter>> queues = new LinkedHashMap<>( );
+	// written under the lock and read without it
+	private volatile int available;
+	private volatile int queueLength;
+
+	private final AtomicLong acquisitions = new AtomicLong( );
+	private final AtomicLong waits = new AtomicLong( );
+	private final AtomicLong timeouts = new AtomicLong( );
+	private final AtomicLong totalWaitNanos = new AtomicLong( );
+	private final AtomicLong maxWaitNanos = new AtomicLong( );
+
+	public ConnectionBudget( int maxConnections, long maxWaitMillis ) {
+		this.maxConnections = maxConnections;
+		this.maxWaitMillis = maxWaitMillis;
+		this.available = maxConnections;
+	}
+
+	public void acquire( String tenantId ) throws SQLException {
+		if ( maxConnections > 0 ) {
+			Waiter waiter = null;
+
+			lock.lock( );
+
+			try {
+				// nobody barges in front of the callers already waiting
+				if ( available > 0 && queueLength == 0 ) {
+					available--;
+				} else {
+					waiter = enqueue( tenantId );
+				}
+			} finally {
+				lock.unlock( );
+			}
+
+			if ( waiter != null ) {
+				long start = System.nanoTime( );
+
+				boolean acquired = await( waiter );
+
+				recordWait( System.nanoTime( ) - start );
+
+				if ( !acquired ) {
+					timeouts.incrementAndGet( );
+
+					throw new SQLTransientConnectionException( String.format(
+							"connection budget of [%s] is exhausted, no connection became available in [%s] ms", maxConnections, maxWaitMillis ) );
+				}
+			}
+
+			acquisitions.incrementAndGet( );
+		}
+	}
+
+	public void release() {
+		if ( maxConnections > 0 ) {
+			lock.lock( );
+
+			try {
+				Waiter waiter = nextWaiter( );
+
+				if ( waiter != null ) {
+					// the permit is passed on, it is never available in between
+					waiter.granted = true;
+					waiter.condition.signal( );
+				} else {
+					available++;
+				}
+			} finally {
+				lock.unlock( );
+			}
+		}
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getAvailableConnections() {
+		return maxConnections > 0 ? available : Integer.MAX_VALUE;
+	}
+
+	public int getQueueLength() {
+		return queueLength;
+	}
+
+	public long getAcquisitions() {
+		return acquisitions.get( );
+	}
+
+	public long getWaits() {
+		return waits.get( );
+	}
+
+	public long getTimeouts() {
+		return timeouts.get( );
+	}
+
+	public long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis( totalWaitNanos.get( ) );
+	}
+
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis( maxWaitNanos.get( ) );
+	}
+
+	/*
+	 * called under the lock
+	 */
+	private Waiter enqueue( String tenantId ) {
+		Waiter retval = new Waiter( tenantId, lock.newCondition( ) );
+		ArrayDeque<Waiter> queue = queues.get( tenantId );
+
+		if ( queue == null ) {
+			queue = new ArrayDeque<>( );
+
+			queues.put( tenantId, queue );
+		}
+
+		queue.addLast( retval );
+		queueLength++;
+
+		return retval;
+	}
+
+	/*
+	 * takes the first caller of the first tenant in line, and moves the tenant to the end of the line, called under the
+	 * lock
+	 */
+	private Waiter nextWaiter() {
+		Waiter retval = null;
+		Iterator<Map.Entry<String, ArrayDeque<Waiter>>> tenants = queues.entrySet( ).iterator( );
+
+		if ( tenants.hasNext( ) ) {
+			Map.Entry<String, ArrayDeque<Waiter>> first = tenants.next( );
+			ArrayDeque<Waiter> queue = first.getValue( );
+
+			retval = queue.pollFirst( );
+			queueLength--;
+
+			tenants.remove( );
+
+			if ( !queue.isEmpty( ) ) {
+				queues.put( first.getKey( ), queue );
+			}
+		}
+
+		return retval;
+	}
+
+	private boolean await( Waiter waiter ) throws SQLException {
+		lock.lock( );
+
+		try {
+			long remainingNanos = TimeUnit.MILLISECONDS.toNanos( maxWaitMillis );
+
+			while ( !waiter.granted && remainingNanos > 0 ) {
+				remainingNanos = waiter.condition.awaitNanos( remainingNanos );
+			}
+
+			if ( !waiter.granted ) {
+				dequeue( waiter );
+			}
+
+			return waiter.granted;
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread( ).interrupt( );
+
+			// a permit granted in the meantime is passed on
+			if ( waiter.granted ) {
+				release( );
+			} else {
+				dequeue( waiter );
+			}
+
+			throw new SQLTransientConnectionException( "interrupted while waiting for the connection budget", ex );
+		} finally {
+			lock.unlock( );
+		}
+	}
+
+	/*
+	 * takes a caller which gave up out of its queue, called under the lock
+	 */
+	private void dequeue( Waiter waiter ) {
+		ArrayDeque<Waiter> queue = queues.get( waiter.tenantId );
+
+		if ( queue != null && queue.remove( waiter ) ) {
+			queueLength--;
+
+			if ( queue.isEmpty( ) ) {
+				queues.remove( waiter.tenantId );
+			}
+		}
+	}
+
+	private void recordWait( long nanos ) {
+		waits.incrementAndGet( );
+		totalWaitNanos.addAndGet( nanos );
+
+		long max;
+
+		do {
+			max = maxWaitNanos.get( );
+		} while ( nanos > max && !maxWaitNanos.compareAndSet( max, nanos ) );
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionBudget [maxConnections=" + maxConnections + ", acquisitions=" + acquisitions + ", waits=" + waits + ", timeouts="
+				+ timeouts + ", totalWaitMillis=" + getTotalWaitMillis( ) + ", maxWaitMillis=" + getMaxWaitMillis( ) + "]";
+	}
+
+	private static class Waiter {
+		private final String tenantId;
+		private final Condition condition;
+		private boolean granted;
+
+		public Waiter( String tenantId, Condition condition ) {
+			this.tenantId = tenantId;
+			this.condition = condition;
+		}
+	}
+
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.horizontaldb.shard.ConversationRegistry;
+import org.horizontaldb.shard.hibernate.CircuitBreaker.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Metrics of the pools of a TenantConnectionProvider, read on demand from the registries holding them. Only the
+ * aggregate borrow latency is recorded here, as the per pool histograms are gone once their pool is closed.
+ *
+ * The metrics can be published in the platform MBeanServer. A bean already registered under the same name - e.g. by a
+ * previous application context in the same JVM - is replaced.
+ */
+public class ConnectionProviderMetrics implements ConnectionProviderMetricsMXBean {
+	private static final Logger LOG = LoggerFactory.getLogger( ConnectionProviderMetrics.class );
+
+	private final Map<String, TenantDataSourceRegistry> registries = new LinkedHashMap<>( );
+	private final ConnectionBudget connectionBudget;
+	private final TenantCircuitBreakers circuitBreakers;
+	private final PoolHealthChecker healthChecker;
+	private final AtomicLong savedBorrowValidations = new AtomicLong( );
+	private final LatencyHistogram borrowLatency = new LatencyHistogram( );
+	private volatile ConversationRegistry conversationRegistry;
+	private ObjectName objectName;
+
+	public ConnectionProviderMetrics( ConnectionBudget connectionBudget, TenantCircuitBreakers circuitBreakers, PoolHealthChecker healthChecker ) {
+		this.connectionBudget = connectionBudget;
+		this.circuitBreakers = circuitBreakers;
+		this.healthChecker = healthChecker;
+	}
+
+	/*
+	 * the name tells the pools of the registry apart from the pools of the other registries of the same tenant
+	 */
+	public void addRegistry( String name, TenantDataSourceRegistry registry ) {
+		registries.put( name, registry );
+	}
+
+	/*
+	 * the conversations holding the pools, and the release of their resources when they are torn down
+	 */
+	public void setConversationRegistry( ConversationRegistry conversationRegistry ) {
+		this.conversationRegistry = conversationRegistry;
+	}
+
+	public void recordBorrow( long waitNanos ) {
+		borrowLatency.record( waitNanos );
+	}
+
+	public void recordSavedBorrowValidation() {
+		savedBorrowValidations.incrementAndGet( );
+	}
+
+	public LatencyHistogram getBorrowLatency() {
+		return borrowLatency;
+	}
+
+	public void register( String name ) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer( );
+
+		try {
+			ObjectName newObjectName = new ObjectName( name );
+
+			if ( server.isRegistered( newObjectName ) ) {
+				LOG.debug( String.format( "register.%s=replacing registered metrics", name ) );
+
+				server.unregisterMBean( newObjectName );
+			}
+
+			server.registerMBean( this, newObjectName );
+
+			objectName = newObjectName;
+		} catch ( JMException ex ) {
+			LOG.warn( String.format( "register.%s=could not register metrics", name ), ex );
+		}
+	}
+
+	public void unregister() {
+		if ( objectName != null ) {
+			try {
+				ManagementFactory.getPlatformMBeanServer( ).unregisterMBean( objectName );
+			} catch ( JMException ex ) {
+				// replaced by, and then unregistered with, a newer provider
+				LOG.debug( String.format( "unregister.%s=metrics are not registered", objectName ), ex );
+			}
+
+			objectName = null;
+		}
+	}
+
+	@Override
+	public int getOpenPools() {
+		int retval = 0;
+
+		for ( TenantDataSourceRegistry registry : registries.values( ) ) {
+			retval += registry.getResources( ).size( );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public long getPoolCreations() {
+		long retval = 0;
+
+		for ( TenantDataSourceRegistry registry : registries.values( ) ) {
+			retval += registry.getStatistics( ).getCreations( );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public long getPoolCloses() {
+		long retval = 0;
+
+		for ( TenantDataSourceRegistry registry : registries.values( ) ) {
+			retval += registry.getStatistics( ).getCloses( );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public double getPoolCreationMeanMillis() {
+		long creations = 0;
+		long totalNanos = 0;
+
+		for ( TenantDataSourceRegistry registry : registries.values( ) ) {
+			creations += registry.getStatistics( ).getCreationLatency( ).getCount( );
+			totalNanos += registry.getStatistics( ).getCreationLatency( ).getTotalNanos( );
+		}
+
+		return creations > 0 ? totalNanos / 1000000d / creations : 0;
+	}
+
+	@Override
+	public long getPoolCreationMaxMillis() {
+		long retval = 0;
+
+		for ( TenantDataSourceRegistry registry : registries.values( ) ) {
+			retval = Math.max( retval, registry.getStatistics( ).getCreationLatency( ).getMaxMicros( ) / 1000 );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public int getActiveConnections() {
+		int retval = 0;
+
+		for ( PoolMetrics pool : getPools( ) ) {
+			retval += pool.getActive( );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public int getIdleConnections() {
+		int retval = 0;
+
+		for ( PoolMetrics pool : getPools( ) ) {
+			retval += pool.getIdle( );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public int getWaitingThreads() {
+		int retval = 0;
+
+		for ( PoolMetrics pool : getPools( ) ) {
+			retval += pool.getWaiting( );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public long getAbandonCount() {
+		long retval = 0;
+
+		for ( PoolMetrics pool : getPools( ) ) {
+			retval += pool.getAbandonCount( );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public long getBorrowCount() {
+		return borrowLatency.getCount( );
+	}
+
+	@Override
+	public double getBorrowMeanMicros() {
+		return borrowLatency.getMeanMicros( );
+	}
+
+	@Override
+	public long getBorrowMedianMicros() {
+		return borrowLatency.getPercentileMicros( 50 );
+	}
+
+	@Override
+	public long getBorrow99thPercentileMicros() {
+		return borrowLatency.getPercentileMicros( 99 );
+	}
+
+	@Override
+	public long getBorrowMaxMicros() {
+		return borrowLatency.getMaxMicros( );
+	}
+
+	@Override
+	public int getBudgetAvailableConnections() {
+		return connectionBudget.getAvailableConnections( );
+	}
+
+	@Override
+	public int getBudgetQueueLength() {
+		return connectionBudget.getQueueLength( );
+	}
+
+	@Override
+	public long getBudgetWaits() {
+		return connectionBudget.getWaits( );
+	}
+
+	@Override
+	public long getBudgetTotalWaitMillis() {
+		return connectionBudget.getTotalWaitMillis( );
+	}
+
+	@Override
+	public long getBudgetMaxWaitMillis() {
+		return connectionBudget.getMaxWaitMillis( );
+	}
+
+	@Override
+	public long getBudgetTimeouts() {
+		return connectionBudget.getTimeouts( );
+	}
+
+	@Override
+	public long getHealthChecks() {
+		return healthChecker.getChecks( );
+	}
+
+	@Override
+	public long getFailedHealthChecks() {
+		return healthChecker.getFailedChecks( );
+	}
+
+	@Override
+	public int getVerifiedPools() {
+		return healthChecker.getVerifiedPools( );
+	}
+
+	@Override
+	public int getDeadPools() {
+		return healthChecker.getDeadPools( );
+	}
+
+	@Override
+	public long getSavedBorrowValidations() {
+		return savedBorrowValidations.get( );
+	}
+
+	@Override
+	public int getConversations() {
+		ConversationRegistry current = conversationRegistry;
+
+		return current != null ? current.getConversationCount( ) : 0;
+	}
+
+	@Override
+	public int getConversationReleaseQueueDepth() {
+		ConversationRegistry current = conversationRegistry;
+
+		return current != null ? current.getReleaseQueueDepth( ) : 0;
+	}
+
+	@Override
+	public double getConversationReleaseMeanMicros() {
+		ConversationRegistry current = conversationRegistry;
+
+		return current != null ? current.getReleaseMeanMicros( ) : 0;
+	}
+
+	@Override
+	public long getConversationReleaseMaxMicros() {
+		ConversationRegistry current = conversationRegistry;
+
+		return current != null ? current.getReleaseMaxMicros( ) : 0;
+	}
+
+	@Override
+	public Map<String, String> getTrippedCircuitBreakers() {
+		Map<String, String> retval = new TreeMap<>( );
+
+		for ( Entry<String, State> entry : circuitBreakers.getTrippedStates( ).entrySet( ) ) {
+			retval.put( entry.getKey( ), entry.getValue( ).name( ) );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public void resetCircuitBreaker( String tenantId ) {
+		circuitBreakers.reset( tenantId );
+	}
+
+	@Override
+	public List<PoolMetrics> getPools() {
+		List<PoolMetrics> retval = new ArrayList<>( );
+
+		for ( Entry<String, TenantDataSourceRegistry> registry : registries.entrySet( ) ) {
+			for ( Entry<String, DataSourceResource> entry : registry.getValue( ).getResources( ).entrySet( ) ) {
+				retval.add( PoolMetrics.of( entry.getKey( ), registry.getKey( ), entry.getValue( ) ) );
+			}
+		}
+
+		return retval;
+	}
+
+	@Override
+	public List<PoolMetrics> getTenantPools( String tenantId ) {
+		List<PoolMetrics> retval = new ArrayList<>( );
+
+		for ( Entry<String, TenantDataSourceRegistry> registry : registries.entrySet( ) ) {
+			DataSourceResource resource = registry.getValue( ).getResources( ).get( tenantId );
+
+			if ( resource != null ) {
+				retval.add( PoolMetrics.of( tenantId, registry.getKey( ), resource ) );
+			}
+		}
+
+		return retval;
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionProviderMetrics [openPools=" + getOpenPools( ) + ", poolCreations=" + getPoolCreations( ) + ", poolCloses="
+				+ getPoolCloses( ) + ", poolCreationMeanMillis=" + getPoolCreationMeanMillis( ) + ", borrowLatency=" + borrowLatency + ", savedBorrowValidations="
+				+ savedBorrowValidations + ", healthChecker=" + healthChecker + "]";
+	}
+
+}
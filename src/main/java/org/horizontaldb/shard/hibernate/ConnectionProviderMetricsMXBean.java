@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * JMX view of the pools of a TenantConnectionProvider: aggregates over all open pools, and a PoolMetrics row per pool.
+ */
+public interface ConnectionProviderMetricsMXBean {
+
+	int getOpenPools();
+
+	long getPoolCreations();
+
+	long getPoolCloses();
+
+	double getPoolCreationMeanMillis();
+
+	long getPoolCreationMaxMillis();
+
+	int getActiveConnections();
+
+	int getIdleConnections();
+
+	int getWaitingThreads();
+
+	long getAbandonCount();
+
+	long getBorrowCount();
+
+	double getBorrowMeanMicros();
+
+	long getBorrowMedianMicros();
+
+	long getBorrow99thPercentileMicros();
+
+	long getBorrowMaxMicros();
+
+	int getBudgetAvailableConnections();
+
+	int getBudgetQueueLength();
+
+	/*
+	 * borrows which had to wait for the connection budget, and the time they waited
+	 */
+	long getBudgetWaits();
+
+	long getBudgetTotalWaitMillis();
+
+	long getBudgetMaxWaitMillis();
+
+	/*
+	 * borrows which gave up waiting for the connection budget
+	 */
+	long getBudgetTimeouts();
+
+	long getHealthChecks();
+
+	long getFailedHealthChecks();
+
+	int getVerifiedPools();
+
+	/*
+	 * pools whose idle connections all failed their last health check
+	 */
+	int getDeadPools();
+
+	/*
+	 * borrows which skipped the validation query because the PoolHealthChecker verified their pool, not counting the
+	 * ones the pool would not have validated anyway
+	 */
+	long getSavedBorrowValidations();
+
+	int getConversations();
+
+	/*
+	 * conversations torn down whose resources wait to be released
+	 */
+	int getConversationReleaseQueueDepth();
+
+	double getConversationReleaseMeanMicros();
+
+	long getConversationReleaseMaxMicros();
+
+	/*
+	 * the tenants whose circuit breaker is open or half open
+	 */
+	Map<String, String> getTrippedCircuitBreakers();
+
+	void resetCircuitBreaker( String tenantId );
+
+	List<PoolMetrics> getPools();
+
+	List<PoolMetrics> getTenantPools( String tenantId );
+
+}
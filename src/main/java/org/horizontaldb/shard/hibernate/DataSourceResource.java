@@ -16,38 +16,253 @@
 
 package org.horizontaldb.shard.hibernate;
 
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.sql.DataSource;
 
-import org.horizontaldb.shard.Resource;
+import org.horizontaldb.shard.SharedResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class DataSourceResource implements Resource {
+/*
+ * Wraps the pool of a tenant. The resource counts the conversations holding it; once the last one releases it, the
+ * ReleaseListener - typically the TenantDataSourceRegistry owning the pool - decides when the pool is closed. Without
+ * a listener the pool is closed right away. Callers about to register the pool or borrow from it mark it in use, an
+ * eviction retires only pools which are neither held nor in use, atomically, so they cannot be taken into use while
+ * they are being closed.
+ *
+ * The borrows of the pool and the time spent waiting for them are counted, the PoolSizeController sizes the pool by
+ * them. Together with the connections abandoned by the pool and the time it took to build the pool they make up the
+ * PoolMetrics of the tenant.
+ *
+ * The PoolHealthChecker may suspend the validation of borrowed connections while it keeps verifying the idle
+ * connections of the pool in the background.
+ *
+ * The pool engine itself is hidden behind a PoolAdapter: Tomcat JDBC pools are adapted by a TomcatPoolAdapter, other
+ * engines implement the adapter next to their DataSource.
+ */
+public class DataSourceResource implements SharedResource {
 	private static final Logger LOG = LoggerFactory.getLogger( DataSourceResource.class );
+	private static final int RETIRED = Integer.MIN_VALUE;
 
-	private org.apache.tomcat.jdbc.pool.DataSource dataSource;
+	private volatile PoolAdapter pool;
+	private volatile ReleaseListener releaseListener;
+	private final AtomicInteger references = new AtomicInteger( );
+	private final AtomicInteger uses = new AtomicInteger( );
+	private final LatencyHistogram borrowLatency = new LatencyHistogram( );
+	private final AtomicLong abandons = new AtomicLong( );
+	private volatile long creationNanos;
+	private volatile boolean borrowValidationSuspended;
 
-	public DataSourceResource( DataSource dataSource ) {
-		if ( !( dataSource instanceof org.apache.tomcat.jdbc.pool.DataSource ) ) {
+	public DataSourceResource( PoolAdapter pool ) {
+		if ( pool == null ) {
 			throw new IllegalArgumentException( );
 		}
 
-		this.dataSource = ( org.apache.tomcat.jdbc.pool.DataSource ) dataSource;
+		this.pool = pool;
+	}
+
+	/*
+	 * the DataSource must be a Tomcat JDBC pool or a PoolAdapter itself
+	 */
+	public DataSourceResource( DataSource dataSource ) {
+		this( adapt( dataSource ) );
 	}
 
 	public DataSource getDataSource() {
-		return dataSource;
+		PoolAdapter current = pool;
+
+		return current != null ? current.getDataSource( ) : null;
+	}
+
+	public void setReleaseListener( ReleaseListener releaseListener ) {
+		this.releaseListener = releaseListener;
+	}
+
+	public int getReferenceCount() {
+		return references.get( );
+	}
+
+	/*
+	 * null when the pool is closed
+	 */
+	public PoolAdapter getPool() {
+		return pool;
+	}
+
+	public void recordBorrow( long waitNanos ) {
+		borrowLatency.record( waitNanos );
+	}
+
+	public long getBorrowCount() {
+		return borrowLatency.getCount( );
+	}
+
+	public long getBorrowWaitNanos() {
+		return borrowLatency.getTotalNanos( );
+	}
+
+	public LatencyHistogram getBorrowLatency() {
+		return borrowLatency;
+	}
+
+	/*
+	 * counts the connections the pool abandons from now on, a Tomcat JDBC pool must be built with JMX enabled for it
+	 */
+	public void watchAbandons() {
+		PoolAdapter current = pool;
+
+		if ( current != null ) {
+			current.setAbandonListener( new PoolAdapter.AbandonListener( ) {
+
+				@Override
+				public void abandoned() {
+					abandons.incrementAndGet( );
+				}
+			} );
+		}
+	}
+
+	/*
+	 * Turns the validation of borrowed connections off, or back on. Only pools configured to validate borrowed
+	 * connections are switched, so resuming never turns on a validation which was not configured.
+	 */
+	public synchronized void setBorrowValidationSuspended( boolean suspended ) {
+		PoolAdapter current = pool;
+
+		if ( current != null && suspended != borrowValidationSuspended && ( !suspended || current.isTestOnBorrow( ) ) ) {
+			current.setTestOnBorrow( !suspended );
+
+			borrowValidationSuspended = suspended;
+		}
+	}
+
+	public boolean isBorrowValidationSuspended() {
+		return borrowValidationSuspended;
+	}
+
+	public long getAbandonCount() {
+		return abandons.get( );
+	}
+
+	public void setCreationNanos( long creationNanos ) {
+		this.creationNanos = creationNanos;
+	}
+
+	public long getCreationNanos() {
+		return creationNanos;
+	}
+
+	/*
+	 * a pool is idle when none of its connections are lent out, so it can be closed without breaking a transaction
+	 */
+	public boolean isIdle() {
+		PoolAdapter current = pool;
+
+		return current == null || current.getActive( ) == 0;
+	}
+
+	/*
+	 * Marks the pool in use by a caller which is about to register it with a conversation or to borrow from it, so it
+	 * cannot be retired meanwhile. Returns false when the pool is retired already, the caller must look it up again.
+	 * Each successful call must be followed by `endUse'.
+	 */
+	public boolean tryUse() {
+		boolean retval = false;
+		int count;
+
+		do {
+			count = uses.get( );
+		} while ( count >= 0 && !( retval = uses.compareAndSet( count, count + 1 ) ) );
+
+		return retval;
+	}
+
+	public void endUse() {
+		uses.decrementAndGet( );
+	}
+
+	/*
+	 * Retires the pool if it is not held by a conversation, not in use and not lending connections. A retired pool is
+	 * never taken into use again, the caller retiring it closes it.
+	 */
+	public boolean retire() {
+		return references.get( ) == 0 && isIdle( ) && uses.compareAndSet( 0, RETIRED );
+	}
+
+	public boolean isRetired() {
+		return uses.get( ) < 0;
+	}
+
+	@Override
+	public void acquire() {
+		references.incrementAndGet( );
 	}
 
 	@Override
 	public void release() {
-		if ( dataSource != null ) {
-			LOG.debug( String.format( "release=releasing dataSource [%s]", dataSource ) );
+		int count;
+
+		do {
+			count = references.get( );
+		} while ( count > 0 && !references.compareAndSet( count, count - 1 ) );
 
-			dataSource.close( true );
+		if ( count == 0 ) {
+			LOG.warn( String.format( "release=unmatched release of unreferenced dataSource [%s]", pool ) );
+		} else if ( count == 1 ) {
+			ReleaseListener listener = releaseListener;
 
-			dataSource = null;
+			if ( listener != null ) {
+				listener.unreferenced( this );
+			} else {
+				close( );
+			}
 		}
 	}
 
+	/*
+	 * builds the pool with its initial connections, unless it is built already
+	 */
+	public void warmUp() throws SQLException {
+		PoolAdapter current = pool;
+
+		if ( current != null && !current.isStarted( ) ) {
+			current.start( );
+		}
+	}
+
+	public void close() {
+		PoolAdapter current = pool;
+
+		if ( current != null ) {
+			LOG.debug( String.format( "release=releasing dataSource [%s]", current ) );
+
+			pool = null;
+
+			current.close( );
+		}
+	}
+
+	private static PoolAdapter adapt( DataSource dataSource ) {
+		PoolAdapter retval;
+
+		if ( dataSource instanceof PoolAdapter ) {
+			retval = ( PoolAdapter ) dataSource;
+		} else if ( dataSource instanceof org.apache.tomcat.jdbc.pool.DataSource ) {
+			retval = new TomcatPoolAdapter( ( org.apache.tomcat.jdbc.pool.DataSource ) dataSource );
+		} else {
+			throw new IllegalArgumentException( );
+		}
+
+		return retval;
+	}
+
+	public interface ReleaseListener {
+
+		void unreferenced( DataSourceResource resource );
+
+	}
+
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock free histogram of latencies with power of two buckets: bucket `i' counts the samples of at least 2^(i-1) and
+ * below 2^i microseconds. Recording costs a few atomic increments; percentiles are reported as the upper bound of
+ * their bucket, which is precise enough to tell a pool wait from a database round trip.
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+	private final AtomicLong count = new AtomicLong( );
+	private final AtomicLong totalNanos = new AtomicLong( );
+	private final AtomicLong maxNanos = new AtomicLong( );
+
+	public void record( long nanos ) {
+		long micros = Math.max( nanos, 0 ) / 1000;
+
+		buckets.incrementAndGet( Math.min( 64 - Long.numberOfLeadingZeros( micros ), BUCKETS - 1 ) );
+		count.incrementAndGet( );
+		totalNanos.addAndGet( nanos );
+
+		long max;
+
+		do {
+			max = maxNanos.get( );
+		} while ( nanos > max && !maxNanos.compareAndSet( max, nanos ) );
+	}
+
+	public long getCount() {
+		return count.get( );
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get( );
+	}
+
+	public long getMaxMicros() {
+		return maxNanos.get( ) / 1000;
+	}
+
+	public double getMeanMicros() {
+		long samples = count.get( );
+
+		return samples > 0 ? totalNanos.get( ) / 1000d / samples : 0;
+	}
+
+	/*
+	 * the upper bound of the bucket holding the given percentile, capped by the largest sample
+	 */
+	public long getPercentileMicros( double percentile ) {
+		long[] snapshot = new long[BUCKETS];
+		long samples = 0;
+
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			snapshot[i] = buckets.get( i );
+			samples += snapshot[i];
+		}
+
+		long retval = 0;
+
+		if ( samples > 0 ) {
+			long rank = Math.max( ( long ) Math.ceil( samples * percentile / 100 ), 1 );
+			long seen = 0;
+			int bucket = 0;
+
+			while ( bucket < BUCKETS - 1 && ( seen += snapshot[bucket] ) < rank ) {
+				bucket++;
+			}
+
+			retval = Math.min( 1L << bucket, getMaxMicros( ) );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram [count=" + count + ", meanMicros=" + getMeanMicros( ) + ", p50Micros=" + getPercentileMicros( 50 )
+				+ ", p99Micros=" + getPercentileMicros( 99 ) + ", maxMicros=" + getMaxMicros( ) + "]";
+	}
+
+}
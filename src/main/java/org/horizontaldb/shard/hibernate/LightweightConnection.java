@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * The connection lent out by the LightweightPool. Closing it returns the physical connection to the pool, any use
+ * afterwards fails. The statements created through it are not wrapped, Statement.getConnection( ) returns the physical
+ * connection.
+ */
+class LightweightConnection implements Connection {
+	private final LightweightPool pool;
+	private final LightweightPool.PhysicalConnection pooled;
+	private final Connection connection;
+	private final boolean reused;
+	private final AtomicBoolean closed = new AtomicBoolean( );
+
+	LightweightConnection( LightweightPool pool, LightweightPool.PhysicalConnection pooled, boolean reused ) {
+		this.pool = pool;
+		this.pooled = pooled;
+		this.connection = pooled.getConnection( );
+		this.reused = reused;
+	}
+
+	/*
+	 * whether the physical connection was taken from the idle ones, rather than opened for this borrow
+	 */
+	boolean isReused() {
+		return reused;
+	}
+
+	@Override
+	public void close() throws SQLException {
+		// concurrent closes of the handle must return the physical connection only once
+		if ( closed.compareAndSet( false, true ) ) {
+			pool.giveBack( pooled );
+		}
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return closed.get( ) || connection.isClosed( );
+	}
+
+	@Override
+	public Statement createStatement() throws SQLException {
+		return physical( ).createStatement( );
+	}
+
+	@Override
+	public PreparedStatement prepareStatement( String sql ) throws SQLException {
+		return physical( ).prepareStatement( sql );
+	}
+
+	@Override
+	public CallableStatement prepareCall( String sql ) throws SQLException {
+		return physical( ).prepareCall( sql );
+	}
+
+	@Override
+	public String nativeSQL( String sql ) throws SQLException {
+		return physical( ).nativeSQL( sql );
+	}
+
+	@Override
+	public void setAutoCommit( boolean autoCommit ) throws SQLException {
+		physical( ).setAutoCommit( autoCommit );
+	}
+
+	@Override
+	public boolean getAutoCommit() throws SQLException {
+		return physical( ).getAutoCommit( );
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		physical( ).commit( );
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		physical( ).rollback( );
+	}
+
+	@Override
+	public DatabaseMetaData getMetaData() throws SQLException {
+		return physical( ).getMetaData( );
+	}
+
+	@Override
+	public void setReadOnly( boolean readOnly ) throws SQLException {
+		physical( ).setReadOnly( readOnly );
+	}
+
+	@Override
+	public boolean isReadOnly() throws SQLException {
+		return physical( ).isReadOnly( );
+	}
+
+	@Override
+	public void setCatalog( String catalog ) throws SQLException {
+		physical( ).setCatalog( catalog );
+	}
+
+	@Override
+	public String getCatalog() throws SQLException {
+		return physical( ).getCatalog( );
+	}
+
+	@Override
+	public void setTransactionIsolation( int level ) throws SQLException {
+		physical( ).setTransactionIsolation( level );
+	}
+
+	@Override
+	public int getTransactionIsolation() throws SQLException {
+		return physical( ).getTransactionIsolation( );
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		return physical( ).getWarnings( );
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		physical( ).clearWarnings( );
+	}
+
+	@Override
+	public Statement createStatement( int resultSetType, int resultSetConcurrency ) throws SQLException {
+		return physical( ).createStatement( resultSetType, resultSetConcurrency );
+	}
+
+	@Override
+	public PreparedStatement prepareStatement( String sql, int resultSetType, int resultSetConcurrency ) throws SQLException {
+		return physical( ).prepareStatement( sql, resultSetType, resultSetConcurrency );
+	}
+
+	@Override
+	public CallableStatement prepareCall( String sql, int resultSetType, int resultSetConcurrency ) throws SQLException {
+		return physical( ).prepareCall( sql, resultSetType, resultSetConcurrency );
+	}
+
+	@Override
+	public Map<String, Class<?>> getTypeMap() throws SQLException {
+		return physical( ).getTypeMap( );
+	}
+
+	@Override
+	public void setTypeMap( Map<String, Class<?>> map ) throws SQLException {
+		physical( ).setTypeMap( map );
+	}
+
+	@Override
+	public void setHoldability( int holdability ) throws SQLException {
+		physical( ).setHoldability( holdability );
+	}
+
+	@Override
+	public int getHoldability() throws SQLException {
+		return physical( ).getHoldability( );
+	}
+
+	@Override
+	public Savepoint setSavepoint() throws SQLException {
+		return physical( ).setSavepoint( );
+	}
+
+	@Override
+	public Savepoint setSavepoint( String name ) throws SQLException {
+		return physical( ).setSavepoint( name );
+	}
+
+	@Override
+	public void rollback( Savepoint savepoint ) throws SQLException {
+		physical( ).rollback( savepoint );
+	}
+
+	@Override
+	public void releaseSavepoint( Savepoint savepoint ) throws SQLException {
+		physical( ).releaseSavepoint( savepoint );
+	}
+
+	@Override
+	public Statement createStatement( int resultSetType, int resultSetConcurrency, int resultSetHoldability ) throws SQLException {
+		return physical( ).createStatement( resultSetType, resultSetConcurrency, resultSetHoldability );
+	}
+
+	@Override
+	public PreparedStatement prepareStatement( String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability ) throws SQLException {
+		return physical( ).prepareStatement( sql, resultSetType, resultSetConcurrency, resultSetHoldability );
+	}
+
+	@Override
+	public CallableStatement prepareCall( String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability ) throws SQLException {
+		return physical( ).prepareCall( sql, resultSetType, resultSetConcurrency, resultSetHoldability );
+	}
+
+	@Override
+	public PreparedStatement prepareStatement( String sql, int autoGeneratedKeys ) throws SQLException {
+		return physical( ).prepareStatement( sql, autoGeneratedKeys );
+	}
+
+	@Override
+	public PreparedStatement prepareStatement( String sql, int[] columnIndexes ) throws SQLException {
+		return physical( ).prepareStatement( sql, columnIndexes );
+	}
+
+	@Override
+	public PreparedStatement prepareStatement( String sql, String[] columnNames ) throws SQLException {
+		return physical( ).prepareStatement( sql, columnNames );
+	}
+
+	@Override
+	public Clob createClob() throws SQLException {
+		return physical( ).createClob( );
+	}
+
+	@Override
+	public Blob createBlob() throws SQLException {
+		return physical( ).createBlob( );
+	}
+
+	@Override
+	public NClob createNClob() throws SQLException {
+		return physical( ).createNClob( );
+	}
+
+	@Override
+	public SQLXML createSQLXML() throws SQLException {
+		return physical( ).createSQLXML( );
+	}
+
+	@Override
+	public boolean isValid( int timeout ) throws SQLException {
+		return physical( ).isValid( timeout );
+	}
+
+	@Override
+	public String getClientInfo( String name ) throws SQLException {
+		return physical( ).getClientInfo( name );
+	}
+
+	@Override
+	public Properties getClientInfo() throws SQLException {
+		return physical( ).getClientInfo( );
+	}
+
+	@Override
+	public Array createArrayOf( String typeName, Object[] elements ) throws SQLException {
+		return physical( ).createArrayOf( typeName, elements );
+	}
+
+	@Override
+	public Struct createStruct( String typeName, Object[] attributes ) throws SQLException {
+		return physical( ).createStruct( typeName, attributes );
+	}
+
+	@Override
+	public void setSchema( String schema ) throws SQLException {
+		physical( ).setSchema( schema );
+	}
+
+	@Override
+	public String getSchema() throws SQLException {
+		return physical( ).getSchema( );
+	}
+
+	@Override
+	public void abort( Executor executor ) throws SQLException {
+		physical( ).abort( executor );
+	}
+
+	@Override
+	public void setNetworkTimeout( Executor executor, int milliseconds ) throws SQLException {
+		physical( ).setNetworkTimeout( executor, milliseconds );
+	}
+
+	@Override
+	public int getNetworkTimeout() throws SQLException {
+		return physical( ).getNetworkTimeout( );
+	}
+
+	@Override
+	public void setClientInfo( String name, String value ) throws SQLClientInfoException {
+		if ( closed.get( ) ) {
+			throw new SQLClientInfoException( );
+		}
+
+		connection.setClientInfo( name, value );
+	}
+
+	@Override
+	public void setClientInfo( Properties properties ) throws SQLClientInfoException {
+		if ( closed.get( ) ) {
+			throw new SQLClientInfoException( );
+		}
+
+		connection.setClientInfo( properties );
+	}
+
+	@Override
+	public <T> T unwrap( Class<T> iface ) throws SQLException {
+		T retval;
+
+		if ( iface.isInstance( this ) ) {
+			retval = iface.cast( this );
+		} else if ( iface.isInstance( physical( ) ) ) {
+			retval = iface.cast( connection );
+		} else {
+			retval = connection.unwrap( iface );
+		}
+
+		return retval;
+	}
+
+	@Override
+	public boolean isWrapperFor( Class<?> iface ) throws SQLException {
+		return iface.isInstance( this ) || iface.isInstance( physical( ) ) || connection.isWrapperFor( iface );
+	}
+
+	private Connection physical() throws SQLException {
+		if ( closed.get( ) ) {
+			throw new SQLException( "the connection is closed" );
+		}
+
+		return connection;
+	}
+
+}
@@ -0,0 +1,722 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A minimal pool for the many small pools of the tenants. It has no threads, timers or JMX beans of its own, so an idle
+ * pool costs little more than its idle connections; with maxIdle at zero it holds no connection at all between
+ * borrows. The connections are opened on demand up to maxActive and the idle ones are reused last-in first-out, so the
+ * connections of a quiet pool stay warm while the surplus ends up closed by maxIdle.
+ *
+ * The connections are opened outside the lock of the pool, a slow database only delays the callers which really need a
+ * new connection. Borrowed connections are validated with Connection.isValid when testOnBorrow is set; the idle ones
+ * are validated by testIdle, typically on behalf of the PoolHealthChecker. A returned connection is reset to the
+ * autoCommit, readOnly, transaction isolation and catalog it was opened with - an open transaction is rolled back first
+ * - and closed when the reset fails, so no tenant sees the state left behind by another. Abandoned connections are not
+ * reclaimed.
+ */
+public class LightweightPool implements DataSource, PoolAdapter {
+	private static final Logger LOG = LoggerFactory.getLogger( LightweightPool.class );
+
+	private String driverClassName;
+	private String url;
+	private String username;
+	private String password;
+	private int initialSize;
+	private int validationTimeoutSeconds = 5;
+	private volatile int maxActive = 8;
+	private volatile int minIdle;
+	private volatile int maxIdle = 8;
+	private volatile long maxWait;
+	private volatile boolean testOnBorrow;
+	private volatile Driver driver;
+
+	private final ReentrantLock lock = new ReentrantLock( );
+	private final Condition available = lock.newCondition( );
+	private final ArrayDeque<PhysicalConnection> idle = new ArrayDeque<>( );
+	// the counters are written under the lock and read without it
+	private volatile int size;
+	private volatile int active;
+	private volatile int idleCount;
+	private volatile int waitCount;
+	private volatile boolean started;
+	private volatile boolean closed;
+
+	public void setDriverClassName( String driverClassName ) {
+		this.driverClassName = driverClassName;
+	}
+
+	public void setUrl( String url ) {
+		this.url = url;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUsername( String username ) {
+		this.username = username;
+	}
+
+	public void setPassword( String password ) {
+		this.password = password;
+	}
+
+	/*
+	 * the connections opened when the pool is started, minIdle is opened if it is larger
+	 */
+	public void setInitialSize( int initialSize ) {
+		this.initialSize = initialSize;
+	}
+
+	public void setValidationTimeoutSeconds( int validationTimeoutSeconds ) {
+		this.validationTimeoutSeconds = validationTimeoutSeconds;
+	}
+
+	/*
+	 * milliseconds to wait for a connection when all of them are lent out, zero waits forever
+	 */
+	public void setMaxWait( long maxWait ) {
+		this.maxWait = maxWait;
+	}
+
+	@Override
+	public DataSource getDataSource() {
+		return this;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return started;
+	}
+
+	@Override
+	public void start() throws SQLException {
+		int count;
+
+		lock.lock( );
+
+		try {
+			if ( started || closed ) {
+				return;
+			}
+
+			started = true;
+
+			count = Math.max( 0, Math.min( Math.max( initialSize, minIdle ), maxActive - size ) );
+			size += count;
+		} finally {
+			lock.unlock( );
+		}
+
+		List<PhysicalConnection> opened = new ArrayList<>( count );
+
+		try {
+			for ( int i = 0; i < count; i++ ) {
+				opened.add( open( ) );
+			}
+		} catch ( SQLException | RuntimeException ex ) {
+			closeQuietly( opened );
+
+			lock.lock( );
+
+			try {
+				started = false;
+				size -= count;
+
+				available.signalAll( );
+			} finally {
+				lock.unlock( );
+			}
+
+			throw ex;
+		}
+
+		List<PhysicalConnection> surplus = new ArrayList<>( );
+
+		lock.lock( );
+
+		try {
+			for ( PhysicalConnection connection : opened ) {
+				if ( closed ) {
+					surplus.add( connection );
+					size--;
+				} else {
+					idle.push( connection );
+				}
+			}
+
+			idleCount = idle.size( );
+
+			available.signalAll( );
+		} finally {
+			lock.unlock( );
+		}
+
+		closeQuietly( surplus );
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if ( !started ) {
+			start( );
+		}
+
+		Connection retval = null;
+
+		while ( retval == null ) {
+			boolean create = false;
+			PhysicalConnection connection = null;
+
+			lock.lock( );
+
+			try {
+				long remainingNanos = TimeUnit.MILLISECONDS.toNanos( maxWait );
+
+				while ( connection == null && !create ) {
+					if ( closed ) {
+						throw new SQLException( String.format( "the pool of [%s] is closed", url ) );
+					}
+
+					connection = idle.poll( );
+
+					if ( connection != null ) {
+						idleCount = idle.size( );
+					} else if ( size < maxActive ) {
+						// the slot is taken now, the connection is opened outside the lock
+						size++;
+						create = true;
+					} else {
+						remainingNanos = await( remainingNanos );
+					}
+				}
+
+				active++;
+			} finally {
+				lock.unlock( );
+			}
+
+			if ( create ) {
+				try {
+					connection = open( );
+				} catch ( SQLException | RuntimeException ex ) {
+					discard( null );
+
+					throw ex;
+				}
+			} else if ( testOnBorrow && !isValid( connection ) ) {
+				discard( connection );
+
+				connection = null;
+			}
+
+			if ( connection != null ) {
+				retval = new LightweightConnection( this, connection, !create );
+			}
+		}
+
+		return retval;
+	}
+
+	@Override
+	public Connection getConnection( String username, String password ) throws SQLException {
+		throw new SQLFeatureNotSupportedException( );
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public int getActive() {
+		return active;
+	}
+
+	@Override
+	public int getIdle() {
+		return idleCount;
+	}
+
+	@Override
+	public int getWaitCount() {
+		return waitCount;
+	}
+
+	@Override
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	/*
+	 * the pool may be grown or shrunk any time, the connections above a smaller maxActive are closed as they are returned
+	 */
+	@Override
+	public void setMaxActive( int maxActive ) {
+		lock.lock( );
+
+		try {
+			this.maxActive = maxActive;
+
+			available.signalAll( );
+		} finally {
+			lock.unlock( );
+		}
+
+		trim( );
+	}
+
+	@Override
+	public int getMinIdle() {
+		return minIdle;
+	}
+
+	/*
+	 * only honoured when the pool is started, the pool does not open connections in the background
+	 */
+	@Override
+	public void setMinIdle( int minIdle ) {
+		this.minIdle = minIdle;
+	}
+
+	@Override
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	@Override
+	public void setMaxIdle( int maxIdle ) {
+		this.maxIdle = maxIdle;
+
+		trim( );
+	}
+
+	@Override
+	public boolean isTestOnBorrow() {
+		return testOnBorrow;
+	}
+
+	@Override
+	public void setTestOnBorrow( boolean testOnBorrow ) {
+		this.testOnBorrow = testOnBorrow;
+	}
+
+	/*
+	 * only the idle connections taken for a borrow are validated, a connection just opened is not
+	 */
+	@Override
+	public boolean isBorrowValidationDue( Connection connection ) {
+		return connection instanceof LightweightConnection && ( ( LightweightConnection ) connection ).isReused( );
+	}
+
+	/*
+	 * The idle connections are taken out of the pool while they are validated, so the validation does not hold the lock.
+	 * The borrows in the meantime open new connections if they need to.
+	 */
+	@Override
+	public int testIdle() {
+		List<PhysicalConnection> tested = new ArrayList<>( );
+		List<PhysicalConnection> failed = new ArrayList<>( );
+
+		lock.lock( );
+
+		try {
+			tested.addAll( idle );
+			idle.clear( );
+			idleCount = 0;
+		} finally {
+			lock.unlock( );
+		}
+
+		for ( PhysicalConnection connection : tested ) {
+			if ( !isValid( connection ) ) {
+				failed.add( connection );
+			}
+		}
+
+		tested.removeAll( failed );
+
+		List<PhysicalConnection> surplus = new ArrayList<>( failed );
+
+		lock.lock( );
+
+		try {
+			size -= failed.size( );
+
+			// the eldest connections go back behind the ones returned in the meantime
+			for ( PhysicalConnection connection : tested ) {
+				if ( closed || size > maxActive || idle.size( ) >= maxIdle ) {
+					surplus.add( connection );
+					size--;
+				} else {
+					idle.addLast( connection );
+				}
+			}
+
+			idleCount = idle.size( );
+
+			available.signalAll( );
+		} finally {
+			lock.unlock( );
+		}
+
+		closeQuietly( surplus );
+
+		if ( !failed.isEmpty( ) ) {
+			LOG.debug( String.format( "testIdle=closed [%s] of the [%s] idle connections to [%s]", failed.size( ), failed.size( ) + tested.size( ), url ) );
+		}
+
+		return failed.size( );
+	}
+
+	@Override
+	public void setAbandonListener( AbandonListener listener ) {
+		// the pool does not abandon connections
+	}
+
+	/*
+	 * closes the idle connections now, the ones lent out as they are returned
+	 */
+	@Override
+	public void close() {
+		List<PhysicalConnection> connections;
+
+		lock.lock( );
+
+		try {
+			closed = true;
+
+			connections = new ArrayList<>( idle );
+			idle.clear( );
+			idleCount = 0;
+			size -= connections.size( );
+
+			available.signalAll( );
+		} finally {
+			lock.unlock( );
+		}
+
+		closeQuietly( connections );
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return null;
+	}
+
+	@Override
+	public void setLogWriter( PrintWriter out ) throws SQLException {
+		// the pool logs through slf4j
+	}
+
+	@Override
+	public void setLoginTimeout( int seconds ) throws SQLException {
+		throw new SQLFeatureNotSupportedException( );
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return 0;
+	}
+
+	@Override
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException( );
+	}
+
+	@Override
+	public <T> T unwrap( Class<T> iface ) throws SQLException {
+		if ( !iface.isInstance( this ) ) {
+			throw new SQLException( String.format( "not a wrapper for [%s]", iface ) );
+		}
+
+		return iface.cast( this );
+	}
+
+	@Override
+	public boolean isWrapperFor( Class<?> iface ) throws SQLException {
+		return iface.isInstance( this );
+	}
+
+	@Override
+	public String toString() {
+		return "LightweightPool [url=" + url + ", size=" + size + ", active=" + active + ", idle=" + idleCount + ", maxActive=" + maxActive + "]";
+	}
+
+	/*
+	 * Called by the LightweightConnection when it is closed. The connection is reset to the state it was opened with
+	 * before anyone else can borrow it; a connection which cannot be reset is closed.
+	 */
+	void giveBack( PhysicalConnection connection ) {
+		boolean keep;
+
+		if ( !connection.reset( ) ) {
+			LOG.debug( String.format( "giveBack=closed a connection to [%s] which could not be reset", url ) );
+
+			discard( connection );
+
+			return;
+		}
+
+		lock.lock( );
+
+		try {
+			active--;
+
+			keep = !closed && size <= maxActive && idle.size( ) < maxIdle;
+
+			if ( keep ) {
+				idle.push( connection );
+				idleCount = idle.size( );
+			} else {
+				size--;
+			}
+
+			available.signal( );
+		} finally {
+			lock.unlock( );
+		}
+
+		if ( !keep ) {
+			closeQuietly( connection );
+		}
+	}
+
+	/*
+	 * waits for a returned connection or a free slot, called under the lock
+	 */
+	private long await( long remainingNanos ) throws SQLException {
+		long retval = remainingNanos;
+
+		waitCount++;
+
+		try {
+			if ( maxWait > 0 ) {
+				if ( retval <= 0 ) {
+					throw new SQLTransientConnectionException( String.format( "no connection to [%s] within [%s] ms, [%s] lent out", url, maxWait, active ) );
+				}
+
+				retval = available.awaitNanos( retval );
+			} else {
+				available.await( );
+			}
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread( ).interrupt( );
+
+			throw new SQLException( String.format( "interrupted while waiting for a connection to [%s]", url ), ex );
+		} finally {
+			waitCount--;
+		}
+
+		return retval;
+	}
+
+	/*
+	 * gives up the slot of a borrowed connection which failed to open or failed validation
+	 */
+	private void discard( PhysicalConnection connection ) {
+		lock.lock( );
+
+		try {
+			active--;
+			size--;
+
+			available.signal( );
+		} finally {
+			lock.unlock( );
+		}
+
+		if ( connection != null ) {
+			closeQuietly( connection );
+		}
+	}
+
+	private void trim() {
+		List<PhysicalConnection> surplus = new ArrayList<>( );
+
+		lock.lock( );
+
+		try {
+			// the eldest idle connections go first
+			while ( !idle.isEmpty( ) && ( idle.size( ) > maxIdle || size > maxActive ) ) {
+				surplus.add( idle.removeLast( ) );
+				size--;
+			}
+
+			idleCount = idle.size( );
+		} finally {
+			lock.unlock( );
+		}
+
+		closeQuietly( surplus );
+	}
+
+	private PhysicalConnection open() throws SQLException {
+		Properties properties = new Properties( );
+
+		if ( username != null ) {
+			properties.setProperty( "user", username );
+		}
+
+		if ( password != null ) {
+			properties.setProperty( "password", password );
+		}
+
+		Connection connection = getDriver( ).connect( url, properties );
+
+		if ( connection == null ) {
+			throw new SQLException( String.format( "no driver accepts [%s]", url ) );
+		}
+
+		try {
+			return new PhysicalConnection( connection );
+		} catch ( SQLException | RuntimeException ex ) {
+			connection.close( );
+
+			throw ex;
+		}
+	}
+
+	private Driver getDriver() throws SQLException {
+		Driver retval = driver;
+
+		if ( retval == null ) {
+			if ( driverClassName != null ) {
+				try {
+					retval = ( Driver ) Class.forName( driverClassName, true, LightweightPool.class.getClassLoader( ) ).newInstance( );
+				} catch ( ReflectiveOperationException ex ) {
+					throw new SQLException( String.format( "could not load the driver [%s]", driverClassName ), ex );
+				}
+			} else {
+				retval = DriverManager.getDriver( url );
+			}
+
+			driver = retval;
+		}
+
+		return retval;
+	}
+
+	private boolean isValid( PhysicalConnection connection ) {
+		boolean retval;
+
+		try {
+			retval = connection.getConnection( ).isValid( validationTimeoutSeconds );
+		} catch ( SQLException ex ) {
+			retval = false;
+		}
+
+		return retval;
+	}
+
+	private void closeQuietly( List<PhysicalConnection> connections ) {
+		for ( PhysicalConnection connection : connections ) {
+			closeQuietly( connection );
+		}
+	}
+
+	private void closeQuietly( PhysicalConnection connection ) {
+		try {
+			connection.getConnection( ).close( );
+		} catch ( SQLException ex ) {
+			LOG.warn( String.format( "closeQuietly=could not close a connection to [%s]", url ), ex );
+		}
+	}
+
+	/*
+	 * a connection of the pool, with the state it was opened with
+	 */
+	static class PhysicalConnection {
+		private final Connection connection;
+		private final boolean autoCommit;
+		private final boolean readOnly;
+		private final int transactionIsolation;
+		private final String catalog;
+
+		PhysicalConnection( Connection connection ) throws SQLException {
+			this.connection = connection;
+			this.autoCommit = connection.getAutoCommit( );
+			this.readOnly = connection.isReadOnly( );
+			this.transactionIsolation = connection.getTransactionIsolation( );
+			this.catalog = connection.getCatalog( );
+		}
+
+		Connection getConnection() {
+			return connection;
+		}
+
+		/*
+		 * returns false if the connection could not be reset
+		 */
+		boolean reset() {
+			boolean retval = true;
+
+			try {
+				if ( !connection.getAutoCommit( ) ) {
+					connection.rollback( );
+				}
+
+				if ( connection.getAutoCommit( ) != autoCommit ) {
+					connection.setAutoCommit( autoCommit );
+				}
+
+				if ( connection.isReadOnly( ) != readOnly ) {
+					connection.setReadOnly( readOnly );
+				}
+
+				if ( connection.getTransactionIsolation( ) != transactionIsolation ) {
+					connection.setTransactionIsolation( transactionIsolation );
+				}
+
+				if ( catalog != null && !catalog.equals( connection.getCatalog( ) ) ) {
+					connection.setCatalog( catalog );
+				}
+
+				connection.clearWarnings( );
+			} catch ( SQLException | RuntimeException ex ) {
+				retval = false;
+			}
+
+			return retval;
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/*
+ * What the management of the tenant pools - sizing, health checking, metrics and closing - needs from a pool engine.
+ * The counters of a pool which is not started yet are all zero; starting builds the pool with its initial connections.
+ */
+public interface PoolAdapter {
+
+	DataSource getDataSource();
+
+	boolean isStarted();
+
+	void start() throws SQLException;
+
+	/*
+	 * the open connections, lent out and idle together
+	 */
+	int getSize();
+
+	int getActive();
+
+	int getIdle();
+
+	/*
+	 * the threads waiting for a connection right now
+	 */
+	int getWaitCount();
+
+	int getMaxActive();
+
+	void setMaxActive( int maxActive );
+
+	int getMinIdle();
+
+	void setMinIdle( int minIdle );
+
+	int getMaxIdle();
+
+	void setMaxIdle( int maxIdle );
+
+	boolean isTestOnBorrow();
+
+	void setTestOnBorrow( boolean testOnBorrow );
+
+	/*
+	 * whether the borrow of the connection, lent by this pool, would have been validated with testOnBorrow set
+	 */
+	boolean isBorrowValidationDue( Connection connection );
+
+	/*
+	 * validates the idle connections and closes the ones failing, returns the number of connections closed
+	 */
+	int testIdle();
+
+	/*
+	 * engines which do not abandon connections may ignore the listener
+	 */
+	void setAbandonListener( AbandonListener listener );
+
+	/*
+	 * closes the pool, including the connections lent out
+	 */
+	void close();
+
+	interface AbandonListener {
+
+		void abandoned();
+
+	}
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Validates the idle connections of the tenant pools in the background, so the borrows do not have to. Each round
+ * checks a batch of `batchSize' pools - all of them when zero - continuing where the previous round stopped. A pool
+ * whose idle connections all passed the validation query is verified: its borrows skip the validation until the
+ * verification is older than `maxAgeMillis'. A pool which lost connections during the check is considered unhealthy and
+ * validates its borrows again right away. A pool whose idle connections all failed is dead, its database is considered
+ * down: the circuit breaker of the tenant, when the registry of the pool was added with its TenantCircuitBreakers, is
+ * tripped, so the borrows fail fast until a probe borrow succeeds. The pool counts as dead until a check finds a
+ * connection passing the validation.
+ *
+ * Pools without idle connections cannot be checked, they keep their previous state until it expires. Tomcat does not
+ * validate a connection again within its `validationInterval', so a check is as fresh as that interval. Rounds are
+ * meant to be run from a single thread.
+ */
+public class PoolHealthChecker {
+	private static final Logger LOG = LoggerFactory.getLogger( PoolHealthChecker.class );
+
+	private final List<TenantDataSourceRegistry> registries = new CopyOnWriteArrayList<>( );
+	private final Map<TenantDataSourceRegistry, TenantCircuitBreakers> circuitBreakers = new ConcurrentHashMap<>( );
+	private final int batchSize;
+	private final long maxAgeMillis;
+	// keyed by the pool, so a rebuilt pool starts unverified
+	private Map<DataSourceResource, Long> verifiedAt = new IdentityHashMap<>( );
+	private Map<DataSourceResource, Long> deadAt = new IdentityHashMap<>( );
+	private int cursor;
+
+	private final AtomicLong checks = new AtomicLong( );
+	private final AtomicLong failedChecks = new AtomicLong( );
+	private volatile int verifiedPools;
+	private volatile int deadPools;
+
+	public PoolHealthChecker( int batchSize, long maxAgeMillis ) {
+		this.batchSize = batchSize;
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	public void addRegistry( TenantDataSourceRegistry registry ) {
+		registries.add( registry );
+	}
+
+	/*
+	 * the circuit breakers guard the tenants of the registry, they are tripped when the pool of a tenant is found dead
+	 */
+	public void addRegistry( TenantDataSourceRegistry registry, TenantCircuitBreakers circuitBreakers ) {
+		this.circuitBreakers.put( registry, circuitBreakers );
+
+		registries.add( registry );
+	}
+
+	public void check() {
+		long now = System.currentTimeMillis( );
+		List<Entry<String, DataSourceResource>> resources = new ArrayList<>( );
+		Map<DataSourceResource, Long> currentVerifiedAt = new IdentityHashMap<>( );
+		Map<DataSourceResource, Long> currentDeadAt = new IdentityHashMap<>( );
+		Map<DataSourceResource, TenantCircuitBreakers> guardedBy = new IdentityHashMap<>( );
+
+		for ( TenantDataSourceRegistry registry : registries ) {
+			Map<String, DataSourceResource> registered = registry.getResources( );
+			TenantCircuitBreakers registryCircuitBreakers = circuitBreakers.get( registry );
+
+			resources.addAll( registered.entrySet( ) );
+
+			if ( registryCircuitBreakers != null ) {
+				for ( DataSourceResource resource : registered.values( ) ) {
+					guardedBy.put( resource, registryCircuitBreakers );
+				}
+			}
+		}
+
+		for ( Entry<String, DataSourceResource> entry : resources ) {
+			DataSourceResource resource = entry.getValue( );
+			Long verified = verifiedAt.get( resource );
+			Long dead = deadAt.get( resource );
+
+			if ( dead != null ) {
+				currentDeadAt.put( resource, dead );
+			}
+
+			if ( verified != null && now - verified <= maxAgeMillis ) {
+				currentVerifiedAt.put( resource, verified );
+			} else if ( verified != null ) {
+				resource.setBorrowValidationSuspended( false );
+			}
+		}
+
+		if ( !resources.isEmpty( ) ) {
+			int start = cursor % resources.size( );
+			int count = batchSize > 0 ? Math.min( batchSize, resources.size( ) ) : resources.size( );
+
+			for ( int i = 0; i < count; i++ ) {
+				Entry<String, DataSourceResource> entry = resources.get( ( start + i ) % resources.size( ) );
+				DataSourceResource resource = entry.getValue( );
+				Health health = check( entry.getKey( ), resource );
+
+				if ( health == Health.HEALTHY ) {
+					currentVerifiedAt.put( resource, now );
+					currentDeadAt.remove( resource );
+
+					resource.setBorrowValidationSuspended( true );
+				} else if ( health == Health.UNHEALTHY ) {
+					currentVerifiedAt.remove( resource );
+					currentDeadAt.remove( resource );
+
+					resource.setBorrowValidationSuspended( false );
+				} else if ( health == Health.DEAD ) {
+					currentVerifiedAt.remove( resource );
+					currentDeadAt.put( resource, now );
+
+					resource.setBorrowValidationSuspended( false );
+
+					trip( entry.getKey( ), guardedBy.get( resource ) );
+				}
+			}
+
+			cursor = start + count;
+		}
+
+		// pools closed since the last round are forgotten
+		verifiedAt = currentVerifiedAt;
+		verifiedPools = currentVerifiedAt.size( );
+		deadAt = currentDeadAt;
+		deadPools = currentDeadAt.size( );
+	}
+
+	public long getChecks() {
+		return checks.get( );
+	}
+
+	public long getFailedChecks() {
+		return failedChecks.get( );
+	}
+
+	public int getVerifiedPools() {
+		return verifiedPools;
+	}
+
+	/*
+	 * the pools whose idle connections all failed the last check
+	 */
+	public int getDeadPools() {
+		return deadPools;
+	}
+
+	/*
+	 * null when the pool has no idle connection to check
+	 */
+	private Health check( String tenantId, DataSourceResource resource ) {
+		PoolAdapter pool = resource.getPool( );
+		Health retval = null;
+
+		if ( pool != null && pool.getIdle( ) > 0 ) {
+			int size = pool.getSize( );
+			int idle = pool.getIdle( );
+			int failed = pool.testIdle( );
+
+			checks.incrementAndGet( );
+
+			if ( failed == 0 ) {
+				retval = Health.HEALTHY;
+			} else {
+				retval = failed >= idle ? Health.DEAD : Health.UNHEALTHY;
+
+				failedChecks.incrementAndGet( );
+
+				LOG.warn( String.format( "check.%s=[%s] of the [%s] connections failed validation", tenantId, failed, size ) );
+			}
+		}
+
+		return retval;
+	}
+
+	private void trip( String tenantId, TenantCircuitBreakers registryCircuitBreakers ) {
+		if ( registryCircuitBreakers != null && registryCircuitBreakers.get( tenantId ).trip( ) ) {
+			LOG.warn( String.format( "check.%s=dataSource is dead, circuit breaker opened", tenantId ) );
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PoolHealthChecker [checks=" + checks + ", failedChecks=" + failedChecks + ", verifiedPools=" + verifiedPools + ", deadPools="
+				+ deadPools + "]";
+	}
+
+	private enum Health {
+		HEALTHY, UNHEALTHY, DEAD
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.beans.ConstructorProperties;
+
+/*
+ * Snapshot of one tenant pool. `pool' tells the primary pool of the tenant from its replicas. The borrow latencies are
+ * the times Hibernate waited for a connection of the pool, they exclude the time spent in the database.
+ * `borrowValidationSuspended' tells the pools recently verified by the PoolHealthChecker.
+ */
+public class PoolMetrics {
+	private final String tenantId;
+	private final String pool;
+	private final int size;
+	private final int active;
+	private final int idle;
+	private final int waiting;
+	private final int maxActive;
+	private final int references;
+	private final long borrowCount;
+	private final double borrowMeanMicros;
+	private final long borrowMedianMicros;
+	private final long borrow99thPercentileMicros;
+	private final long borrowMaxMicros;
+	private final long abandonCount;
+	private final long creationMillis;
+	private final boolean borrowValidationSuspended;
+
+	@ConstructorProperties( { "tenantId", "pool", "size", "active", "idle", "waiting", "maxActive", "references", "borrowCount",
+			"borrowMeanMicros", "borrowMedianMicros", "borrow99thPercentileMicros", "borrowMaxMicros", "abandonCount", "creationMillis",
+			"borrowValidationSuspended" } )
+	public PoolMetrics( String tenantId, String pool, int size, int active, int idle, int waiting, int maxActive, int references, long borrowCount,
+			double borrowMeanMicros, long borrowMedianMicros, long borrow99thPercentileMicros, long borrowMaxMicros, long abandonCount,
+			long creationMillis, boolean borrowValidationSuspended ) {
+		this.tenantId = tenantId;
+		this.pool = pool;
+		this.size = size;
+		this.active = active;
+		this.idle = idle;
+		this.waiting = waiting;
+		this.maxActive = maxActive;
+		this.references = references;
+		this.borrowCount = borrowCount;
+		this.borrowMeanMicros = borrowMeanMicros;
+		this.borrowMedianMicros = borrowMedianMicros;
+		this.borrow99thPercentileMicros = borrow99thPercentileMicros;
+		this.borrowMaxMicros = borrowMaxMicros;
+		this.abandonCount = abandonCount;
+		this.creationMillis = creationMillis;
+		this.borrowValidationSuspended = borrowValidationSuspended;
+	}
+
+	public static PoolMetrics of( String tenantId, String pool, DataSourceResource resource ) {
+		PoolAdapter adapter = resource.getPool( );
+		LatencyHistogram borrowLatency = resource.getBorrowLatency( );
+		int size = 0;
+		int active = 0;
+		int idle = 0;
+		int waiting = 0;
+		int maxActive = 0;
+
+		if ( adapter != null && adapter.isStarted( ) ) {
+			size = adapter.getSize( );
+			active = adapter.getActive( );
+			idle = adapter.getIdle( );
+			waiting = adapter.getWaitCount( );
+			maxActive = adapter.getMaxActive( );
+		}
+
+		return new PoolMetrics( tenantId, pool, size, active, idle, waiting, maxActive, resource.getReferenceCount( ), borrowLatency.getCount( ),
+				borrowLatency.getMeanMicros( ), borrowLatency.getPercentileMicros( 50 ), borrowLatency.getPercentileMicros( 99 ),
+				borrowLatency.getMaxMicros( ), resource.getAbandonCount( ), resource.getCreationNanos( ) / 1000000,
+				resource.isBorrowValidationSuspended( ) );
+	}
+
+	public String getTenantId() {
+		return tenantId;
+	}
+
+	public String getPool() {
+		return pool;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getActive() {
+		return active;
+	}
+
+	public int getIdle() {
+		return idle;
+	}
+
+	public int getWaiting() {
+		return waiting;
+	}
+
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	public int getReferences() {
+		return references;
+	}
+
+	public long getBorrowCount() {
+		return borrowCount;
+	}
+
+	public double getBorrowMeanMicros() {
+		return borrowMeanMicros;
+	}
+
+	public long getBorrowMedianMicros() {
+		return borrowMedianMicros;
+	}
+
+	public long getBorrow99thPercentileMicros() {
+		return borrow99thPercentileMicros;
+	}
+
+	public long getBorrowMaxMicros() {
+		return borrowMaxMicros;
+	}
+
+	public long getAbandonCount() {
+		return abandonCount;
+	}
+
+	public long getCreationMillis() {
+		return creationMillis;
+	}
+
+	public boolean isBorrowValidationSuspended() {
+		return borrowValidationSuspended;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolMetrics [tenantId=" + tenantId + ", pool=" + pool + ", size=" + size + ", active=" + active + ", idle=" + idle + ", waiting="
+				+ waiting + ", maxActive=" + maxActive + ", references=" + references + ", borrowCount=" + borrowCount + ", borrowMeanMicros="
+				+ borrowMeanMicros + ", borrowMedianMicros=" + borrowMedianMicros + ", borrow99thPercentileMicros=" + borrow99thPercentileMicros
+				+ ", borrowMaxMicros=" + borrowMaxMicros + ", abandonCount=" + abandonCount + ", creationMillis=" + creationMillis
+				+ ", borrowValidationSuspended=" + borrowValidationSuspended + "]";
+	}
+
+}
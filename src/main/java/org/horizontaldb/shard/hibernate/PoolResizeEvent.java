@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+/*
+ * A sizing decision of the PoolSizeController, together with the load it was based on.
+ */
+public class PoolResizeEvent {
+	private final String tenantId;
+	private final Reason reason;
+	private final double borrowsPerSecond;
+	private final double averageWaitMillis;
+	private final int waitingThreads;
+	private final int previousMaxActive;
+	private final int previousMinIdle;
+	private final int maxActive;
+	private final int minIdle;
+	private final int maxIdle;
+	private final long timestamp = System.currentTimeMillis( );
+
+	public PoolResizeEvent( String tenantId, Reason reason, double borrowsPerSecond, double averageWaitMillis, int waitingThreads,
+			int previousMaxActive, int previousMinIdle, int maxActive, int minIdle, int maxIdle ) {
+		this.tenantId = tenantId;
+		this.reason = reason;
+		this.borrowsPerSecond = borrowsPerSecond;
+		this.averageWaitMillis = averageWaitMillis;
+		this.waitingThreads = waitingThreads;
+		this.previousMaxActive = previousMaxActive;
+		this.previousMinIdle = previousMinIdle;
+		this.maxActive = maxActive;
+		this.minIdle = minIdle;
+		this.maxIdle = maxIdle;
+	}
+
+	public String getTenantId() {
+		return tenantId;
+	}
+
+	public Reason getReason() {
+		return reason;
+	}
+
+	public double getBorrowsPerSecond() {
+		return borrowsPerSecond;
+	}
+
+	public double getAverageWaitMillis() {
+		return averageWaitMillis;
+	}
+
+	public int getWaitingThreads() {
+		return waitingThreads;
+	}
+
+	public int getPreviousMaxActive() {
+		return previousMaxActive;
+	}
+
+	public int getPreviousMinIdle() {
+		return previousMinIdle;
+	}
+
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	public int getMinIdle() {
+		return minIdle;
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolResizeEvent [tenantId=" + tenantId + ", reason=" + reason + ", borrowsPerSecond=" + borrowsPerSecond + ", averageWaitMillis="
+				+ averageWaitMillis + ", waitingThreads=" + waitingThreads + ", maxActive=" + previousMaxActive + "->" + maxActive + ", minIdle="
+				+ previousMinIdle + "->" + minIdle + ", maxIdle=" + maxIdle + "]";
+	}
+
+	public enum Reason {
+		// borrowers had to wait, the pool is grown
+		HOT,
+		// the pool was not used, its idle connections are let go and it is shrunk
+		COLD,
+		// a cold pool is used again, it may keep idle connections again
+		WARM
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.horizontaldb.shard.hibernate.PoolResizeEvent.Reason;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Sizes the tenant pools by their load, between `minActive' and `maxActive'. Each round compares the borrow counters of
+ * the pools with the previous round:
+ *
+ * - a pool whose borrowers waited longer than `hotWaitMillis' on average, or which has threads waiting right now, is
+ * hot: its maxActive is doubled, and minIdle is raised to the connections in use;
+ * - a pool without borrows is cold: its maxActive is halved, and it keeps no idle connections;
+ * - a cold pool which is used again gets its idle connections back, up to the maxIdle it had when first seen.
+ *
+ * The pools must be built with room for `maxActive' connections, as Tomcat sizes the queues of a pool once. Every
+ * decision is logged and passed to the PoolResizeListeners. Several registries - e.g. the primary and the replica
+ * pools - can be watched by the same controller. Rounds are meant to be run from a single thread.
+ */
+public class PoolSizeController {
+	private static final Logger LOG = LoggerFactory.getLogger( PoolSizeController.class );
+
+	private final List<TenantDataSourceRegistry> registries = new CopyOnWriteArrayList<>( );
+	// keyed by the pool, so a rebuilt pool starts over
+	private Map<DataSourceResource, Sample> samples = new IdentityHashMap<>( );
+	private final List<PoolResizeListener> listeners = new CopyOnWriteArrayList<>( );
+	private int minActive = 1;
+	private int maxActive = Integer.MAX_VALUE;
+	private long hotWaitMillis = 10;
+
+	public PoolSizeController( TenantDataSourceRegistry registry ) {
+		registries.add( registry );
+	}
+
+	public void addRegistry( TenantDataSourceRegistry registry ) {
+		registries.add( registry );
+	}
+
+	public void setMinActive( int minActive ) {
+		this.minActive = Math.max( minActive, 1 );
+	}
+
+	public void setMaxActive( int maxActive ) {
+		this.maxActive = maxActive;
+	}
+
+	public void setHotWaitMillis( long hotWaitMillis ) {
+		this.hotWaitMillis = hotWaitMillis;
+	}
+
+	public void addListener( PoolResizeListener listener ) {
+		listeners.add( listener );
+	}
+
+	public void adjust() {
+		long now = System.currentTimeMillis( );
+		Map<DataSourceResource, Sample> currentSamples = new IdentityHashMap<>( );
+
+		for ( TenantDataSourceRegistry registry : registries ) {
+			for ( Entry<String, DataSourceResource> entry : registry.getResources( ).entrySet( ) ) {
+				DataSourceResource resource = entry.getValue( );
+				Sample previous = samples.get( resource );
+				Sample current = new Sample( now, resource, previous );
+
+				currentSamples.put( resource, current );
+
+				// the first sample of a pool has nothing to compare with
+				if ( previous != null && now > previous.timestamp ) {
+					adjust( entry.getKey( ), resource, previous, current );
+				}
+			}
+		}
+
+		// pools closed since the last round are forgotten
+		samples = currentSamples;
+	}
+
+	private void adjust( String tenantId, DataSourceResource resource, Sample previous, Sample current ) {
+		PoolAdapter pool = resource.getPool( );
+
+		if ( pool == null || !pool.isStarted( ) ) {
+			return;
+		}
+
+		long borrows = current.borrows - previous.borrows;
+		double borrowsPerSecond = borrows * 1000d / ( current.timestamp - previous.timestamp );
+		double averageWaitMillis = borrows > 0 ? ( current.waitNanos - previous.waitNanos ) / 1000000d / borrows : 0;
+		int waitingThreads = pool.getWaitCount( );
+
+		int oldMaxActive = pool.getMaxActive( );
+		int oldMinIdle = pool.getMinIdle( );
+		int newMaxActive = oldMaxActive;
+		int newMinIdle = oldMinIdle;
+		int newMaxIdle = pool.getMaxIdle( );
+		Reason reason = null;
+
+		if ( waitingThreads > 0 || ( borrows > 0 && averageWaitMillis >= hotWaitMillis ) ) {
+			if ( oldMaxActive < maxActive ) {
+				reason = Reason.HOT;
+				newMaxActive = ( int ) Math.min( oldMaxActive * 2L, maxActive );
+				newMinIdle = Math.min( Math.max( oldMinIdle, pool.getActive( ) ), newMaxActive );
+				newMaxIdle = newMaxActive;
+			}
+		} else if ( borrows == 0 ) {
+			if ( oldMaxActive > minActive || oldMinIdle > 0 || newMaxIdle > 0 ) {
+				reason = Reason.COLD;
+				newMaxActive = Math.max( oldMaxActive / 2, minActive );
+				newMinIdle = 0;
+				newMaxIdle = 0;
+			}
+		} else if ( newMaxIdle == 0 && current.configuredMaxIdle > 0 ) {
+			reason = Reason.WARM;
+			newMaxIdle = current.configuredMaxIdle;
+		}
+
+		if ( reason != null ) {
+			// minIdle goes first when shrinking and last when growing, so it never exceeds maxActive in between
+			pool.setMinIdle( Math.min( newMinIdle, oldMinIdle ) );
+			pool.setMaxActive( newMaxActive );
+			pool.setMaxIdle( newMaxIdle );
+			pool.setMinIdle( newMinIdle );
+
+			PoolResizeEvent event = new PoolResizeEvent( tenantId, reason, borrowsPerSecond, averageWaitMillis, waitingThreads, oldMaxActive,
+					oldMinIdle, newMaxActive, newMinIdle, newMaxIdle );
+
+			LOG.debug( String.format( "adjust.%s=%s", tenantId, event ) );
+
+			for ( PoolResizeListener listener : listeners ) {
+				try {
+					listener.resized( event );
+				} catch ( Exception ex ) {
+					LOG.error( String.format( "adjust.%s=resize listener failed", tenantId ), ex );
+				}
+			}
+		}
+	}
+
+	private static class Sample {
+		private final long timestamp;
+		private final long borrows;
+		private final long waitNanos;
+		// the maxIdle of the pool before the first adjustment, restored when a cold pool warms up
+		private final int configuredMaxIdle;
+
+		public Sample( long timestamp, DataSourceResource resource, Sample previous ) {
+			this.timestamp = timestamp;
+			this.borrows = resource.getBorrowCount( );
+			this.waitNanos = resource.getBorrowWaitNanos( );
+
+			if ( previous != null ) {
+				this.configuredMaxIdle = previous.configuredMaxIdle;
+			} else {
+				PoolAdapter pool = resource.getPool( );
+
+				this.configuredMaxIdle = pool != null ? pool.getMaxIdle( ) : 0;
+			}
+		}
+	}
+
+}
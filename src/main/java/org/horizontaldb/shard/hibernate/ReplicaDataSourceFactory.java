@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+/*
+ * Builds the pools of the read replicas of a tenant. Replicas are numbered from zero, every tenant has the same number
+ * of replicas.
+ */
+public interface ReplicaDataSourceFactory {
+
+	int getReplicaCount();
+
+	DataSourceResource getReplicaDataSource( String tenantId, int replica );
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.hibernate.engine.jdbc.connections.spi.MultiTenantConnectionProvider;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.hibernate.service.spi.Stoppable;
+import org.horizontaldb.shard.ShardRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+/*
+ * Connection provider for schema-per-tenant deployments. Instead of a pool per tenant, the tenants living on the same
+ * database server borrow from one shared pool; the connection is switched to the schema of the tenant when it is
+ * handed out, and switched back to the default schema when it is returned. The server of a tenant is looked up by the
+ * ShardRouter. The shared pools live as long as the provider, so they are not registered with the conversations.
+ *
+ * The schema name is put into the statement as is, therefore only plain identifiers are accepted as tenant ids. A
+ * connection whose schema cannot be switched back is discarded instead of being returned to the pool, so it is never
+ * handed to another tenant.
+ *
+ * The provider is lazy: it is only built when `multiTenantConnectionProvider.beanName' selects it.
+ */
+@Lazy
+@Component( "schemaTenantConnectionProvider" )
+public class SchemaTenantConnectionProvider implements MultiTenantConnectionProvider, Stoppable {
+	private static final long serialVersionUID = -2958323473016425342L;
+	private static final Logger LOG = LoggerFactory.getLogger( SchemaTenantConnectionProvider.class );
+	private static final Pattern SCHEMA_NAME = Pattern.compile( "[A-Za-z_][A-Za-z0-9_]*" );
+
+	@Inject
+	private SharedDataSourceFactory dataSourceFactory;
+
+	@Inject
+	private ShardRouter shardRouter;
+
+	@Value( "#{dbProperties['multiTenantConnectionProvider.anyDataSourceTenantId']}" )
+	private String anyDataSourceTenantId;
+	// formatted with the server, e.g. jdbc:postgresql://%s/tenants
+	@Value( "#{dbProperties['schemaTenantConnectionProvider.serverUrlTemplate']}" )
+	private String serverUrlTemplate;
+	@Value( "#{dbProperties['schemaTenantConnectionProvider.setSchemaTemplate']}" )
+	private String setSchemaTemplate;
+	@Value( "#{dbProperties['schemaTenantConnectionProvider.defaultSchema']}" )
+	private String defaultSchema;
+
+	private final ConcurrentMap<String, DataSourceResource> serverDataSources = new ConcurrentHashMap<>( );
+
+	@Override
+	public Connection getAnyConnection() throws SQLException {
+		return getServerDataSource( anyDataSourceTenantId ).getConnection( );
+	}
+
+	@Override
+	public void releaseAnyConnection( Connection connection ) throws SQLException {
+		connection.close( );
+	}
+
+	@Override
+	public Connection getConnection( String tenantIdentifier ) throws SQLException {
+		String schema = getSchemaName( tenantIdentifier );
+
+		Connection retval = getServerDataSource( tenantIdentifier ).getConnection( );
+
+		try {
+			setSchema( retval, schema );
+		} catch ( SQLException | RuntimeException ex ) {
+			retval.close( );
+
+			throw ex;
+		}
+
+		return retval;
+	}
+
+	@Override
+	public void releaseConnection( String tenantIdentifier, Connection connection ) throws SQLException {
+		boolean reset = false;
+
+		try {
+			setSchema( connection, defaultSchema );
+
+			reset = true;
+		} finally {
+			if ( !reset ) {
+				discard( tenantIdentifier, connection );
+			}
+
+			connection.close( );
+		}
+	}
+
+	@Override
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	@Override
+	@SuppressWarnings( "rawtypes" )
+	public boolean isUnwrappableAs( Class unwrapType ) {
+		return MultiTenantConnectionProvider.class.equals( unwrapType ) || SchemaTenantConnectionProvider.class.isAssignableFrom( unwrapType );
+	}
+
+	@Override
+	@SuppressWarnings( "unchecked" )
+	public <T> T unwrap( Class<T> unwrapType ) {
+		if ( isUnwrappableAs( unwrapType ) ) {
+			return ( T ) this;
+		}
+
+		throw new UnknownUnwrapTypeException( unwrapType );
+	}
+
+	@Override
+	public void stop() {
+		for ( String server : serverDataSources.keySet( ) ) {
+			DataSourceResource resource = serverDataSources.remove( server );
+
+			if ( resource != null ) {
+				resource.close( );
+			}
+		}
+	}
+
+	private DataSource getServerDataSource( String tenantId ) {
+		String server = shardRouter.getServer( tenantId );
+
+		DataSourceResource resource = serverDataSources.get( server );
+
+		if ( resource == null ) {
+			// building the pool object is cheap, connections are only opened on first use
+			DataSourceResource created = dataSourceFactory.getSharedDataSource( String.format( serverUrlTemplate, server ) );
+
+			resource = serverDataSources.putIfAbsent( server, created );
+
+			if ( resource == null ) {
+				resource = created;
+			} else {
+				created.close( );
+			}
+		}
+
+		return resource.getDataSource( );
+	}
+
+	private String getSchemaName( String tenantId ) {
+		if ( tenantId == null || !SCHEMA_NAME.matcher( tenantId ).matches( ) ) {
+			throw new IllegalArgumentException( String.format( "tenant id [%s] is not a valid schema name", tenantId ) );
+		}
+
+		return tenantId;
+	}
+
+	/*
+	 * the Tomcat pool closes a discarded connection when it is returned, any other pool has the physical connection
+	 * closed under it
+	 */
+	private void discard( String tenantId, Connection connection ) {
+		try {
+			connection.unwrap( PooledConnection.class ).setDiscarded( true );
+		} catch ( SQLException ex ) {
+			try {
+				connection.unwrap( Connection.class ).close( );
+			} catch ( SQLException | RuntimeException closeEx ) {
+				LOG.warn( String.format( "discard.%s=failed to close the connection", tenantId ), closeEx );
+			}
+		}
+
+		LOG.warn( String.format( "discard.%s=connection discarded, the default schema could not be restored", tenantId ) );
+	}
+
+	private void setSchema( Connection connection, String schema ) throws SQLException {
+		try ( Statement statement = connection.createStatement( ) ) {
+			statement.execute( String.format( setSchemaTemplate, schema ) );
+		}
+
+		LOG.trace( String.format( "setSchema.%s=schema selected", schema ) );
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.horizontaldb.shard.hibernate.CircuitBreaker.State;
+
+/*
+ * The CircuitBreaker of each tenant, created on the first borrow of the tenant. The closed breakers of the tenants
+ * without a pool are dropped by prune, so only the tenants in use or failing are remembered.
+ */
+public class TenantCircuitBreakers {
+	private final int failureThreshold;
+	private final long openMillis;
+	private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>( );
+
+	public TenantCircuitBreakers( int failureThreshold, long openMillis ) {
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	public CircuitBreaker get( String tenantId ) {
+		CircuitBreaker retval = circuitBreakers.get( tenantId );
+
+		if ( retval == null ) {
+			CircuitBreaker created = new CircuitBreaker( failureThreshold, openMillis );
+
+			retval = circuitBreakers.putIfAbsent( tenantId, created );
+
+			if ( retval == null ) {
+				retval = created;
+			}
+		}
+
+		return retval;
+	}
+
+	/*
+	 * the state of the breakers which are not closed, by tenant
+	 */
+	public Map<String, State> getTrippedStates() {
+		Map<String, State> retval = new TreeMap<>( );
+
+		for ( Entry<String, CircuitBreaker> entry : circuitBreakers.entrySet( ) ) {
+			State state = entry.getValue( ).getState( );
+
+			if ( state != State.CLOSED ) {
+				retval.put( entry.getKey( ), state );
+			}
+		}
+
+		return retval;
+	}
+
+	/*
+	 * Drops the closed breakers without failures, except those of the given tenants. A borrow holding a breaker dropped
+	 * meanwhile records its outcome on the dropped one, which loses a single failure at most.
+	 */
+	public int prune( Set<String> pooledTenantIds ) {
+		int retval = 0;
+
+		for ( Entry<String, CircuitBreaker> entry : circuitBreakers.entrySet( ) ) {
+			CircuitBreaker circuitBreaker = entry.getValue( );
+
+			if ( !pooledTenantIds.contains( entry.getKey( ) ) && circuitBreaker.getState( ) == State.CLOSED
+					&& circuitBreaker.getConsecutiveFailures( ) == 0 && circuitBreakers.remove( entry.getKey( ), circuitBreaker ) ) {
+				retval++;
+			}
+		}
+
+		return retval;
+	}
+
+	public int size() {
+		return circuitBreakers.size( );
+	}
+
+	public void reset( String tenantId ) {
+		CircuitBreaker circuitBreaker = circuitBreakers.get( tenantId );
+
+		if ( circuitBreaker != null ) {
+			circuitBreaker.reset( );
+		}
+	}
+
+}
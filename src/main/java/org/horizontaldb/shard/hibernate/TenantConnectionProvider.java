@@ -16,22 +16,60 @@
 
 package org.horizontaldb.shard.hibernate;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import javax.sql.DataSource;
 
 import org.hibernate.engine.jdbc.connections.spi.AbstractDataSourceBasedMultiTenantConnectionProviderImpl;
 import org.hibernate.service.spi.Stoppable;
+import org.horizontaldb.shard.ConversationListener;
 import org.horizontaldb.shard.ConversationRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
+/*
+ * Lends the connections of the tenant pools to Hibernate. When the DataSourceFactory can build read replicas too,
+ * read only work - as flagged in the TenantContext - is spread over the replicas of the tenant, taking the replica
+ * with the fewest connections in use. A replica which fails to lend a connection is skipped in favour of the primary.
+ *
+ * Each tenant has a CircuitBreaker around the borrows from its primary pool. Once it opens, the borrows of the tenant
+ * fail right away instead of holding a request thread for `maxWait', until a probe borrow succeeds again. The closed
+ * breakers of the tenants without a primary pool are dropped every `timeBetweenEvictionRunsMillis'.
+ *
+ * When `healthCheckIntervalMillis' is set, the PoolHealthChecker validates the idle connections of the pools in the
+ * background, and the borrows from recently verified pools skip the validation query. A primary pool found dead trips
+ * the circuit breaker of its tenant.
+ *
+ * Pools can be warmed up in the background, so the first query of a tenant finds its pool ready: the pool of a client
+ * starting a conversation when `prewarmOnConversationStart' is set, and the pools of the `prewarmTenants' at startup.
+ *
+ * Stopping the provider is graceful: new borrows are refused right away, the connections in use are waited for up to
+ * `shutdownDrainMillis', then the pools are closed by `shutdownParallelism' threads.
+ *
+ * The metrics of the pools are published in JMX under `jmxObjectName', unless it is empty.
+ *
+ * The provider is lazy: it is only built - and its threads started - when `multiTenantConnectionProvider.beanName'
+ * selects it for the session factory.
+ */
+@Lazy
 @Component( "defaultTenantConnectionProvider" )
-public class TenantConnectionProvider extends AbstractDataSourceBasedMultiTenantConnectionProviderImpl implements Stoppable {
+public class TenantConnectionProvider extends AbstractDataSourceBasedMultiTenantConnectionProviderImpl implements Stoppable, ConversationListener {
 	private static final long serialVersionUID = 8458388188894077307L;
 	private static final Logger LOG = LoggerFactory.getLogger( TenantConnectionProvider.class );
 
@@ -41,71 +79,568 @@ public class TenantConnectionProvider extends AbstractDataSourceBasedMultiTenant
 	@Inject
 	private DataSourceFactory dataSourceFactory;
 
+	@Inject
+	private TenantContext tenantContext;
+
 	@Value( "#{dbProperties['multiTenantConnectionProvider.anyDataSourceTenantId']}" )
 	private String anyDataSourceTenantId;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.maxOpenDataSources']}" )
+	private int maxOpenDataSources;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.dataSourceIdleTimeoutMillis']}" )
+	private long dataSourceIdleTimeoutMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.timeBetweenEvictionRunsMillis']}" )
+	private long timeBetweenEvictionRunsMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.dataSourceReleaseGracePeriodMillis']}" )
+	private long dataSourceReleaseGracePeriodMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.maxConnections']}" )
+	private int maxConnections;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.connectionBudgetMaxWaitMillis']}" )
+	private long connectionBudgetMaxWaitMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.poolSizingIntervalMillis']}" )
+	private long poolSizingIntervalMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.poolSizingHotWaitMillis']}" )
+	private long poolSizingHotWaitMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.poolSizingMinActive']}" )
+	private int poolSizingMinActive;
+	@Value( "#{dbProperties['tomcatPooledDataSource.maxActiveLimit']}" )
+	private int poolSizingMaxActive;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.circuitBreakerFailureThreshold']}" )
+	private int circuitBreakerFailureThreshold;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.circuitBreakerOpenMillis']}" )
+	private long circuitBreakerOpenMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.healthCheckIntervalMillis']}" )
+	private long healthCheckIntervalMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.healthCheckBatchSize']}" )
+	private int healthCheckBatchSize;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.healthCheckMaxAgeMillis']}" )
+	private long healthCheckMaxAgeMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.prewarmOnConversationStart']}" )
+	private boolean prewarmOnConversationStart;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.prewarmTenants']}" )
+	private String prewarmTenants;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.prewarmParallelism']}" )
+	private int prewarmParallelism;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.prewarmQueueSize']}" )
+	private int prewarmQueueSize;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.shutdownDrainMillis']}" )
+	private long shutdownDrainMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.shutdownParallelism']}" )
+	private int shutdownParallelism;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.shutdownTimeoutMillis']}" )
+	private long shutdownTimeoutMillis;
+	@Value( "#{dbProperties['multiTenantConnectionProvider.jmxObjectName']}" )
+	private String jmxObjectName;
 
-	private final Object lock = new Object( );
-	private Map<String, DataSourceResource> dataSourceMap = new HashMap<>( );
+	private TenantDataSourceRegistry dataSourceRegistry;
+	private TenantDataSourceRegistry[] replicaRegistries = new TenantDataSourceRegistry[0];
+	private final AtomicInteger replicaCounter = new AtomicInteger( );
+	private ConnectionBudget connectionBudget;
+	private TenantCircuitBreakers circuitBreakers;
+	private PoolHealthChecker healthChecker;
+	private ConnectionProviderMetrics metrics;
+	private PoolSizeController poolSizeController;
+	private ScheduledExecutorService maintenanceExecutor;
+	private ThreadPoolExecutor prewarmExecutor;
+	private volatile boolean stopping;
+	private final AtomicInteger connectionsInUse = new AtomicInteger( );
+	private final Object drainMonitor = new Object( );
 
-	@Override
-	public void stop() {
-		synchronized ( lock ) {
-			if ( dataSourceMap != null ) {
-				for ( String tenantId : dataSourceMap.keySet( ) ) {
+	@PostConstruct
+	public void init() {
+		connectionBudget = new ConnectionBudget( maxConnections, connectionBudgetMaxWaitMillis );
+		circuitBreakers = new TenantCircuitBreakers( circuitBreakerFailureThreshold, circuitBreakerOpenMillis );
+
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory( "tenant-datasource-maintenance-" );
+		threadFactory.setDaemon( true );
+
+		maintenanceExecutor = Executors.newSingleThreadScheduledExecutor( threadFactory );
+
+		dataSourceRegistry = createRegistry( dataSourceFactory );
+
+		if ( dataSourceFactory instanceof ReplicaDataSourceFactory ) {
+			final ReplicaDataSourceFactory replicaFactory = ( ReplicaDataSourceFactory ) dataSourceFactory;
+
+			replicaRegistries = new TenantDataSourceRegistry[replicaFactory.getReplicaCount( )];
+
+			for ( int i = 0; i < replicaRegistries.length; i++ ) {
+				final int replica = i;
+
+				replicaRegistries[i] = createRegistry( new DataSourceFactory( ) {
+
+					@Override
+					public DataSourceResource getDataSource( String tenantId ) {
+						return replicaFactory.getReplicaDataSource( tenantId, replica );
+					}
+				} );
+			}
+		}
+
+		healthChecker = new PoolHealthChecker( healthCheckBatchSize, healthCheckMaxAgeMillis );
+		healthChecker.addRegistry( dataSourceRegistry, circuitBreakers );
+
+		metrics = new ConnectionProviderMetrics( connectionBudget, circuitBreakers, healthChecker );
+		metrics.addRegistry( "primary", dataSourceRegistry );
+		metrics.setConversationRegistry( registry );
+
+		for ( int i = 0; i < replicaRegistries.length; i++ ) {
+			healthChecker.addRegistry( replicaRegistries[i] );
+			metrics.addRegistry( "replica-" + i, replicaRegistries[i] );
+		}
+
+		if ( StringUtils.hasText( jmxObjectName ) ) {
+			metrics.register( jmxObjectName );
+		}
+
+		if ( dataSourceIdleTimeoutMillis > 0 && timeBetweenEvictionRunsMillis > 0 ) {
+			maintenanceExecutor.scheduleWithFixedDelay( new Runnable( ) {
+
+				@Override
+				public void run() {
 					try {
-						releaseResource( tenantId );
+						dataSourceRegistry.evictIdle( );
+
+						for ( TenantDataSourceRegistry replicaRegistry : replicaRegistries ) {
+							replicaRegistry.evictIdle( );
+						}
 					} catch ( Exception ex ) {
-						LOG.error( String.format( "releaseResource.%s=could not release dataSource [%s]", tenantId ), ex );
+						LOG.error( "evictIdle=could not evict idle dataSources", ex );
 					}
 				}
+			}, timeBetweenEvictionRunsMillis, timeBetweenEvictionRunsMillis, TimeUnit.MILLISECONDS );
+		}
 
-				dataSourceMap = null;
-			}
+		if ( timeBetweenEvictionRunsMillis > 0 ) {
+			maintenanceExecutor.scheduleWithFixedDelay( new Runnable( ) {
+
+				@Override
+				public void run() {
+					try {
+						circuitBreakers.prune( dataSourceRegistry.getResources( ).keySet( ) );
+					} catch ( Exception ex ) {
+						LOG.error( "prune=could not prune circuit breakers", ex );
+					}
+				}
+			}, timeBetweenEvictionRunsMillis, timeBetweenEvictionRunsMillis, TimeUnit.MILLISECONDS );
+		}
+
+		if ( healthCheckIntervalMillis > 0 ) {
+			maintenanceExecutor.scheduleWithFixedDelay( new Runnable( ) {
+
+				@Override
+				public void run() {
+					try {
+						healthChecker.check( );
+					} catch ( Exception ex ) {
+						LOG.error( "check=could not check dataSources", ex );
+					}
+				}
+			}, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS );
+		}
+
+		poolSizeController = new PoolSizeController( dataSourceRegistry );
+
+		for ( TenantDataSourceRegistry replicaRegistry : replicaRegistries ) {
+			poolSizeController.addRegistry( replicaRegistry );
+		}
+
+		poolSizeController.setMinActive( poolSizingMinActive );
+		poolSizeController.setMaxActive( poolSizingMaxActive );
+		poolSizeController.setHotWaitMillis( poolSizingHotWaitMillis );
+
+		if ( poolSizingIntervalMillis > 0 && poolSizingMaxActive > 0 ) {
+			maintenanceExecutor.scheduleWithFixedDelay( new Runnable( ) {
+
+				@Override
+				public void run() {
+					try {
+						poolSizeController.adjust( );
+					} catch ( Exception ex ) {
+						LOG.error( "adjust=could not resize dataSources", ex );
+					}
+				}
+			}, poolSizingIntervalMillis, poolSizingIntervalMillis, TimeUnit.MILLISECONDS );
+		}
+
+		CustomizableThreadFactory prewarmThreadFactory = new CustomizableThreadFactory( "tenant-datasource-prewarm-" );
+		prewarmThreadFactory.setDaemon( true );
+
+		int prewarmThreads = Math.max( prewarmParallelism, 1 );
+
+		// warming up is an optimization, requests beyond the queue are dropped
+		prewarmExecutor = new ThreadPoolExecutor( prewarmThreads, prewarmThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>( Math.max(
+				prewarmQueueSize, 1 ) ), prewarmThreadFactory, new ThreadPoolExecutor.DiscardPolicy( ) );
+		prewarmExecutor.allowCoreThreadTimeOut( true );
+
+		if ( prewarmOnConversationStart ) {
+			registry.addListener( this );
+		}
+
+		for ( String tenantId : StringUtils.commaDelimitedListToStringArray( StringUtils.trimAllWhitespace( prewarmTenants ) ) ) {
+			prewarm( tenantId, false );
 		}
 	}
 
 	@Override
-	protected DataSource selectAnyDataSource() {
-		DataSource retval = null;
+	public void stop() {
+		stopping = true;
+
+		maintenanceExecutor.shutdownNow( );
+		prewarmExecutor.shutdownNow( );
+
+		metrics.unregister( );
 
-		synchronized ( lock ) {
-			retval = selectDataSource( anyDataSourceTenantId );
+		awaitDrain( );
+
+		releaseAll( );
+
+		LOG.debug( String.format( "stop=dataSource statistics %s", dataSourceRegistry.getStatistics( ) ) );
+		LOG.debug( String.format( "stop=connection budget %s", connectionBudget ) );
+		LOG.debug( String.format( "stop=metrics %s", metrics ) );
+	}
+
+	public TenantDataSourceStatistics getStatistics() {
+		return dataSourceRegistry.getStatistics( );
+	}
+
+	public ConnectionBudget getConnectionBudget() {
+		return connectionBudget;
+	}
+
+	public TenantCircuitBreakers getCircuitBreakers() {
+		return circuitBreakers;
+	}
+
+	public ConnectionProviderMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void addPoolResizeListener( PoolResizeListener listener ) {
+		poolSizeController.addListener( listener );
+	}
+
+	@Override
+	public void conversationStarted( String clientId ) {
+		prewarm( clientId, true );
+	}
+
+	@Override
+	public Connection getAnyConnection() throws SQLException {
+		acquireBorrow( anyDataSourceTenantId );
+
+		try {
+			return getConnection( dataSourceRegistry, anyDataSourceTenantId );
+		} catch ( SQLException | RuntimeException ex ) {
+			releaseBorrow( );
+
+			throw ex;
 		}
+	}
 
-		return retval;
+	@Override
+	public void releaseAnyConnection( Connection connection ) throws SQLException {
+		try {
+			super.releaseAnyConnection( connection );
+		} finally {
+			releaseBorrow( );
+		}
+	}
+
+	@Override
+	public Connection getConnection( String tenantIdentifier ) throws SQLException {
+		acquireBorrow( tenantIdentifier );
+
+		try {
+			Connection retval = null;
+
+			if ( replicaRegistries.length > 0 && tenantContext.isReadOnly( ) ) {
+				retval = getReplicaConnection( tenantIdentifier );
+			}
+
+			if ( retval == null ) {
+				retval = getPrimaryConnection( tenantIdentifier );
+			}
+
+			return retval;
+		} catch ( SQLException | RuntimeException ex ) {
+			releaseBorrow( );
+
+			throw ex;
+		}
+	}
+
+	@Override
+	public void releaseConnection( String tenantIdentifier, Connection connection ) throws SQLException {
+		try {
+			super.releaseConnection( tenantIdentifier, connection );
+		} finally {
+			releaseBorrow( );
+		}
+	}
+
+	@Override
+	protected DataSource selectAnyDataSource() {
+		return selectDataSource( anyDataSourceTenantId );
 	}
 
 	@Override
 	protected DataSource selectDataSource( String tenantIdentifier ) {
-		DataSource retval = null;
+		return selectResource( dataSourceRegistry, tenantIdentifier ).getDataSource( );
+	}
+
+	/*
+	 * Builds the pool of the tenant on the prewarm executor. A pool warmed up for a conversation is registered with the
+	 * conversation, as if the first query of the conversation built it. Tenants behind an open circuit breaker are skipped.
+	 */
+	private void prewarm( final String tenantId, final boolean conversation ) {
+		if ( !stopping && circuitBreakers.get( tenantId ).getState( ) != CircuitBreaker.State.OPEN ) {
+			prewarmExecutor.execute( new Runnable( ) {
+
+				@Override
+				public void run() {
+					try {
+						DataSourceResource resource = dataSourceRegistry.useResource( tenantId );
 
-		synchronized ( lock ) {
-			DataSourceResource resource = dataSourceMap.get( tenantIdentifier );
+						try {
+							if ( conversation && registry.hasConversation( tenantId ) ) {
+								registry.addResource( tenantId, resource );
+							}
 
-			if ( resource == null || resource.getDataSource( ) == null ) {
-				resource = dataSourceFactory.getDataSource( tenantIdentifier );
+							resource.warmUp( );
+						} finally {
+							resource.endUse( );
+						}
 
-				dataSourceMap.put( tenantIdentifier, resource );
+						LOG.debug( String.format( "prewarm.%s=dataSource warmed up", tenantId ) );
+					} catch ( SQLException | RuntimeException ex ) {
+						LOG.warn( String.format( "prewarm.%s=could not warm up dataSource", tenantId ), ex );
+					}
+				}
+			} );
+		}
+	}
+
+	/*
+	 * the connection is counted before the stopping flag is checked, so the drain cannot miss a borrow under way
+	 */
+	private void acquireBorrow( String tenantId ) throws SQLException {
+		connectionsInUse.incrementAndGet( );
+
+		try {
+			if ( stopping ) {
+				throw new SQLTransientConnectionException( "the connection provider is stopping, no more connections are lent" );
 			}
 
-			retval = resource.getDataSource( );
+			connectionBudget.acquire( tenantId );
+		} catch ( SQLException ex ) {
+			releaseConnectionInUse( );
+
+			throw ex;
+		}
+	}
+
+	private void releaseBorrow() {
+		connectionBudget.release( );
+
+		releaseConnectionInUse( );
+	}
+
+	private void releaseConnectionInUse() {
+		if ( connectionsInUse.decrementAndGet( ) == 0 && stopping ) {
+			synchronized ( drainMonitor ) {
+				drainMonitor.notifyAll( );
+			}
+		}
+	}
+
+	private void awaitDrain() {
+		long deadline = System.currentTimeMillis( ) + shutdownDrainMillis;
+
+		synchronized ( drainMonitor ) {
+			long remaining = shutdownDrainMillis;
+
+			while ( connectionsInUse.get( ) > 0 && remaining > 0 ) {
+				try {
+					drainMonitor.wait( remaining );
+				} catch ( InterruptedException ex ) {
+					Thread.currentThread( ).interrupt( );
+
+					break;
+				}
+
+				remaining = deadline - System.currentTimeMillis( );
+			}
+		}
+
+		if ( connectionsInUse.get( ) > 0 ) {
+			LOG.warn( String.format( "awaitDrain=closing the pools with [%s] connections still in use", connectionsInUse.get( ) ) );
+		}
+	}
+
+	private void releaseAll() {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory( "tenant-datasource-shutdown-" );
+		threadFactory.setDaemon( true );
+
+		ExecutorService shutdownExecutor = Executors.newFixedThreadPool( Math.max( shutdownParallelism, 1 ), threadFactory );
+
+		try {
+			dataSourceRegistry.releaseAll( shutdownExecutor );
+
+			for ( TenantDataSourceRegistry replicaRegistry : replicaRegistries ) {
+				replicaRegistry.releaseAll( shutdownExecutor );
+			}
+
+			shutdownExecutor.shutdown( );
+
+			if ( !shutdownExecutor.awaitTermination( shutdownTimeoutMillis > 0 ? shutdownTimeoutMillis : Long.MAX_VALUE, TimeUnit.MILLISECONDS ) ) {
+				LOG.warn( String.format( "releaseAll=pools are still closing after [%s] ms", shutdownTimeoutMillis ) );
+			}
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread( ).interrupt( );
+		} finally {
+			shutdownExecutor.shutdownNow( );
+		}
+	}
+
+	private TenantDataSourceRegistry createRegistry( DataSourceFactory factory ) {
+		TenantDataSourceRegistry retval = new TenantDataSourceRegistry( factory );
 
+		retval.setMaxOpenDataSources( maxOpenDataSources );
+		retval.setIdleTimeoutMillis( dataSourceIdleTimeoutMillis );
+		retval.setReleaseGracePeriod( dataSourceReleaseGracePeriodMillis, maintenanceExecutor );
+
+		return retval;
+	}
+
+	private DataSourceResource selectResource( TenantDataSourceRegistry tenantRegistry, String tenantIdentifier ) {
+		DataSourceResource retval = tenantRegistry.getResource( tenantIdentifier );
+
+		registry.addResource( tenantIdentifier, retval );
+
+		return retval;
+	}
+
+	/*
+	 * the pool is in use from the lookup until the connection is lent, so no eviction closes it in between
+	 */
+	private Connection getConnection( TenantDataSourceRegistry tenantRegistry, String tenantIdentifier ) throws SQLException {
+		DataSourceResource resource = tenantRegistry.useResource( tenantIdentifier );
+
+		try {
 			registry.addResource( tenantIdentifier, resource );
+
+			return getConnection( resource );
+		} finally {
+			resource.endUse( );
+		}
+	}
+
+	private Connection getConnection( DataSourceResource resource ) throws SQLException {
+		long start = System.nanoTime( );
+
+		Connection retval = resource.getDataSource( ).getConnection( );
+
+		long waitNanos = System.nanoTime( ) - start;
+
+		resource.recordBorrow( waitNanos );
+		metrics.recordBorrow( waitNanos );
+
+		PoolAdapter pool = resource.getPool( );
+
+		// only the borrows the pool would have validated count, Tomcat skips those within its validationInterval anyway
+		if ( resource.isBorrowValidationSuspended( ) && pool != null && pool.isBorrowValidationDue( retval ) ) {
+			metrics.recordSavedBorrowValidation( );
+		}
+
+		return retval;
+	}
+
+	private Connection getPrimaryConnection( String tenantIdentifier ) throws SQLException {
+		CircuitBreaker circuitBreaker = circuitBreakers.get( tenantIdentifier );
+
+		if ( !circuitBreaker.allowRequest( ) ) {
+			throw new SQLTransientConnectionException( String.format( "the circuit breaker of [%s] is open, its database is considered down",
+					tenantIdentifier ) );
+		}
+
+		try {
+			Connection retval = getConnection( dataSourceRegistry, tenantIdentifier );
+
+			if ( circuitBreaker.recordSuccess( ) ) {
+				LOG.info( String.format( "getPrimaryConnection.%s=circuit breaker closed", tenantIdentifier ) );
+			}
+
+			return retval;
+		} catch ( Throwable ex ) {
+			// an Error must fail the probe too, or a half open breaker would never let another borrow through
+			if ( circuitBreaker.recordFailure( ) ) {
+				LOG.warn( String.format( "getPrimaryConnection.%s=circuit breaker opened for [%s] ms", tenantIdentifier, circuitBreakerOpenMillis ), ex );
+			}
+
+			throw ex;
+		}
+	}
+
+	private Connection getReplicaConnection( String tenantIdentifier ) {
+		Connection retval = null;
+		DataSourceResource replica = null;
+
+		try {
+			replica = selectReplica( tenantIdentifier );
+
+			retval = getConnection( replica );
+		} catch ( SQLException | RuntimeException ex ) {
+			LOG.warn( String.format( "getReplicaConnection.%s=replica [%s] failed, falling back to the primary", tenantIdentifier, replica ), ex );
+		} finally {
+			if ( replica != null ) {
+				replica.endUse( );
+			}
 		}
 
 		return retval;
 	}
 
-	private void releaseResource( String tenantIdentifier ) {
-		DataSourceResource resource = dataSourceMap.get( tenantIdentifier );
+	/*
+	 * The replica with the fewest connections in use; the scan starts at a rotating offset, so ties are spread evenly.
+	 * The replica returned is in use, the caller ends the use.
+	 */
+	private DataSourceResource selectReplica( String tenantIdentifier ) {
+		int start = ( replicaCounter.getAndIncrement( ) & Integer.MAX_VALUE ) % replicaRegistries.length;
+		DataSourceResource retval = null;
+		int fewestActive = Integer.MAX_VALUE;
 
-		if ( resource != null ) {
-			resource.release( );
+		try {
+			for ( int i = 0; i < replicaRegistries.length; i++ ) {
+				DataSourceResource candidate = replicaRegistries[( start + i ) % replicaRegistries.length].useResource( tenantIdentifier );
+				int active = getActive( candidate );
 
-			LOG.debug( String.format( "releaseResource.%s=released datasource", tenantIdentifier ) );
-		} else {
-			LOG.debug( String.format( "releaseResource.%s=no datasource was found", tenantIdentifier ) );
+				if ( active < fewestActive ) {
+					if ( retval != null ) {
+						retval.endUse( );
+					}
+
+					retval = candidate;
+					fewestActive = active;
+				} else {
+					candidate.endUse( );
+				}
+			}
+
+			registry.addResource( tenantIdentifier, retval );
+		} catch ( RuntimeException ex ) {
+			if ( retval != null ) {
+				retval.endUse( );
+			}
+
+			throw ex;
 		}
+
+		return retval;
+	}
+
+	private int getActive( DataSourceResource resource ) {
+		PoolAdapter pool = resource.getPool( );
+
+		return pool != null ? pool.getActive( ) : 0;
 	}
 
 }
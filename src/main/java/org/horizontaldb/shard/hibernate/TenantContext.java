@@ -22,6 +22,7 @@ import org.springframework.stereotype.Component;
 @Component( "defaultTenantContext" )
 public class TenantContext implements CurrentTenantIdentifierResolver {
 	private ThreadLocal<String> currentTenantId = new ThreadLocal<>( );
+	private ThreadLocal<Boolean> readOnly = new ThreadLocal<>( );
 
 	public String getCurrentTenantId() {
 		return currentTenantId.get( );
@@ -31,6 +32,21 @@ public class TenantContext implements CurrentTenantIdentifierResolver {
 		currentTenantId.set( tenantId );
 	}
 
+	/*
+	 * connections opened for read only work may be served by the read replicas of the tenant
+	 */
+	public boolean isReadOnly() {
+		return Boolean.TRUE.equals( readOnly.get( ) );
+	}
+
+	public void setReadOnly( boolean readOnly ) {
+		if ( readOnly ) {
+			this.readOnly.set( Boolean.TRUE );
+		} else {
+			this.readOnly.remove( );
+		}
+	}
+
 	@Override
 	public String resolveCurrentTenantIdentifier() {
 		return getCurrentTenantId( );
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Holds the DataSourceResource of each tenant. Looking up the pool of a known tenant does not lock; the pool of a new
+ * tenant is built exactly once, by the first caller, while concurrent callers for the same tenant wait on that
+ * particular creation only. Callers asking for other tenants are never blocked by it.
+ *
+ * The number of open pools can be capped, in which case the least recently used pool which is neither lending
+ * connections nor held by a conversation is closed to make room for a new one. Such pools are also closed by
+ * `evictIdle' once they have not been used for longer than the idle timeout. An evicted pool is simply rebuilt by the
+ * next lookup of its tenant. A limit or timeout of zero means unbounded.
+ *
+ * A pool held by conversations is never evicted. When the last conversation releases a pool, it is kept open for the
+ * release grace period, so a client logging on again shortly finds a warm pool. A grace period of zero closes the pool
+ * as soon as it is released. A released pool which is still lending connections or in use is closed by a retry every
+ * `releaseRetryMillis', until it is idle or held by a conversation again.
+ */
+public class TenantDataSourceRegistry {
+	private static final Logger LOG = LoggerFactory.getLogger( TenantDataSourceRegistry.class );
+
+	private final DataSourceFactory dataSourceFactory;
+	private int maxOpenDataSources;
+	private long idleTimeoutMillis;
+	private long releaseGracePeriodMillis;
+	private long releaseRetryMillis = 1000;
+	private ScheduledExecutorService scheduler;
+	private final ConcurrentMap<String, DataSourceEntry> dataSourceMap = new ConcurrentHashMap<>( );
+	private final Set<String> evictedTenants = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>( ) );
+	private final TenantDataSourceStatistics statistics = new TenantDataSourceStatistics( );
+
+	public TenantDataSourceRegistry( DataSourceFactory dataSourceFactory ) {
+		this.dataSourceFactory = dataSourceFactory;
+	}
+
+	public void setMaxOpenDataSources( int maxOpenDataSources ) {
+		this.maxOpenDataSources = maxOpenDataSources;
+	}
+
+	public void setIdleTimeoutMillis( long idleTimeoutMillis ) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/*
+	 * the scheduler runs the deferred releases and their retries, it is required for a non-zero grace period, and
+	 * without it a pool released while it is lending connections is left open until it is evicted
+	 */
+	public void setReleaseGracePeriod( long releaseGracePeriodMillis, ScheduledExecutorService scheduler ) {
+		this.releaseGracePeriodMillis = releaseGracePeriodMillis;
+		this.scheduler = scheduler;
+	}
+
+	public void setReleaseRetryMillis( long releaseRetryMillis ) {
+		this.releaseRetryMillis = releaseRetryMillis;
+	}
+
+	public DataSourceResource getResource( String tenantId ) {
+		return getResource( tenantId, false );
+	}
+
+	/*
+	 * Looks the pool up and marks it in use, so no eviction closes it until the caller calls `endUse' on it; a pool
+	 * retired by an eviction meanwhile is replaced with a new one.
+	 */
+	public DataSourceResource useResource( String tenantId ) {
+		return getResource( tenantId, true );
+	}
+
+	/*
+	 * Closes the pools which were not looked up within the idle timeout. Pools still lending connections or held by
+	 * conversations are kept.
+	 */
+	public void evictIdle() {
+		if ( idleTimeoutMillis > 0 ) {
+			long idleSince = System.currentTimeMillis( ) - idleTimeoutMillis;
+
+			for ( Entry<String, DataSourceEntry> entry : dataSourceMap.entrySet( ) ) {
+				if ( entry.getValue( ).getLastAccess( ) < idleSince ) {
+					evict( entry.getKey( ), entry.getValue( ) );
+				}
+			}
+		}
+	}
+
+	public void releaseAll() {
+		releaseAll( new Executor( ) {
+
+			@Override
+			public void execute( Runnable command ) {
+				command.run( );
+			}
+		} );
+	}
+
+	/*
+	 * Closes every pool on the given executor, so the pools can be closed in parallel. The pools are removed from the
+	 * registry right away, the caller waits for the executor to finish the closing.
+	 */
+	public void releaseAll( Executor executor ) {
+		for ( Entry<String, DataSourceEntry> entry : dataSourceMap.entrySet( ) ) {
+			final String tenantId = entry.getKey( );
+			final DataSourceEntry dataSourceEntry = entry.getValue( );
+
+			if ( dataSourceMap.remove( tenantId, dataSourceEntry ) ) {
+				executor.execute( new Runnable( ) {
+
+					@Override
+					public void run() {
+						release( tenantId, dataSourceEntry );
+					}
+				} );
+			}
+		}
+	}
+
+	/*
+	 * snapshot of the pools which are built and open
+	 */
+	public Map<String, DataSourceResource> getResources() {
+		Map<String, DataSourceResource> retval = new HashMap<>( );
+
+		for ( Entry<String, DataSourceEntry> entry : dataSourceMap.entrySet( ) ) {
+			DataSourceResource resource = entry.getValue( ).getIfDone( );
+
+			if ( resource != null && resource.getDataSource( ) != null ) {
+				retval.put( entry.getKey( ), resource );
+			}
+		}
+
+		return retval;
+	}
+
+	public TenantDataSourceStatistics getStatistics() {
+		return statistics;
+	}
+
+	public int size() {
+		return dataSourceMap.size( );
+	}
+
+	private DataSourceResource getResource( String tenantId, boolean use ) {
+		DataSourceResource retval = null;
+
+		while ( retval == null ) {
+			DataSourceEntry entry = dataSourceMap.get( tenantId );
+
+			if ( entry == null ) {
+				entry = createEntry( tenantId );
+			} else {
+				statistics.hit( );
+			}
+
+			entry.touch( );
+
+			DataSourceResource resource = awaitResource( tenantId, entry );
+
+			if ( use ? resource.tryUse( ) : !resource.isRetired( ) ) {
+				if ( resource.getDataSource( ) != null ) {
+					retval = resource;
+				} else if ( use ) {
+					resource.endUse( );
+				}
+			}
+
+			if ( retval == null ) {
+				// the resource has been retired or released since it was registered, so it is replaced with a new one
+				dataSourceMap.remove( tenantId, entry );
+			}
+		}
+
+		return retval;
+	}
+
+	private DataSourceEntry createEntry( String tenantId ) {
+		DataSourceEntry retval = new DataSourceEntry( tenantId );
+
+		DataSourceEntry existing = dataSourceMap.putIfAbsent( tenantId, retval );
+
+		if ( existing == null ) {
+			statistics.miss( );
+
+			if ( evictedTenants.remove( tenantId ) ) {
+				statistics.recreation( );
+			}
+
+			retval.create( );
+
+			evictLeastRecentlyUsed( retval );
+		} else {
+			statistics.hit( );
+
+			retval = existing;
+		}
+
+		return retval;
+	}
+
+	/*
+	 * Linear scan for the eldest idle pool; it only happens when a new pool has just been built, which is far more
+	 * expensive than walking the map.
+	 */
+	private void evictLeastRecentlyUsed( DataSourceEntry created ) {
+		while ( maxOpenDataSources > 0 && dataSourceMap.size( ) > maxOpenDataSources ) {
+			String eldestTenantId = null;
+			DataSourceEntry eldest = null;
+
+			for ( Entry<String, DataSourceEntry> entry : dataSourceMap.entrySet( ) ) {
+				DataSourceEntry candidate = entry.getValue( );
+
+				if ( candidate != created && candidate.isIdle( ) && ( eldest == null || candidate.getLastAccess( ) < eldest.getLastAccess( ) ) ) {
+					eldestTenantId = entry.getKey( );
+					eldest = candidate;
+				}
+			}
+
+			if ( eldest == null ) {
+				LOG.warn( String.format( "evictLeastRecentlyUsed=all of the [%s] open dataSources are in use, limit is [%s]", dataSourceMap.size( ),
+						maxOpenDataSources ) );
+
+				break;
+			}
+
+			if ( !evict( eldestTenantId, eldest ) ) {
+				// taken into use since the scan, the limit is enforced again by the next creation
+				break;
+			}
+		}
+	}
+
+	/*
+	 * The pool is retired before it is removed, a lookup finding it retired meanwhile removes it itself and replaces it.
+	 * Retiring succeeds only once, so whoever retires the pool closes it.
+	 */
+	private boolean evict( String tenantId, DataSourceEntry entry ) {
+		boolean retval = entry.retire( );
+
+		if ( retval ) {
+			dataSourceMap.remove( tenantId, entry );
+
+			evictedTenants.add( tenantId );
+
+			statistics.eviction( );
+
+			release( tenantId, entry );
+		}
+
+		return retval;
+	}
+
+	private void release( String tenantId, DataSourceEntry entry ) {
+		try {
+			awaitResource( tenantId, entry ).close( );
+
+			statistics.close( );
+
+			LOG.debug( String.format( "releaseResource.%s=released datasource", tenantId ) );
+		} catch ( Exception ex ) {
+			LOG.error( String.format( "releaseResource.%s=could not release dataSource", tenantId ), ex );
+		}
+	}
+
+	private DataSourceResource awaitResource( String tenantId, DataSourceEntry entry ) {
+		DataSourceResource retval = null;
+
+		try {
+			retval = entry.get( );
+		} catch ( InterruptedException ex ) {
+			Thread.currentThread( ).interrupt( );
+
+			throw new IllegalStateException( String.format( "interrupted while waiting for the dataSource of [%s]", tenantId ), ex );
+		} catch ( ExecutionException ex ) {
+			// a failed creation must not stick, the next caller should try again
+			dataSourceMap.remove( tenantId, entry );
+
+			Throwable cause = ex.getCause( );
+
+			if ( cause instanceof RuntimeException ) {
+				throw ( RuntimeException ) cause;
+			} else if ( cause instanceof Error ) {
+				throw ( Error ) cause;
+			}
+
+			throw new IllegalStateException( cause );
+		}
+
+		return retval;
+	}
+
+	/*
+	 * Called when the last conversation released the pool. The release task double-checks that nobody acquired the
+	 * pool again and the grace period has really passed since the latest release, earlier tasks are left to no-op.
+	 */
+	private void scheduleRelease( final String tenantId, final DataSourceEntry entry ) {
+		entry.unreferenced( );
+
+		if ( releaseGracePeriodMillis > 0 && scheduler != null ) {
+			scheduleRelease( tenantId, entry, releaseGracePeriodMillis );
+
+			LOG.debug( String.format( "scheduleRelease.%s=dataSource released in [%s] ms", tenantId, releaseGracePeriodMillis ) );
+		} else if ( !evict( tenantId, entry ) ) {
+			retryRelease( tenantId, entry );
+		}
+	}
+
+	private void scheduleRelease( final String tenantId, final DataSourceEntry entry, long delayMillis ) {
+		try {
+			scheduler.schedule( new Runnable( ) {
+
+				@Override
+				public void run() {
+					if ( entry.isUnreferencedFor( releaseGracePeriodMillis ) && !evict( tenantId, entry ) ) {
+						retryRelease( tenantId, entry );
+					}
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS );
+		} catch ( RejectedExecutionException ex ) {
+			// the registry is shutting down, its pools are closed by releaseAll
+			LOG.debug( String.format( "scheduleRelease.%s=release not scheduled, the scheduler is shut down", tenantId ) );
+		}
+	}
+
+	/*
+	 * the pool was busy when it was released, it is tried again unless it was evicted or replaced meanwhile
+	 */
+	private void retryRelease( String tenantId, DataSourceEntry entry ) {
+		if ( dataSourceMap.get( tenantId ) == entry ) {
+			if ( scheduler != null ) {
+				scheduleRelease( tenantId, entry, releaseRetryMillis );
+
+				LOG.debug( String.format( "retryRelease.%s=dataSource busy, released again in [%s] ms", tenantId, releaseRetryMillis ) );
+			} else {
+				LOG.warn( String.format( "retryRelease.%s=dataSource busy, left open without a scheduler", tenantId ) );
+			}
+		}
+	}
+
+	private class DataSourceEntry implements DataSourceResource.ReleaseListener {
+		private final String tenantId;
+		private final FutureTask<DataSourceResource> task;
+		private volatile long lastAccess = System.currentTimeMillis( );
+		private volatile long unreferencedSince;
+
+		public DataSourceEntry( final String tenantId ) {
+			this.tenantId = tenantId;
+
+			task = new FutureTask<>( new Callable<DataSourceResource>( ) {
+
+				@Override
+				public DataSourceResource call() throws Exception {
+					long start = System.nanoTime( );
+
+					DataSourceResource retval = dataSourceFactory.getDataSource( tenantId );
+
+					long creationNanos = System.nanoTime( ) - start;
+
+					statistics.creation( creationNanos );
+
+					retval.setCreationNanos( creationNanos );
+					retval.setReleaseListener( DataSourceEntry.this );
+
+					return retval;
+				}
+			} );
+		}
+
+		@Override
+		public void unreferenced( DataSourceResource resource ) {
+			scheduleRelease( tenantId, this );
+		}
+
+		public void unreferenced() {
+			unreferencedSince = System.currentTimeMillis( );
+		}
+
+		public boolean isUnreferencedFor( long millis ) {
+			boolean retval = false;
+
+			if ( task.isDone( ) ) {
+				try {
+					retval = task.get( ).getReferenceCount( ) == 0 && System.currentTimeMillis( ) - unreferencedSince >= millis;
+				} catch ( InterruptedException | ExecutionException ex ) {
+					retval = true;
+				}
+			}
+
+			return retval;
+		}
+
+		public void create() {
+			task.run( );
+		}
+
+		public DataSourceResource get() throws InterruptedException, ExecutionException {
+			return task.get( );
+		}
+
+		public DataSourceResource getIfDone() {
+			DataSourceResource retval = null;
+
+			if ( task.isDone( ) ) {
+				try {
+					retval = task.get( );
+				} catch ( InterruptedException | ExecutionException ex ) {
+					retval = null;
+				}
+			}
+
+			return retval;
+		}
+
+		public void touch() {
+			lastAccess = System.currentTimeMillis( );
+		}
+
+		public long getLastAccess() {
+			return lastAccess;
+		}
+
+		/*
+		 * retires the pool unless it is still being built, held by a conversation, in use or lending connections
+		 */
+		public boolean retire() {
+			boolean retval = false;
+
+			if ( task.isDone( ) ) {
+				try {
+					retval = task.get( ).retire( );
+				} catch ( InterruptedException | ExecutionException ex ) {
+					retval = true;
+				}
+			}
+
+			return retval;
+		}
+
+		/*
+		 * pools still being built, held by conversations or lending connections are not considered idle
+		 */
+		public boolean isIdle() {
+			boolean retval = false;
+
+			if ( task.isDone( ) ) {
+				try {
+					DataSourceResource resource = task.get( );
+
+					retval = resource.getReferenceCount( ) == 0 && resource.isIdle( );
+				} catch ( InterruptedException | ExecutionException ex ) {
+					retval = true;
+				}
+			}
+
+			return retval;
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters of the TenantDataSourceRegistry. A miss is a lookup that had to build a pool, a re-creation is a miss for a
+ * tenant whose pool had been evicted before. The time it took to build the pools is kept in a histogram.
+ */
+public class TenantDataSourceStatistics {
+	private final AtomicLong hits = new AtomicLong( );
+	private final AtomicLong misses = new AtomicLong( );
+	private final AtomicLong evictions = new AtomicLong( );
+	private final AtomicLong recreations = new AtomicLong( );
+	private final AtomicLong closes = new AtomicLong( );
+	private final LatencyHistogram creationLatency = new LatencyHistogram( );
+
+	void hit() {
+		hits.incrementAndGet( );
+	}
+
+	void miss() {
+		misses.incrementAndGet( );
+	}
+
+	void eviction() {
+		evictions.incrementAndGet( );
+	}
+
+	void recreation() {
+		recreations.incrementAndGet( );
+	}
+
+	void creation( long nanos ) {
+		creationLatency.record( nanos );
+	}
+
+	void close() {
+		closes.incrementAndGet( );
+	}
+
+	public long getHits() {
+		return hits.get( );
+	}
+
+	public long getMisses() {
+		return misses.get( );
+	}
+
+	public long getEvictions() {
+		return evictions.get( );
+	}
+
+	public long getRecreations() {
+		return recreations.get( );
+	}
+
+	public long getCreations() {
+		return creationLatency.getCount( );
+	}
+
+	public long getCloses() {
+		return closes.get( );
+	}
+
+	public LatencyHistogram getCreationLatency() {
+		return creationLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "TenantDataSourceStatistics [hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", recreations=" + recreations + ", creations="
+				+ getCreations( ) + ", closes=" + closes + ", creationMeanMicros=" + creationLatency.getMeanMicros( ) + "]";
+	}
+
+}
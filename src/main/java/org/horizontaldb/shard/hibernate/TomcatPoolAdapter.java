@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.sql.DataSource;
+
+import org.apache.tomcat.jdbc.pool.ConnectionPool;
+import org.apache.tomcat.jdbc.pool.JdbcInterceptor;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+import org.apache.tomcat.jdbc.pool.ProxyConnection;
+
+/*
+ * PoolAdapter of the Tomcat JDBC pool. The pool is asked directly for its counters, the DataSource would build the pool
+ * just to answer. Tomcat sizes the queues of a pool once, so a pool cannot grow beyond the maxActive it was built with.
+ */
+public class TomcatPoolAdapter implements PoolAdapter {
+	private final org.apache.tomcat.jdbc.pool.DataSource dataSource;
+
+	public TomcatPoolAdapter( org.apache.tomcat.jdbc.pool.DataSource dataSource ) {
+		this.dataSource = dataSource;
+	}
+
+	@Override
+	public DataSource getDataSource() {
+		return dataSource;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return dataSource.getPool( ) != null;
+	}
+
+	@Override
+	public void start() throws SQLException {
+		dataSource.createPool( );
+	}
+
+	@Override
+	public int getSize() {
+		ConnectionPool pool = dataSource.getPool( );
+
+		return pool != null ? pool.getSize( ) : 0;
+	}
+
+	@Override
+	public int getActive() {
+		ConnectionPool pool = dataSource.getPool( );
+
+		return pool != null ? pool.getActive( ) : 0;
+	}
+
+	@Override
+	public int getIdle() {
+		ConnectionPool pool = dataSource.getPool( );
+
+		return pool != null ? pool.getIdle( ) : 0;
+	}
+
+	@Override
+	public int getWaitCount() {
+		ConnectionPool pool = dataSource.getPool( );
+
+		return pool != null ? pool.getWaitCount( ) : 0;
+	}
+
+	@Override
+	public int getMaxActive() {
+		return dataSource.getMaxActive( );
+	}
+
+	@Override
+	public void setMaxActive( int maxActive ) {
+		dataSource.setMaxActive( maxActive );
+	}
+
+	@Override
+	public int getMinIdle() {
+		return dataSource.getMinIdle( );
+	}
+
+	@Override
+	public void setMinIdle( int minIdle ) {
+		dataSource.setMinIdle( minIdle );
+	}
+
+	@Override
+	public int getMaxIdle() {
+		return dataSource.getMaxIdle( );
+	}
+
+	@Override
+	public void setMaxIdle( int maxIdle ) {
+		dataSource.setMaxIdle( maxIdle );
+	}
+
+	@Override
+	public boolean isTestOnBorrow() {
+		return dataSource.isTestOnBorrow( );
+	}
+
+	@Override
+	public void setTestOnBorrow( boolean testOnBorrow ) {
+		dataSource.setTestOnBorrow( testOnBorrow );
+	}
+
+	/*
+	 * Tomcat skips the validation of a connection validated within the validationInterval, and it does not validate at
+	 * all without a validation query or validator. The pooled connection is found behind the proxy lent out.
+	 */
+	@Override
+	public boolean isBorrowValidationDue( Connection connection ) {
+		ConnectionPool pool = dataSource.getPool( );
+		PooledConnection pooled = pooled( connection );
+		boolean retval = false;
+
+		if ( pool != null && pooled != null ) {
+			PoolConfiguration properties = pool.getPoolProperties( );
+
+			if ( properties.getValidationQuery( ) != null || properties.getValidator( ) != null ) {
+				long validationInterval = properties.getValidationInterval( );
+
+				retval = validationInterval <= 0 || System.currentTimeMillis( ) - pooled.getLastValidated( ) >= validationInterval;
+			}
+		}
+
+		return retval;
+	}
+
+	/*
+	 * Tomcat validates the idle connections only when testWhileIdle is set, and it offers no way to validate them
+	 * otherwise. A pool without testWhileIdle has the flag raised for the duration of the test: the toggle is made under
+	 * the lock of the pool properties, so concurrent tests cannot restore each other's value. The PoolCleaner reads the
+	 * flag without that lock and may test the idle connections in the meantime as well, which is harmless, as
+	 * testAllIdle locks each connection it validates.
+	 */
+	@Override
+	public int testIdle() {
+		ConnectionPool pool = dataSource.getPool( );
+		int retval = 0;
+
+		if ( pool != null ) {
+			PoolConfiguration properties = pool.getPoolProperties( );
+			int size = pool.getSize( );
+
+			synchronized ( properties ) {
+				if ( properties.isTestWhileIdle( ) ) {
+					pool.testAllIdle( );
+				} else {
+					properties.setTestWhileIdle( true );
+
+					try {
+						pool.testAllIdle( );
+					} finally {
+						properties.setTestWhileIdle( false );
+					}
+				}
+			}
+
+			retval = Math.max( size - pool.getSize( ), 0 );
+		}
+
+		return retval;
+	}
+
+	/*
+	 * the abandons are reported by the JMX bean of the pool, so the pool must be built with JMX enabled
+	 */
+	@Override
+	public void setAbandonListener( final AbandonListener listener ) {
+		ConnectionPool pool = dataSource.getPool( );
+
+		if ( pool != null && pool.getJmxPool( ) != null ) {
+			pool.getJmxPool( ).addListener( new NotificationListener( ) {
+
+				@Override
+				public void handleNotification( Notification notification, Object handback ) {
+					if ( org.apache.tomcat.jdbc.pool.jmx.ConnectionPool.NOTIFY_ABANDON.equals( notification.getType( ) ) ) {
+						listener.abandoned( );
+					}
+				}
+			} );
+		}
+	}
+
+	@Override
+	public void close() {
+		dataSource.close( true );
+	}
+
+	private static PooledConnection pooled( Connection connection ) {
+		PooledConnection retval = null;
+
+		if ( connection != null && Proxy.isProxyClass( connection.getClass( ) ) ) {
+			InvocationHandler handler = Proxy.getInvocationHandler( connection );
+			JdbcInterceptor interceptor = handler instanceof JdbcInterceptor ? ( JdbcInterceptor ) handler : null;
+
+			while ( interceptor != null && retval == null ) {
+				if ( interceptor instanceof ProxyConnection ) {
+					retval = ( ( ProxyConnection ) interceptor ).getConnection( );
+				}
+
+				interceptor = interceptor.getNext( );
+			}
+		}
+
+		return retval;
+	}
+
+	@Override
+	public String toString() {
+		return dataSource.toString( );
+	}
+
+}
@@ -16,24 +16,49 @@
 
 package org.horizontaldb.shard.hibernate;
 
+import java.sql.SQLException;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
 import org.apache.commons.codec.digest.DigestUtils;
+import org.horizontaldb.shard.ShardRouter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
+/*
+ * Builds the pools of the tenants and of the shared databases. The pools of the tenants are Tomcat JDBC pools by
+ * default; with the poolEngine set to `lightweight' they are LightweightPools, which keep no threads of their own and
+ * suit servers hosting a great many small tenants. The shared pools are always Tomcat JDBC pools.
+ */
 @Component
-public class TomcatPooledDataSourceFactory implements DataSourceFactory {
+public class TomcatPooledDataSourceFactory implements DataSourceFactory, SharedDataSourceFactory, ReplicaDataSourceFactory {
 	private static final Logger LOG = LoggerFactory.getLogger( TomcatPooledDataSourceFactory.class );
+	private static final String LIGHTWEIGHT_ENGINE = "lightweight";
 
+	@Inject
+	private ShardRouter shardRouter;
+
+	// tomcat or lightweight
+	@Value( "#{dbProperties['tomcatPooledDataSource.poolEngine']}" )
+	private String poolEngine;
 	@Value( "#{dbProperties['tomcatPooledDataSource.driverClassName']}" )
 	private String driverClassName;
+	// formatted with the tenant id and the server of the tenant, e.g. jdbc:postgresql://%2$s/%1$s
 	@Value( "#{dbProperties['tomcatPooledDataSource.urlTemplate']}" )
 	private String urlTemplate;
+	// a template per read replica, formatted like the urlTemplate, separated by commas
+	@Value( "#{dbProperties['tomcatPooledDataSource.replicaUrlTemplates']}" )
+	private String replicaUrlTemplates;
 	@Value( "#{dbProperties['tomcatPooledDataSource.initialSize']}" )
 	private int initialSize;
 	@Value( "#{dbProperties['tomcatPooledDataSource.maxActive']}" )
 	private int maxActive;
+	@Value( "#{dbProperties['tomcatPooledDataSource.maxActiveLimit']}" )
+	private int maxActiveLimit;
 	@Value( "#{dbProperties['tomcatPooledDataSource.minIdle']}" )
 	private int minIdle;
 	@Value( "#{dbProperties['tomcatPooledDataSource.maxIdle']}" )
@@ -62,19 +87,122 @@ public class TomcatPooledDataSourceFactory implements DataSourceFactory {
 	private boolean logAbandoned;
 	@Value( "#{dbProperties['tomcatPooledDataSource.jdbcInterceptors']}" )
 	private String jdbcInterceptors;
+	@Value( "#{dbProperties['tomcatPooledDataSource.sharedUsername']}" )
+	private String sharedUsername;
+	@Value( "#{dbProperties['tomcatPooledDataSource.sharedPassword']}" )
+	private String sharedPassword;
+	@Value( "#{dbProperties['tomcatPooledDataSource.sharedMaxActive']}" )
+	private int sharedMaxActive;
+	@Value( "#{dbProperties['tomcatPooledDataSource.sharedMaxIdle']}" )
+	private int sharedMaxIdle;
+
+	private String[] replicaUrlTemplateArray = new String[0];
+
+	@PostConstruct
+	public void init() {
+		replicaUrlTemplateArray = StringUtils.commaDelimitedListToStringArray( StringUtils.trimAllWhitespace( replicaUrlTemplates ) );
+	}
 
 	@Override
 	public DataSourceResource getDataSource( String tenantId ) {
+		DataSourceResource retval = createTenantResource( tenantId, urlTemplate );
+
+		LOG.debug( String.format( "getDataSource.%s=established [%s]", tenantId, retval.getPool( ) ) );
+
+		return retval;
+	}
+
+	@Override
+	public int getReplicaCount() {
+		return replicaUrlTemplateArray.length;
+	}
+
+	@Override
+	public DataSourceResource getReplicaDataSource( String tenantId, int replica ) {
+		DataSourceResource retval = createTenantResource( tenantId, replicaUrlTemplateArray[replica] );
+
+		LOG.debug( String.format( "getReplicaDataSource.%s=established replica [%s] [%s]", tenantId, replica, retval.getPool( ) ) );
+
+		return retval;
+	}
+
+	@Override
+	public DataSourceResource getSharedDataSource( String serverUrl ) {
+		org.apache.tomcat.jdbc.pool.DataSource dataSource = createDataSource( serverUrl, sharedUsername, sharedPassword );
+
+		dataSource.setMaxActive( sharedMaxActive );
+		dataSource.setMaxIdle( sharedMaxIdle );
+
+		LOG.debug( String.format( "getSharedDataSource.%s=established [%s]", serverUrl, dataSource ) );
+
+		return new DataSourceResource( dataSource );
+	}
+
+	private DataSourceResource createTenantResource( String tenantId, String template ) {
+		String url = String.format( template, tenantId, shardRouter.getServer( tenantId ) );
+		DataSourceResource retval;
+
+		if ( LIGHTWEIGHT_ENGINE.equalsIgnoreCase( StringUtils.trimWhitespace( poolEngine ) ) ) {
+			retval = new DataSourceResource( createLightweightPool( tenantId, url ) );
+		} else {
+			retval = new DataSourceResource( createTenantDataSource( tenantId, url ) );
+		}
+
+		retval.watchAbandons( );
+
+		return retval;
+	}
+
+	private PoolAdapter createLightweightPool( String tenantId, String url ) {
+		LightweightPool pool = new LightweightPool( );
+
+		pool.setDriverClassName( driverClassName );
+		pool.setUrl( url );
+		pool.setUsername( tenantId );
+		pool.setPassword( getTenantPassword( tenantId ) );
+		pool.setInitialSize( initialSize );
+		pool.setMaxActive( maxActive );
+		pool.setMinIdle( minIdle );
+		pool.setMaxIdle( maxIdle );
+		pool.setTestOnBorrow( testOnBorrow );
+		pool.setMaxWait( maxWait );
+
+		try {
+			pool.start( );
+		} catch ( SQLException ex ) {
+			throw new IllegalStateException( String.format( "could not create the pool of [%s]", tenantId ), ex );
+		}
+
+		return pool;
+	}
+
+	private org.apache.tomcat.jdbc.pool.DataSource createTenantDataSource( String tenantId, String url ) {
+		org.apache.tomcat.jdbc.pool.DataSource dataSource = createDataSource( url, tenantId, getTenantPassword( tenantId ) );
+
+		// the queues of the pool are sized once, so the pool is built with room for the largest size it may be grown to
+		dataSource.setMaxActive( Math.max( maxActive, maxActiveLimit ) );
+
+		try {
+			dataSource.createPool( );
+		} catch ( SQLException ex ) {
+			throw new IllegalStateException( String.format( "could not create the pool of [%s]", tenantId ), ex );
+		}
+
+		dataSource.setMaxActive( maxActive );
+		dataSource.setMaxIdle( maxIdle );
+
+		return dataSource;
+	}
+
+	private org.apache.tomcat.jdbc.pool.DataSource createDataSource( String url, String username, String password ) {
 		org.apache.tomcat.jdbc.pool.DataSource dataSource = new org.apache.tomcat.jdbc.pool.DataSource( );
 
 		dataSource.setDriverClassName( driverClassName );
-		dataSource.setUrl( String.format( urlTemplate, tenantId ) );
-		dataSource.setUsername( tenantId );
-		dataSource.setPassword( getTenantPassword( tenantId ) );
+		dataSource.setUrl( url );
+		dataSource.setUsername( username );
+		dataSource.setPassword( password );
 		dataSource.setInitialSize( initialSize );
-		dataSource.setMaxActive( maxActive );
 		dataSource.setMinIdle( minIdle );
-		dataSource.setMaxIdle( maxIdle );
 		dataSource.setValidationQuery( validationQuery );
 		dataSource.setValidationInterval( validationInterval );
 		dataSource.setTimeBetweenEvictionRunsMillis( timeBetweenEvictionRunsMillis );
@@ -88,9 +216,7 @@ public class TomcatPooledDataSourceFactory implements DataSourceFactory {
 		dataSource.setLogAbandoned( logAbandoned );
 		dataSource.setJdbcInterceptors( jdbcInterceptors );
 
-		LOG.debug( String.format( "getDataSource.%s=established [%s]", tenantId, dataSource ) );
-
-		return new DataSourceResource( dataSource );
+		return dataSource;
 	}
 
 	private String getTenantPassword( String tenantId ) {
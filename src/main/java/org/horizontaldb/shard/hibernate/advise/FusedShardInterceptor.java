@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate.advise;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+import org.aopalliance.aop.Advice;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.horizontaldb.shard.ShardContext;
+import org.horizontaldb.shard.ShardContextEnricher;
+import org.horizontaldb.shard.annotation.ShardBean;
+import org.horizontaldb.shard.annotation.ShardBeans;
+import org.horizontaldb.shard.hibernate.TenantContext;
+import org.springframework.aop.Pointcut;
+import org.springframework.aop.PointcutAdvisor;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.aop.support.StaticMethodMatcherPointcut;
+import org.springframework.core.BridgeMethodResolver;
+import org.springframework.core.Ordered;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.AnnotationTransactionAttributeSource;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.util.ClassUtils;
+
+/*
+ * One advice doing the work of PersistentConversationValidatorAspect, TenantIdValidatorAspect,
+ * TenantContextEnricherAspect, the transaction interceptor and ShardContextEnricherAspect, in the same order: the
+ * conversation and the tenantId are validated, the TenantContext is set up, the transaction is started, and the shard
+ * beans are resolved and enriched inside the transaction.
+ *
+ * The chain of aspects binds the ShardContext argument and matches the annotations on every call. Here the annotations
+ * of a method are looked up once and kept in an AdvicePlan, a call only checks its first argument. The interceptor is
+ * its own advisor, with a static pointcut matching the methods which have a plan to run. It is wired by the
+ * `fusedShardAdvice' Spring profile.
+ */
+public class FusedShardInterceptor extends ShardContextEnricher implements MethodInterceptor, PointcutAdvisor, Ordered {
+	private static final Object[] NO_BEANS = new Object[0];
+
+	private final TenantContext tenantContext;
+	private final TenantContextFrames frames;
+	private final TransactionSupport transactionSupport = new TransactionSupport( );
+	private final ConcurrentMap<Class<?>, ConcurrentMap<Method, AdvicePlan>> advicePlans = new ConcurrentHashMap<>( );
+	private final Pointcut pointcut = new StaticMethodMatcherPointcut( ) {
+
+		@Override
+		public boolean matches( Method method, Class<?> targetClass ) {
+			return getAdvicePlan( method, targetClass == null ? method.getDeclaringClass( ) : targetClass ).isAdvised( );
+		}
+	};
+	private int order;
+
+	@Inject
+	public FusedShardInterceptor( TenantContext tenantContext ) {
+		this.tenantContext = tenantContext;
+		this.frames = new TenantContextFrames( tenantContext );
+
+		transactionSupport.setTransactionAttributeSource( new AnnotationTransactionAttributeSource( ) );
+	}
+
+	public void setTransactionManager( PlatformTransactionManager transactionManager ) {
+		transactionSupport.setTransactionManager( transactionManager );
+	}
+
+	@Override
+	public int getOrder() {
+		return order;
+	}
+
+	public void setOrder( int order ) {
+		this.order = order;
+	}
+
+	@PostConstruct
+	public void init() {
+		transactionSupport.afterPropertiesSet( );
+	}
+
+	@Override
+	public Pointcut getPointcut() {
+		return pointcut;
+	}
+
+	@Override
+	public Advice getAdvice() {
+		return this;
+	}
+
+	@Override
+	public boolean isPerInstance() {
+		return true;
+	}
+
+	@Override
+	public Object invoke( MethodInvocation invocation ) throws Throwable {
+		Class<?> targetClass = invocation.getThis( ) == null ? invocation.getMethod( ).getDeclaringClass( ) : AopUtils.getTargetClass( invocation.getThis( ) );
+
+		AdvicePlan plan = getAdvicePlan( invocation.getMethod( ), targetClass );
+
+		ShardContext shardContext = getShardContext( invocation.getArguments( ) );
+
+		Object retval = null;
+
+		if ( shardContext == null ) {
+			retval = proceedWithinTransaction( invocation, targetClass, plan, null );
+		} else {
+			if ( plan.isEnriched( ) ) {
+				validateConversation( shardContext );
+				validateTenantId( shardContext );
+			}
+
+			if ( plan.tenantTransactional != null ) {
+				boolean readOnly = frames.enter( plan.tenantTransactional, shardContext );
+
+				try {
+					retval = proceedWithinTransaction( invocation, targetClass, plan, shardContext );
+				} finally {
+					frames.exit( readOnly );
+				}
+			} else {
+				retval = proceedWithinTransaction( invocation, targetClass, plan, shardContext );
+			}
+		}
+
+		return retval;
+	}
+
+	private Object proceedWithinTransaction( MethodInvocation invocation, Class<?> targetClass, AdvicePlan plan, ShardContext shardContext ) throws Throwable {
+		Object retval = null;
+
+		if ( plan.transactional ) {
+			retval = transactionSupport.invoke( invocation, targetClass, plan, shardContext );
+		} else {
+			retval = proceedEnriched( invocation, plan, shardContext );
+		}
+
+		return retval;
+	}
+
+	private Object proceedEnriched( MethodInvocation invocation, AdvicePlan plan, ShardContext shardContext ) throws Throwable {
+		Object retval = null;
+
+		if ( shardContext == null || !plan.isEnriched( ) ) {
+			retval = invocation.proceed( );
+		} else {
+			Object[] beans = plan.shardBeans == null ? NO_BEANS : doSetup( plan.method, plan.shardBeans, shardContext );
+
+			try {
+				Object bean = plan.shardBean == null ? null : doSetup( plan.shardBean, shardContext );
+
+				try {
+					retval = invocation.proceed( );
+				} finally {
+					if ( plan.shardBean != null ) {
+						doTearDown( bean, shardContext );
+					}
+				}
+			} finally {
+				doTearDown( beans, shardContext );
+			}
+		}
+
+		return retval;
+	}
+
+	private void validateConversation( ShardContext shardContext ) {
+		if ( !getRegistry( ).hasConversation( shardContext.getClientId( ) ) ) {
+			throw new IllegalStateException( "client is not involved in a conversation" );
+		}
+	}
+
+	private void validateTenantId( ShardContext shardContext ) {
+		String tenantId = tenantContext.getCurrentTenantId( );
+
+		if ( tenantId != null && !tenantId.equals( shardContext.getClientId( ) ) ) {
+			throw new IllegalStateException( "client identity is immutable" );
+		}
+	}
+
+	/*
+	 * the aspects bind the first argument of the call, if it is a ShardContext
+	 */
+	private ShardContext getShardContext( Object[] arguments ) {
+		ShardContext retval = null;
+
+		if ( arguments.length > 0 && arguments[0] instanceof ShardContext ) {
+			retval = ( ShardContext ) arguments[0];
+		}
+
+		return retval;
+	}
+
+	private AdvicePlan getAdvicePlan( Method method, Class<?> targetClass ) {
+		ConcurrentMap<Method, AdvicePlan> plans = advicePlans.get( targetClass );
+
+		if ( plans == null ) {
+			plans = new ConcurrentHashMap<>( );
+
+			ConcurrentMap<Method, AdvicePlan> existing = advicePlans.putIfAbsent( targetClass, plans );
+
+			if ( existing != null ) {
+				plans = existing;
+			}
+		}
+
+		AdvicePlan retval = plans.get( method );
+
+		if ( retval == null ) {
+			retval = new AdvicePlan( method, targetClass );
+
+			AdvicePlan existing = plans.putIfAbsent( method, retval );
+
+			if ( existing != null ) {
+				retval = existing;
+			}
+		}
+
+		return retval;
+	}
+
+	/*
+	 * The annotations are read from the method of the target class, like the pointcuts of the aspects do. The shard
+	 * steps only apply to classes within org.horizontaldb, the transaction applies to every transactional method.
+	 */
+	private class AdvicePlan {
+		private final Method method;
+		private final ShardBeans shardBeans;
+		private final ShardBean shardBean;
+		private final Transactional tenantTransactional;
+		private final boolean transactional;
+
+		public AdvicePlan( Method method, Class<?> targetClass ) {
+			Method specificMethod = BridgeMethodResolver.findBridgedMethod( ClassUtils.getMostSpecificMethod( method, targetClass ) );
+
+			boolean withinScope = targetClass.getName( ).startsWith( "org.horizontaldb." );
+
+			this.method = specificMethod;
+			this.shardBeans = withinScope ? specificMethod.getAnnotation( ShardBeans.class ) : null;
+			this.shardBean = withinScope ? specificMethod.getAnnotation( ShardBean.class ) : null;
+			this.tenantTransactional = withinScope ? specificMethod.getAnnotation( Transactional.class ) : null;
+			this.transactional = transactionSupport.getTransactionAttributeSource( ).getTransactionAttribute( method, targetClass ) != null;
+		}
+
+		public boolean isEnriched() {
+			return shardBeans != null || shardBean != null;
+		}
+
+		public boolean isAdvised() {
+			return isEnriched( ) || tenantTransactional != null || transactional;
+		}
+	}
+
+	/*
+	 * runs the enrichment and the call within the transaction of the method
+	 */
+	private class TransactionSupport extends TransactionAspectSupport {
+
+		public Object invoke( final MethodInvocation invocation, Class<?> targetClass, final AdvicePlan plan, final ShardContext shardContext ) throws Throwable {
+			return invokeWithinTransaction( invocation.getMethod( ), targetClass, new InvocationCallback( ) {
+
+				@Override
+				public Object proceedWithInvocation() throws Throwable {
+					return proceedEnriched( invocation, plan, shardContext );
+				}
+			} );
+		}
+	}
+
+}
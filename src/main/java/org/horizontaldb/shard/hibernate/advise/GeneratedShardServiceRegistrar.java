@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate.advise;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.util.ClassUtils;
+
+/*
+ * Swaps the class of every bean which has a shard service generated by the ShardServiceProcessor for the generated
+ * class. The generated methods carry no annotations, so the shard aspects and the transaction interceptor leave them
+ * alone, and a bean without other advised methods is not proxied at all.
+ */
+public class GeneratedShardServiceRegistrar implements BeanFactoryPostProcessor, BeanClassLoaderAware {
+	private static final Logger LOG = LoggerFactory.getLogger( GeneratedShardServiceRegistrar.class );
+
+	private ClassLoader classLoader = ClassUtils.getDefaultClassLoader( );
+
+	@Override
+	public void setBeanClassLoader( ClassLoader classLoader ) {
+		this.classLoader = classLoader;
+	}
+
+	@Override
+	public void postProcessBeanFactory( ConfigurableListableBeanFactory beanFactory ) throws BeansException {
+		for ( String beanName : beanFactory.getBeanDefinitionNames( ) ) {
+			BeanDefinition beanDefinition = beanFactory.getBeanDefinition( beanName );
+
+			String className = beanDefinition.getBeanClassName( );
+
+			if ( className != null && beanDefinition.getFactoryMethodName( ) == null ) {
+				String generatedClassName = className.replace( '$', '_' ) + ShardCallSupport.GENERATED_CLASS_SUFFIX;
+
+				if ( ClassUtils.isPresent( generatedClassName, classLoader ) ) {
+					beanDefinition.setBeanClassName( generatedClassName );
+
+					LOG.debug( String.format( "postProcessBeanFactory.%s=using generated class [%s]", beanName, generatedClassName ) );
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate.advise;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import org.horizontaldb.shard.annotation.PersistentConversationSetup;
+import org.horizontaldb.shard.annotation.PersistentConversationTeardown;
+import org.horizontaldb.shard.annotation.ShardBean;
+import org.horizontaldb.shard.annotation.ShardBeans;
+import org.springframework.transaction.annotation.AnnotationTransactionAttributeSource;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAttribute;
+import org.springframework.transaction.interceptor.TransactionAttributeSource;
+
+/*
+ * What a generated shard service runs around one of its methods, read from the annotations of the overridden method.
+ * The plans are static constants of the generated classes, so the annotations are read once, when the class is
+ * initialized.
+ */
+public final class ShardCallPlan {
+	private static final TransactionAttributeSource TRANSACTION_ATTRIBUTE_SOURCE = new AnnotationTransactionAttributeSource( );
+
+	private final Method method;
+	private final ShardBeans shardBeans;
+	private final ShardBean shardBean;
+	private final Transactional transactional;
+	private final TransactionAttribute transactionAttribute;
+	private final boolean conversationSetup;
+	private final boolean conversationTeardown;
+
+	private ShardCallPlan( Class<?> type, Method method ) {
+		this.method = method;
+		this.shardBeans = method.getAnnotation( ShardBeans.class );
+		this.shardBean = method.getAnnotation( ShardBean.class );
+		this.transactional = method.getAnnotation( Transactional.class );
+		this.transactionAttribute = TRANSACTION_ATTRIBUTE_SOURCE.getTransactionAttribute( method, type );
+		this.conversationSetup = method.isAnnotationPresent( PersistentConversationSetup.class );
+		this.conversationTeardown = method.isAnnotationPresent( PersistentConversationTeardown.class );
+	}
+
+	public static ShardCallPlan forMethod( Class<?> type, String name, Class<?>... parameterTypes ) {
+		try {
+			return new ShardCallPlan( type, type.getDeclaredMethod( name, parameterTypes ) );
+		} catch ( NoSuchMethodException ex ) {
+			throw new IllegalStateException( String.format( "no method [%s%s] in [%s]", name, Arrays.toString( parameterTypes ), type.getName( ) ), ex );
+		}
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	public ShardBeans getShardBeans() {
+		return shardBeans;
+	}
+
+	public ShardBean getShardBean() {
+		return shardBean;
+	}
+
+	public Transactional getTransactional() {
+		return transactional;
+	}
+
+	public TransactionAttribute getTransactionAttribute() {
+		return transactionAttribute;
+	}
+
+	public boolean isEnriched() {
+		return shardBeans != null || shardBean != null;
+	}
+
+	public boolean isConversationSetup() {
+		return conversationSetup;
+	}
+
+	public boolean isConversationTeardown() {
+		return conversationTeardown;
+	}
+
+}
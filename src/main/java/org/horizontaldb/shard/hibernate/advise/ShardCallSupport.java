@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate.advise;
+
+import javax.inject.Inject;
+
+import org.horizontaldb.example.model.UserToken;
+import org.horizontaldb.shard.ShardContext;
+import org.horizontaldb.shard.ShardContextEnricher;
+import org.horizontaldb.shard.hibernate.TenantContext;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/*
+ * The runtime of the shard services generated by the ShardServiceProcessor. A generated method calls `enter' before
+ * and `exit' after the overridden method, which do what the chain of shard aspects does around it, in the same order:
+ * the conversation and the tenantId are validated, the TenantContext is set up, the transaction is started and the
+ * shard beans are enriched; on exit the same is undone in reverse. `returned' starts or ends the conversation after a
+ * conversation setup or teardown method returned, like the PersistentConversationRegistrarAspect.
+ *
+ * The transaction is run on the transaction manager directly, it is not exposed through
+ * TransactionAspectSupport.currentTransactionStatus( ).
+ */
+public class ShardCallSupport extends ShardContextEnricher {
+	/*
+	 * appended to the name of a service class, with nested classes flattened, to get the name of its generated class
+	 */
+	public static final String GENERATED_CLASS_SUFFIX = "_Sharded";
+
+	private final TenantContext tenantContext;
+	private final TenantContextFrames frames;
+	private PlatformTransactionManager transactionManager;
+
+	@Inject
+	public ShardCallSupport( TenantContext tenantContext ) {
+		this.tenantContext = tenantContext;
+		this.frames = new TenantContextFrames( tenantContext );
+	}
+
+	public void setTransactionManager( PlatformTransactionManager transactionManager ) {
+		this.transactionManager = transactionManager;
+	}
+
+	public ShardCall enter( ShardCallPlan plan, ShardContext shardContext ) {
+		ShardCall retval = new ShardCall( plan, shardContext );
+
+		try {
+			if ( shardContext != null && plan.isEnriched( ) ) {
+				validateConversation( shardContext );
+				validateTenantId( shardContext );
+			}
+
+			if ( shardContext != null && plan.getTransactional( ) != null ) {
+				retval.enclosingReadOnly = frames.enter( plan.getTransactional( ), shardContext );
+				retval.framed = true;
+			}
+
+			if ( plan.getTransactionAttribute( ) != null ) {
+				retval.transactionStatus = transactionManager.getTransaction( plan.getTransactionAttribute( ) );
+			}
+
+			if ( shardContext != null && plan.getShardBeans( ) != null ) {
+				retval.beans = doSetup( plan.getMethod( ), plan.getShardBeans( ), shardContext );
+			}
+
+			if ( shardContext != null && plan.getShardBean( ) != null ) {
+				retval.bean = doSetup( plan.getShardBean( ), shardContext );
+			}
+		} catch ( RuntimeException | Error ex ) {
+			exit( retval, ex );
+
+			throw ex;
+		}
+
+		return retval;
+	}
+
+	/*
+	 * the failure is what the call threw, null if it returned
+	 */
+	public void exit( ShardCall call, Throwable failure ) {
+		try {
+			tearDownBeans( call );
+		} finally {
+			try {
+				completeTransaction( call, failure );
+			} finally {
+				if ( call.framed ) {
+					frames.exit( call.enclosingReadOnly );
+				}
+			}
+		}
+	}
+
+	public void returned( ShardCallPlan plan, Object firstArgument ) {
+		if ( firstArgument instanceof UserToken ) {
+			if ( plan.isConversationSetup( ) ) {
+				getRegistry( ).startConversation( ( UserToken ) firstArgument );
+			}
+
+			if ( plan.isConversationTeardown( ) ) {
+				getRegistry( ).teardownConversation( ( UserToken ) firstArgument );
+			}
+		}
+	}
+
+	private void tearDownBeans( ShardCall call ) {
+		try {
+			if ( call.bean != null ) {
+				doTearDown( call.bean, call.shardContext );
+			}
+		} finally {
+			if ( call.beans != null ) {
+				doTearDown( call.beans, call.shardContext );
+			}
+		}
+	}
+
+	private void completeTransaction( ShardCall call, Throwable failure ) {
+		if ( call.transactionStatus != null ) {
+			if ( failure != null && call.plan.getTransactionAttribute( ).rollbackOn( failure ) ) {
+				transactionManager.rollback( call.transactionStatus );
+			} else {
+				transactionManager.commit( call.transactionStatus );
+			}
+		}
+	}
+
+	private void validateConversation( ShardContext shardContext ) {
+		if ( !getRegistry( ).hasConversation( shardContext.getClientId( ) ) ) {
+			throw new IllegalStateException( "client is not involved in a conversation" );
+		}
+	}
+
+	private void validateTenantId( ShardContext shardContext ) {
+		String tenantId = tenantContext.getCurrentTenantId( );
+
+		if ( tenantId != null && !tenantId.equals( shardContext.getClientId( ) ) ) {
+			throw new IllegalStateException( "client identity is immutable" );
+		}
+	}
+
+}
@@ -30,10 +30,13 @@ import org.springframework.transaction.annotation.Transactional;
 /*
  *  This class tells the current tenantId to Hibernate in order to open an appropriate Session.
  *  
- *  The ThreadLocal with the counter is here for the sake of recursive method calls - in case
+ *  The TenantContextFrames with the counter are here for the sake of recursive method calls - in case
  *  the annotated method makes a call to another annotated method (..and so on), it is ensured that
  *  upon returning from calls the Hibernate context is still holds a valid tenantId, up until
  *  the last call, when it is cleared up for the next thread.
+ *  
+ *  Read only transactions, and contexts of the replica data source type, are flagged in the TenantContext, so the
+ *  connection provider can serve them from the read replicas. The flag is restored when the call returns.
  */
 
 @Aspect
@@ -41,13 +44,12 @@ public class TenantContextEnricherAspect implements Ordered {
 	@Value( "#{dbProperties['multiTenantConnectionProvider.anyDataSourceTenantId']}" )
 	private String anyDataSourceTenantId;
 
-	private TenantContext tenantContext;
+	private TenantContextFrames frames;
 	private int order;
-	private ThreadLocal<Integer> frameCounter = new ThreadLocal<>( );
 
 	@Inject
 	public TenantContextEnricherAspect( TenantContext tenantContext ) {
-		this.tenantContext = tenantContext;
+		this.frames = new TenantContextFrames( tenantContext );
 	}
 
 	@Override
@@ -61,51 +63,17 @@ public class TenantContextEnricherAspect implements Ordered {
 
 	@Around( value = "( within( org.horizontaldb..* ) ) && @annotation( transactional ) && args(shardContext, ..)", argNames = "transactional, shardContext" )
 	public Object populateTenantContext( ProceedingJoinPoint pjp, Transactional transactional, ShardContext shardContext ) throws Throwable {
-		increaseFrameCount( );
-
-		tenantContext.setCurrentTenantId( shardContext.getClientId( ) );
+		boolean readOnly = frames.enter( transactional, shardContext );
 
 		Object proceed = null;
 
 		try {
 			proceed = pjp.proceed( );
 		} finally {
-			decreaseFrameCount( );
-
-			if ( isLastFrame( ) ) {
-				tenantContext.setCurrentTenantId( null );
-
-				frameCounter.set( null );
-			}
+			frames.exit( readOnly );
 		}
 
 		return proceed;
 	}
 
-	private void increaseFrameCount() {
-		Integer count = frameCounter.get( );
-
-		if ( count == null ) {
-			count = new Integer( 0 );
-		} else {
-			count = count.intValue( ) + 1;
-		}
-
-		frameCounter.set( count );
-	}
-
-	private void decreaseFrameCount() {
-		Integer count = frameCounter.get( );
-
-		if ( count != null ) {
-			frameCounter.set( count.intValue( ) - 1 );
-		}
-	}
-
-	private boolean isLastFrame() {
-		Integer count = frameCounter.get( );
-
-		return count < 0;
-	}
-
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate.advise;
+
+import org.horizontaldb.shard.ShardContext;
+import org.horizontaldb.shard.StandardDataSourceType;
+import org.horizontaldb.shard.hibernate.TenantContext;
+import org.springframework.transaction.annotation.Transactional;
+
+/*
+ * Keeps the TenantContext of the thread for the duration of the transactional calls. Every call `enter's a frame and
+ * `exit's it when it returns, the tenantId is cleared when the outermost frame is left. The read only flag is set for
+ * the frame, and restored on exit.
+ */
+class TenantContextFrames {
+	private final TenantContext tenantContext;
+	private final ThreadLocal<Integer> frameCounter = new ThreadLocal<>( );
+
+	public TenantContextFrames( TenantContext tenantContext ) {
+		this.tenantContext = tenantContext;
+	}
+
+	/*
+	 * returns the read only flag of the enclosing frame, to be passed to `exit'
+	 */
+	public boolean enter( Transactional transactional, ShardContext shardContext ) {
+		increaseFrameCount( );
+
+		tenantContext.setCurrentTenantId( shardContext.getClientId( ) );
+
+		boolean retval = tenantContext.isReadOnly( );
+
+		tenantContext.setReadOnly( isReadOnly( transactional, shardContext ) );
+
+		return retval;
+	}
+
+	public void exit( boolean readOnly ) {
+		tenantContext.setReadOnly( readOnly );
+
+		decreaseFrameCount( );
+
+		if ( isLastFrame( ) ) {
+			tenantContext.setCurrentTenantId( null );
+
+			frameCounter.set( null );
+		}
+	}
+
+	private boolean isReadOnly( Transactional transactional, ShardContext shardContext ) {
+		return ( transactional != null && transactional.readOnly( ) ) || StandardDataSourceType.isReplica( shardContext.getDataSourceType( ) );
+	}
+
+	private void increaseFrameCount() {
+		Integer count = frameCounter.get( );
+
+		if ( count == null ) {
+			count = new Integer( 0 );
+		} else {
+			count = count.intValue( ) + 1;
+		}
+
+		frameCounter.set( count );
+	}
+
+	private void decreaseFrameCount() {
+		Integer count = frameCounter.get( );
+
+		if ( count != null ) {
+			frameCounter.set( count.intValue( ) - 1 );
+		}
+	}
+
+	private boolean isLastFrame() {
+		Integer count = frameCounter.get( );
+
+		return count < 0;
+	}
+
+}
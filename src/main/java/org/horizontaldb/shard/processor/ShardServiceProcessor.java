@@ -0,0 +1,368 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+
+import org.horizontaldb.shard.hibernate.advise.ShardCallSupport;
+
+/*
+ * Generates a subclass of every service class with methods annotated by @ShardBean, @ShardBeans,
+ * @PersistentConversationSetup or @PersistentConversationTeardown. The generated class, named after the service with
+ * nested classes flattened and ShardCallSupport.GENERATED_CLASS_SUFFIX appended, overrides those methods and runs the
+ * shard advice through an injected ShardCallSupport, instead of the chain of proxies the aspects need. The
+ * GeneratedShardServiceRegistrar makes Spring instantiate the generated classes.
+ *
+ * The processor is not registered as a service in this jar, the projects using it register it for their own
+ * compilation, either with javac -processor or a META-INF/services/javax.annotation.processing.Processor file of their
+ * own. Classes and methods which cannot be overridden are reported as warnings and left to the aspects. A class level
+ * @Transactional is honoured, but it still makes Spring proxy the generated class.
+ */
+@SupportedAnnotationTypes( { "org.horizontaldb.shard.annotation.ShardBean", "org.horizontaldb.shard.annotation.ShardBeans",
+		"org.horizontaldb.shard.annotation.PersistentConversationSetup", "org.horizontaldb.shard.annotation.PersistentConversationTeardown" } )
+public class ShardServiceProcessor extends AbstractProcessor {
+	private static final String SHARD_CONTEXT = "org.horizontaldb.shard.ShardContext";
+	private static final String TRANSACTIONAL = "org.springframework.transaction.annotation.Transactional";
+	private static final Set<String> SHARD_ANNOTATIONS = new HashSet<>( );
+
+	static {
+		SHARD_ANNOTATIONS.add( "org.horizontaldb.shard.annotation.ShardBean" );
+		SHARD_ANNOTATIONS.add( "org.horizontaldb.shard.annotation.ShardBeans" );
+	}
+
+	private final Set<String> generated = new HashSet<>( );
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported( );
+	}
+
+	@Override
+	public boolean process( Set<? extends TypeElement> annotations, RoundEnvironment roundEnv ) {
+		Map<TypeElement, Set<ExecutableElement>> services = new LinkedHashMap<>( );
+
+		for ( TypeElement annotation : annotations ) {
+			for ( Element element : roundEnv.getElementsAnnotatedWith( annotation ) ) {
+				if ( element.getKind( ) == ElementKind.METHOD ) {
+					TypeElement service = ( TypeElement ) element.getEnclosingElement( );
+
+					if ( !services.containsKey( service ) ) {
+						services.put( service, new LinkedHashSet<ExecutableElement>( ) );
+					}
+
+					services.get( service ).add( ( ExecutableElement ) element );
+				}
+			}
+		}
+
+		for ( Entry<TypeElement, Set<ExecutableElement>> entry : services.entrySet( ) ) {
+			TypeElement service = entry.getKey( );
+
+			if ( isExtendable( service ) && generated.add( service.getQualifiedName( ).toString( ) ) ) {
+				List<ExecutableElement> methods = new ArrayList<>( );
+
+				// in the order of declaration
+				for ( Element element : service.getEnclosedElements( ) ) {
+					if ( entry.getValue( ).contains( element ) && isOverridable( ( ExecutableElement ) element ) ) {
+						methods.add( ( ExecutableElement ) element );
+					}
+				}
+
+				if ( !methods.isEmpty( ) ) {
+					generate( service, methods );
+				}
+			}
+		}
+
+		return false;
+	}
+
+	private boolean isExtendable( TypeElement service ) {
+		boolean retval = false;
+
+		if ( service.getKind( ) != ElementKind.CLASS ) {
+			warn( service, "shard services must be classes" );
+		} else if ( service.getNestingKind( ) != NestingKind.TOP_LEVEL
+				&& ( service.getNestingKind( ) != NestingKind.MEMBER || !service.getModifiers( ).contains( Modifier.STATIC ) ) ) {
+			warn( service, "shard services must be top level or static nested classes" );
+		} else if ( !service.getTypeParameters( ).isEmpty( ) ) {
+			warn( service, "generic shard services are not supported" );
+		} else if ( service.getModifiers( ).contains( Modifier.FINAL ) || service.getModifiers( ).contains( Modifier.ABSTRACT )
+				|| service.getModifiers( ).contains( Modifier.PRIVATE ) ) {
+			warn( service, "shard services must not be final, abstract or private" );
+		} else {
+			retval = true;
+		}
+
+		return retval;
+	}
+
+	private boolean isOverridable( ExecutableElement method ) {
+		boolean retval = false;
+
+		Set<Modifier> modifiers = method.getModifiers( );
+
+		if ( modifiers.contains( Modifier.PRIVATE ) || modifiers.contains( Modifier.STATIC ) || modifiers.contains( Modifier.FINAL ) ) {
+			warn( method, "shard methods must not be private, static or final" );
+		} else if ( hasAnnotation( method, SHARD_ANNOTATIONS ) && !hasShardContext( method ) ) {
+			warn( method, "the first parameter of a shard method must be the ShardContext" );
+		} else {
+			retval = true;
+		}
+
+		return retval;
+	}
+
+	private boolean hasShardContext( ExecutableElement method ) {
+		TypeMirror shardContext = processingEnv.getElementUtils( ).getTypeElement( SHARD_CONTEXT ).asType( );
+
+		return !method.getParameters( ).isEmpty( ) && processingEnv.getTypeUtils( ).isAssignable( method.getParameters( ).get( 0 ).asType( ), shardContext );
+	}
+
+	private boolean isTransactional( TypeElement service, ExecutableElement method ) {
+		return hasAnnotation( method, TRANSACTIONAL ) || hasAnnotation( service, TRANSACTIONAL );
+	}
+
+	private boolean hasAnnotation( Element element, String annotation ) {
+		return hasAnnotation( element, Collections.singleton( annotation ) );
+	}
+
+	private boolean hasAnnotation( Element element, Set<String> annotations ) {
+		boolean retval = false;
+
+		for ( AnnotationMirror mirror : processingEnv.getElementUtils( ).getAllAnnotationMirrors( element ) ) {
+			retval |= annotations.contains( ( ( TypeElement ) mirror.getAnnotationType( ).asElement( ) ).getQualifiedName( ).toString( ) );
+		}
+
+		return retval;
+	}
+
+	private void generate( TypeElement service, List<ExecutableElement> methods ) {
+		String packageName = processingEnv.getElementUtils( ).getPackageOf( service ).getQualifiedName( ).toString( );
+		String serviceName = service.getQualifiedName( ).toString( );
+		String binaryName = processingEnv.getElementUtils( ).getBinaryName( service ).toString( );
+		String simpleName = binaryName.substring( packageName.isEmpty( ) ? 0 : packageName.length( ) + 1 ).replace( '$', '_' )
+				+ ShardCallSupport.GENERATED_CLASS_SUFFIX;
+
+		StringBuilder source = new StringBuilder( );
+
+		if ( !packageName.isEmpty( ) ) {
+			source.append( "package " ).append( packageName ).append( ";\n\n" );
+		}
+
+		source.append( "@javax.annotation.Generated( \"" ).append( getClass( ).getName( ) ).append( "\" )\n" );
+		source.append( "public class " ).append( simpleName ).append( " extends " ).append( serviceName ).append( " {\n" );
+
+		for ( int i = 0; i < methods.size( ); i++ ) {
+			appendPlan( source, serviceName, i, methods.get( i ) );
+		}
+
+		source.append( "\n\t@javax.inject.Inject\n\tprivate org.horizontaldb.shard.hibernate.advise.ShardCallSupport shardCallSupport;\n" );
+
+		for ( Element element : service.getEnclosedElements( ) ) {
+			if ( element.getKind( ) == ElementKind.CONSTRUCTOR && !element.getModifiers( ).contains( Modifier.PRIVATE ) ) {
+				appendConstructor( source, simpleName, ( ExecutableElement ) element );
+			}
+		}
+
+		for ( int i = 0; i < methods.size( ); i++ ) {
+			appendMethod( source, i, service, methods.get( i ) );
+		}
+
+		source.append( "\n}\n" );
+
+		String generatedName = packageName.isEmpty( ) ? simpleName : packageName + "." + simpleName;
+
+		try ( Writer writer = processingEnv.getFiler( ).createSourceFile( generatedName, service ).openWriter( ) ) {
+			writer.write( source.toString( ) );
+		} catch ( IOException ex ) {
+			processingEnv.getMessager( ).printMessage( Kind.ERROR, String.format( "could not write [%s]: %s", generatedName, ex ), service );
+		}
+	}
+
+	private void appendPlan( StringBuilder source, String serviceName, int index, ExecutableElement method ) {
+		source.append( "\tprivate static final org.horizontaldb.shard.hibernate.advise.ShardCallPlan PLAN_" ).append( index );
+		source.append( " = org.horizontaldb.shard.hibernate.advise.ShardCallPlan.forMethod( " ).append( serviceName ).append( ".class, \"" );
+		source.append( method.getSimpleName( ) ).append( "\"" );
+
+		for ( VariableElement parameter : method.getParameters( ) ) {
+			source.append( ", " ).append( processingEnv.getTypeUtils( ).erasure( parameter.asType( ) ) ).append( ".class" );
+		}
+
+		source.append( " );\n" );
+	}
+
+	private void appendConstructor( StringBuilder source, String simpleName, ExecutableElement constructor ) {
+		source.append( '\n' );
+
+		for ( AnnotationMirror annotation : constructor.getAnnotationMirrors( ) ) {
+			source.append( '\t' ).append( annotation ).append( '\n' );
+		}
+
+		source.append( '\t' ).append( visibility( constructor ) ).append( simpleName );
+		appendSignatureTail( source, constructor );
+		source.append( "\t\tsuper" ).append( arguments( constructor ) ).append( ";\n\t}\n" );
+	}
+
+	private void appendMethod( StringBuilder source, int index, TypeElement service, ExecutableElement method ) {
+		boolean shardCall = hasAnnotation( method, SHARD_ANNOTATIONS ) || isTransactional( service, method );
+		boolean returns = method.getReturnType( ).getKind( ) != TypeKind.VOID;
+		String shardContext = hasShardContext( method ) ? "arg0" : "null";
+		String firstArgument = method.getParameters( ).isEmpty( ) ? "null" : "arg0";
+		String call = "super." + method.getSimpleName( ) + arguments( method ) + ";\n";
+
+		source.append( "\n\t@java.lang.Override\n\t" ).append( visibility( method ) );
+
+		if ( !method.getTypeParameters( ).isEmpty( ) ) {
+			source.append( '<' );
+
+			for ( int i = 0; i < method.getTypeParameters( ).size( ); i++ ) {
+				TypeParameterElement typeParameter = method.getTypeParameters( ).get( i );
+
+				source.append( i > 0 ? ", " : "" ).append( typeParameter.getSimpleName( ) );
+
+				for ( int j = 0; j < typeParameter.getBounds( ).size( ); j++ ) {
+					source.append( j > 0 ? " & " : " extends " ).append( typeParameter.getBounds( ).get( j ) );
+				}
+			}
+
+			source.append( "> " );
+		}
+
+		source.append( method.getReturnType( ) ).append( ' ' ).append( method.getSimpleName( ) );
+		appendSignatureTail( source, method );
+
+		if ( returns ) {
+			source.append( "\t\t" ).append( method.getReturnType( ) ).append( " retval;\n\n" );
+		}
+
+		if ( shardCall ) {
+			source.append( "\t\torg.horizontaldb.shard.hibernate.advise.ShardCall call = shardCallSupport.enter( PLAN_" ).append( index ).append( ", " )
+					.append( shardContext ).append( " );\n" );
+			source.append( "\t\tjava.lang.Throwable failure = null;\n\n" );
+			source.append( "\t\ttry {\n\t\t\t" ).append( returns ? "retval = " : "" ).append( call );
+			source.append( "\t\t} catch ( java.lang.Throwable ex ) {\n\t\t\tfailure = ex;\n\n\t\t\tthrow ex;\n" );
+			source.append( "\t\t} finally {\n\t\t\tshardCallSupport.exit( call, failure );\n\t\t}\n" );
+		} else {
+			source.append( "\t\t" ).append( returns ? "retval = " : "" ).append( call );
+		}
+
+		if ( hasAnnotation( method, "org.horizontaldb.shard.annotation.PersistentConversationSetup" )
+				|| hasAnnotation( method, "org.horizontaldb.shard.annotation.PersistentConversationTeardown" ) ) {
+			source.append( "\n\t\tshardCallSupport.returned( PLAN_" ).append( index ).append( ", " ).append( firstArgument ).append( " );\n" );
+		}
+
+		if ( returns ) {
+			source.append( "\n\t\treturn retval;\n" );
+		}
+
+		source.append( "\t}\n" );
+	}
+
+	/*
+	 * the parameters, the throws clause and the opening brace of a method or constructor
+	 */
+	private void appendSignatureTail( StringBuilder source, ExecutableElement executable ) {
+		List<? extends VariableElement> parameters = executable.getParameters( );
+
+		source.append( "(" );
+
+		for ( int i = 0; i < parameters.size( ); i++ ) {
+			VariableElement parameter = parameters.get( i );
+
+			source.append( i > 0 ? ", " : " " );
+
+			for ( AnnotationMirror annotation : parameter.getAnnotationMirrors( ) ) {
+				source.append( annotation ).append( ' ' );
+			}
+
+			if ( executable.isVarArgs( ) && i == parameters.size( ) - 1 ) {
+				source.append( ( ( ArrayType ) parameter.asType( ) ).getComponentType( ) ).append( "..." );
+			} else {
+				source.append( parameter.asType( ) );
+			}
+
+			source.append( " arg" ).append( i );
+		}
+
+		source.append( parameters.isEmpty( ) ? ")" : " )" );
+
+		for ( int i = 0; i < executable.getThrownTypes( ).size( ); i++ ) {
+			source.append( i > 0 ? ", " : " throws " ).append( executable.getThrownTypes( ).get( i ) );
+		}
+
+		source.append( " {\n" );
+	}
+
+	/*
+	 * the parenthesized arguments passing the parameters on
+	 */
+	private String arguments( ExecutableElement executable ) {
+		StringBuilder retval = new StringBuilder( "(" );
+
+		for ( int i = 0; i < executable.getParameters( ).size( ); i++ ) {
+			retval.append( i > 0 ? ", arg" : " arg" ).append( i );
+		}
+
+		return retval.append( executable.getParameters( ).isEmpty( ) ? ")" : " )" ).toString( );
+	}
+
+	private String visibility( Element element ) {
+		String retval = "";
+
+		if ( element.getModifiers( ).contains( Modifier.PUBLIC ) ) {
+			retval = "public ";
+		} else if ( element.getModifiers( ).contains( Modifier.PROTECTED ) ) {
+			retval = "protected ";
+		}
+
+		return retval;
+	}
+
+	private void warn( Element element, String message ) {
+		processingEnv.getMessager( ).printMessage( Kind.WARNING, String.format( "%s, no shard service generated for [%s]", message, element ), element );
+	}
+
+}
@@ -16,6 +16,7 @@
 
 package org.horizontaldb.util;
 
+import org.springframework.aop.TargetSource;
 import org.springframework.aop.framework.Advised;
 import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.BeansException;
@@ -26,6 +27,7 @@ import org.springframework.stereotype.Component;
 @Component
 public class BeanUtils implements ApplicationContextAware {
 	private ApplicationContext applicationContext;
+	private final WeakIdentityCache<Object, Object> targets = new WeakIdentityCache<>( );
 
 	@Override
 	public void setApplicationContext( ApplicationContext applicationContext ) throws BeansException {
@@ -50,18 +52,46 @@ public class BeanUtils implements ApplicationContextAware {
 		return ( T ) target;
 	}
 
+	/*
+	 * The target behind a JDK dynamic proxy, other beans are returned as they are. Asking a proxy for its target goes
+	 * through the reflective invocation of the proxy, so the answers of static target sources, the singletons, are
+	 * remembered per proxy instance. Pooled and prototype target sources are asked on every call.
+	 */
 	public Object unpackDynamicProxy( Object bean ) {
-		Object target = bean;
+		Object retval = bean;
 
-		if ( AopUtils.isJdkDynamicProxy( bean ) ) {
-			try {
-				target = ( ( Advised ) bean ).getTargetSource( ).getTarget( );
-			} catch ( Exception e ) {
-				throw new IllegalStateException( e );
+		if ( bean instanceof Advised ) {
+			Object target = targets.get( bean );
+
+			if ( target != null ) {
+				retval = target;
+			} else if ( AopUtils.isJdkDynamicProxy( bean ) ) {
+				TargetSource targetSource = ( ( Advised ) bean ).getTargetSource( );
+
+				retval = getTarget( targetSource );
+
+				if ( targetSource.isStatic( ) && retval != null ) {
+					targets.put( bean, retval );
+				}
+			} else {
+				// proxies of other kinds are not unpacked, neither later
+				targets.put( bean, bean );
 			}
 		}
 
-		return target;
+		return retval;
+	}
+
+	private Object getTarget( TargetSource targetSource ) {
+		Object retval = null;
+
+		try {
+			retval = targetSource.getTarget( );
+		} catch ( Exception e ) {
+			throw new IllegalStateException( e );
+		}
+
+		return retval;
 	}
 
 }
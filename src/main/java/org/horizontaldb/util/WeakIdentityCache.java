@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * A concurrent cache keyed by the identity of objects it does not keep alive, the equals and hashCode of the keys are
+ * never called. The values are held weakly as well, so a value referring back to its key does not pin the entry.
+ * Entries of collected keys are purged when the cache is written.
+ */
+class WeakIdentityCache<K, V> {
+	private final ConcurrentMap<Object, WeakReference<V>> entries = new ConcurrentHashMap<>( );
+	private final ReferenceQueue<K> queue = new ReferenceQueue<>( );
+
+	public V get( K key ) {
+		WeakReference<V> reference = entries.get( new LookupKey( key ) );
+
+		return reference == null ? null : reference.get( );
+	}
+
+	public void put( K key, V value ) {
+		purge( );
+
+		entries.put( new WeakKey<>( key, queue ), new WeakReference<>( value ) );
+	}
+
+	public int size() {
+		purge( );
+
+		return entries.size( );
+	}
+
+	private void purge() {
+		Reference<? extends K> reference;
+
+		while ( ( reference = queue.poll( ) ) != null ) {
+			entries.remove( reference );
+		}
+	}
+
+	private static final class WeakKey<K> extends WeakReference<K> {
+		private final int hash;
+
+		public WeakKey( K key, ReferenceQueue<K> queue ) {
+			super( key, queue );
+
+			this.hash = System.identityHashCode( key );
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		/*
+		 * a collected key is only equal to itself, so its entry can still be removed
+		 */
+		@Override
+		public boolean equals( Object obj ) {
+			boolean retval = obj == this;
+
+			if ( !retval && obj instanceof WeakKey ) {
+				Object key = get( );
+
+				retval = key != null && key == ( ( WeakKey<?> ) obj ).get( );
+			} else if ( !retval && obj instanceof LookupKey ) {
+				retval = get( ) == ( ( LookupKey ) obj ).key;
+			}
+
+			return retval;
+		}
+	}
+
+	private static final class LookupKey {
+		private final Object key;
+
+		public LookupKey( Object key ) {
+			this.key = key;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode( key );
+		}
+
+		@Override
+		public boolean equals( Object obj ) {
+			return obj instanceof WeakKey ? ( ( WeakKey<?> ) obj ).get( ) == key : obj instanceof LookupKey && ( ( LookupKey ) obj ).key == key;
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.horizontaldb.example.model.dao.AbstractDao;
+import org.horizontaldb.example.model.dao.DepartmentDaoImpl;
+import org.horizontaldb.example.model.dao.PersonDaoImpl;
+import org.horizontaldb.shard.ShardContext;
+import org.horizontaldb.shard.hibernate.AbstractDaoEnricher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import org.springframework.orm.hibernate4.HibernateTransactionManager;
+
+/*
+ * The setup and teardown of the AbstractDaoEnricher along a chain of nested service calls, each call with a
+ * ShardContext of its own and the same two dao types, like TestServiceOne.callNestedServiceChain but `depth' levels
+ * deep. The session factory is a plain dynamic proxy handing out the same session.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.AbstractDaoEnricherBenchmark'.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class AbstractDaoEnricherBenchmark {
+
+	@Param( { "1", "10", "32" } )
+	private int depth;
+
+	private AbstractDaoEnricher enricher;
+	private AbstractDao personDao;
+	private AbstractDao departmentDao;
+	private ShardContext[] shardContexts;
+
+	@Setup( Level.Trial )
+	public void setUp() {
+		// the test configuration logs at trace level, which would log the cache statistics on every teardown
+		( ( ch.qos.logback.classic.Logger ) LoggerFactory.getLogger( AbstractDaoEnricher.class ) ).setLevel( ch.qos.logback.classic.Level.INFO );
+
+		final Session session = ( Session ) Proxy.newProxyInstance( getClass( ).getClassLoader( ), new Class<?>[ ] { Session.class }, new NullHandler( ) );
+
+		SessionFactory sessionFactory = ( SessionFactory ) Proxy.newProxyInstance( getClass( ).getClassLoader( ), new Class<?>[ ] { SessionFactory.class },
+				new NullHandler( ) {
+
+					@Override
+					public Object invoke( Object proxy, Method method, Object[] args ) {
+						return "getCurrentSession".equals( method.getName( ) ) ? session : super.invoke( proxy, method, args );
+					}
+				} );
+
+		HibernateTransactionManager txManager = new HibernateTransactionManager( );
+		txManager.setSessionFactory( sessionFactory );
+
+		enricher = new AbstractDaoEnricher( txManager );
+		personDao = new PersonDaoImpl( );
+		departmentDao = new DepartmentDaoImpl( );
+
+		shardContexts = new ShardContext[ depth ];
+
+		for ( int i = 0; i < depth; i++ ) {
+			shardContexts[ i ] = new ShardContext( "client" + i );
+		}
+	}
+
+	@Benchmark
+	public void nestedChain() {
+		for ( int i = 0; i < depth; i++ ) {
+			enricher.setup( personDao, shardContexts[ i ] );
+			enricher.setup( departmentDao, shardContexts[ i ] );
+		}
+
+		for ( int i = depth - 1; i >= 0; i-- ) {
+			enricher.tearDown( departmentDao, shardContexts[ i ] );
+			enricher.tearDown( personDao, shardContexts[ i ] );
+		}
+	}
+
+	private static class NullHandler implements InvocationHandler {
+
+		@Override
+		public Object invoke( Object proxy, Method method, Object[] args ) {
+			return null;
+		}
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder( ).include( AbstractDaoEnricherBenchmark.class.getSimpleName( ) ).build( ) ).run( );
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.horizontaldb.example.model.UserToken;
+import org.horizontaldb.shard.ConversationJournal;
+import org.horizontaldb.shard.ConversationRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/*
+ * Measures what the conversation journal costs. `startAndTeardown' starts a conversation and tears it down again, with
+ * and without the journal, so the difference is the price of the two appends. `recover' loads a journal of a million
+ * conversations, the time a restarted node needs to restore them.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.ConversationJournalBenchmark'.
+ */
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ConversationJournalBenchmark {
+	private static final int CLIENTS = 1024;
+	private static final int RECOVERED_CONVERSATIONS = 1000000;
+
+	@Benchmark
+	@BenchmarkMode( Mode.AverageTime )
+	@OutputTimeUnit( TimeUnit.NANOSECONDS )
+	public void startAndTeardown( RegistryState state ) {
+		UserToken userToken = state.nextUserToken( );
+
+		state.registry.startConversation( userToken );
+		state.registry.teardownConversation( userToken );
+	}
+
+	@Benchmark
+	@BenchmarkMode( Mode.SingleShotTime )
+	@OutputTimeUnit( TimeUnit.MILLISECONDS )
+	@Warmup( iterations = 2 )
+	@Measurement( iterations = 5 )
+	public int recover( JournalState state ) throws IOException {
+		ConversationJournal journal = new ConversationJournal( state.directory, 1 << 26 );
+
+		try {
+			return journal.load( ).size( );
+		} finally {
+			journal.close( );
+		}
+	}
+
+	@State( Scope.Thread )
+	public static class RegistryState {
+		@Param( { "none", "journal" } )
+		private String persistence;
+
+		private ConversationRegistry registry;
+		private File directory;
+		private UserToken[] userTokens;
+		private int next;
+
+		@Setup( Level.Trial )
+		public void setUp() throws IOException {
+			// the test configuration logs at trace level, the registry is measured without its debug messages
+			( ( ch.qos.logback.classic.Logger ) LoggerFactory.getLogger( ConversationRegistry.class ) ).setLevel( ch.qos.logback.classic.Level.INFO );
+
+			registry = new ConversationRegistry( );
+
+			if ( "journal".equals( persistence ) ) {
+				directory = Files.createTempDirectory( "conversationJournal" ).toFile( );
+
+				ReflectionTestUtils.setField( registry, "journalDirectory", directory.getPath( ) );
+				ReflectionTestUtils.setField( registry, "journalSegmentBytes", 1 << 26 );
+			}
+
+			registry.init( );
+
+			userTokens = new UserToken[CLIENTS];
+
+			for ( int i = 0; i < CLIENTS; i++ ) {
+				userTokens[i] = new BenchmarkUserToken( "client" + i );
+			}
+		}
+
+		@TearDown( Level.Trial )
+		public void tearDown() {
+			registry.stop( );
+
+			deleteDirectory( directory );
+		}
+
+		public UserToken nextUserToken() {
+			return userTokens[next++ & ( CLIENTS - 1 )];
+		}
+	}
+
+	@State( Scope.Benchmark )
+	public static class JournalState {
+		private File directory;
+
+		@Setup( Level.Trial )
+		public void setUp() throws IOException {
+			directory = Files.createTempDirectory( "conversationJournal" ).toFile( );
+
+			ConversationJournal journal = new ConversationJournal( directory, 1 << 26 );
+			journal.load( );
+
+			long now = System.currentTimeMillis( );
+
+			for ( int i = 0; i < RECOVERED_CONVERSATIONS; i++ ) {
+				journal.started( "client" + i, now );
+			}
+
+			journal.close( );
+		}
+
+		@TearDown( Level.Trial )
+		public void tearDown() {
+			deleteDirectory( directory );
+		}
+	}
+
+	private static void deleteDirectory( File directory ) {
+		if ( directory != null ) {
+			File[] files = directory.listFiles( );
+
+			if ( files != null ) {
+				for ( File file : files ) {
+					file.delete( );
+				}
+			}
+
+			directory.delete( );
+		}
+	}
+
+	private static class BenchmarkUserToken implements UserToken {
+		private final String userId;
+
+		public BenchmarkUserToken( String userId ) {
+			this.userId = userId;
+		}
+
+		@Override
+		public String getUserId() {
+			return userId;
+		}
+
+		@Override
+		public String getOrigin() {
+			return "benchmark";
+		}
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder( ).include( ConversationJournalBenchmark.class.getSimpleName( ) ).build( ) ).run( );
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.horizontaldb.example.model.UserToken;
+import org.horizontaldb.shard.ConversationRegistry;
+import org.horizontaldb.shard.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Compares the ConversationRegistry with the registry it replaced, which guarded its maps with a single monitor, on the
+ * two calls of the hot path: `hasConversation', asked on every shard bean invocation, and `addResource' of a resource
+ * already registered, done on every connection selection. Each operation picks a random client.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.ConversationRegistryBenchmark'; it runs with 1, 4, 16 and 64 threads.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ConversationRegistryBenchmark {
+	private static final int CLIENTS = 1000;
+	private static final int[] THREADS = { 1, 4, 16, 64 };
+
+	@Param( { "synchronized", "concurrent" } )
+	private String registryType;
+
+	private ConversationRegistry registry;
+	private String[] clientIds;
+	private Resource[] resources;
+
+	@Setup( Level.Trial )
+	public void setUp() {
+		// the test configuration logs at trace level, the registry is measured without its debug messages
+		( ( ch.qos.logback.classic.Logger ) LoggerFactory.getLogger( ConversationRegistry.class ) ).setLevel( ch.qos.logback.classic.Level.INFO );
+
+		registry = "synchronized".equals( registryType ) ? new SynchronizedConversationRegistry( ) : new ConversationRegistry( );
+		clientIds = new String[CLIENTS];
+		resources = new Resource[CLIENTS];
+
+		for ( int i = 0; i < CLIENTS; i++ ) {
+			clientIds[i] = "client" + i;
+			resources[i] = new BenchmarkResource( );
+
+			registry.startConversation( new BenchmarkUserToken( clientIds[i] ) );
+			registry.addResource( clientIds[i], resources[i] );
+		}
+	}
+
+	@Benchmark
+	public boolean hasConversation() {
+		return registry.hasConversation( clientIds[ThreadLocalRandom.current( ).nextInt( CLIENTS )] );
+	}
+
+	@Benchmark
+	public void addRegisteredResource() {
+		int client = ThreadLocalRandom.current( ).nextInt( CLIENTS );
+
+		registry.addResource( clientIds[client], resources[client] );
+	}
+
+	/*
+	 * the registry as it was before, every call synchronizes on one monitor
+	 */
+	private static class SynchronizedConversationRegistry extends ConversationRegistry {
+		private final Object lock = new Object( );
+		private final Map<String, Boolean> conversationMap = new HashMap<>( );
+		private final Map<String, Set<Resource>> conversationResourceMap = new HashMap<>( );
+
+		@Override
+		public void startConversation( UserToken userToken ) {
+			synchronized ( lock ) {
+				conversationMap.put( userToken.getUserId( ), true );
+			}
+		}
+
+		@Override
+		public boolean hasConversation( String clientId ) {
+			boolean retval = false;
+
+			synchronized ( lock ) {
+				retval = conversationMap.containsKey( clientId );
+			}
+
+			return retval;
+		}
+
+		@Override
+		public void addResource( String clientId, Object resource ) {
+			if ( resource instanceof Resource ) {
+				synchronized ( lock ) {
+					if ( conversationMap.containsKey( clientId ) ) {
+						Set<Resource> resourceSet = conversationResourceMap.get( clientId );
+
+						if ( resourceSet == null ) {
+							resourceSet = new HashSet<>( );
+
+							conversationResourceMap.put( clientId, resourceSet );
+						}
+
+						resourceSet.add( ( Resource ) resource );
+					}
+				}
+			}
+		}
+	}
+
+	private static class BenchmarkResource implements Resource {
+
+		@Override
+		public void release() {
+			// nothing to release
+		}
+	}
+
+	private static class BenchmarkUserToken implements UserToken {
+		private final String userId;
+
+		public BenchmarkUserToken( String userId ) {
+			this.userId = userId;
+		}
+
+		@Override
+		public String getUserId() {
+			return userId;
+		}
+
+		@Override
+		public String getOrigin() {
+			return "benchmark";
+		}
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		for ( int threads : THREADS ) {
+			new Runner( new OptionsBuilder( ).include( ConversationRegistryBenchmark.class.getSimpleName( ) ).threads( threads ).build( ) ).run( );
+		}
+	}
+
+}
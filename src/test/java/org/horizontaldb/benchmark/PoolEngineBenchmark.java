@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.horizontaldb.shard.hibernate.LightweightPool;
+import org.horizontaldb.shard.hibernate.PoolAdapter;
+import org.horizontaldb.shard.hibernate.TomcatPoolAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Compares the pool engines of the tenant pools. `borrowConnection' borrows a connection of a warm pool and returns it
+ * right away, so it measures the pool rather than the database. `startPool' starts a pool with one connection of an
+ * in-memory H2 database and closes it; run with `-prof gc', its normalized allocation tells what building a pool costs
+ * on the heap, the H2 connection included.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.PoolEngineBenchmark'.
+ */
+@State( Scope.Benchmark )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class PoolEngineBenchmark {
+	private static final String URL = "jdbc:h2:mem:poolEngineBenchmark;DB_CLOSE_DELAY=-1";
+	private static final int POOL_SIZE = 8;
+
+	@Param( { "tomcat", "lightweight" } )
+	private String engine;
+
+	private PoolAdapter pool;
+
+	@Setup( Level.Trial )
+	public void setUp() throws SQLException {
+		pool = createPool( );
+		pool.start( );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown() {
+		pool.close( );
+	}
+
+	@Benchmark
+	@BenchmarkMode( Mode.Throughput )
+	@OutputTimeUnit( TimeUnit.MILLISECONDS )
+	@Threads( 4 )
+	public boolean borrowConnection() throws SQLException {
+		try ( Connection connection = pool.getDataSource( ).getConnection( ) ) {
+			return connection.getAutoCommit( );
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode( Mode.AverageTime )
+	@OutputTimeUnit( TimeUnit.MICROSECONDS )
+	@Threads( 1 )
+	public int startPool() throws SQLException {
+		PoolAdapter created = createPool( );
+
+		try {
+			created.start( );
+
+			return created.getSize( );
+		} finally {
+			created.close( );
+		}
+	}
+
+	private PoolAdapter createPool() {
+		PoolAdapter retval;
+
+		if ( "lightweight".equals( engine ) ) {
+			LightweightPool lightweightPool = new LightweightPool( );
+
+			lightweightPool.setDriverClassName( "org.h2.Driver" );
+			lightweightPool.setUrl( URL );
+			lightweightPool.setInitialSize( 1 );
+			lightweightPool.setMaxActive( POOL_SIZE );
+			lightweightPool.setMaxIdle( POOL_SIZE );
+
+			retval = lightweightPool;
+		} else {
+			org.apache.tomcat.jdbc.pool.DataSource dataSource = new org.apache.tomcat.jdbc.pool.DataSource( );
+
+			dataSource.setDriverClassName( "org.h2.Driver" );
+			dataSource.setUrl( URL );
+			dataSource.setInitialSize( 1 );
+			dataSource.setMinIdle( 1 );
+			dataSource.setMaxActive( POOL_SIZE );
+			dataSource.setMaxIdle( POOL_SIZE );
+
+			retval = new TomcatPoolAdapter( dataSource );
+		}
+
+		return retval;
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder( ).include( PoolEngineBenchmark.class.getSimpleName( ) ).build( ) ).run( );
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.horizontaldb.example.model.dao.DepartmentDaoImpl;
+import org.horizontaldb.example.model.dao.PersonDaoImpl;
+import org.horizontaldb.util.BeanUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.aop.support.AopUtils;
+
+/*
+ * The unpacking of the shard beans on the path of TestServiceOne.callNestedServiceChain: the PersonDao of
+ * TestServiceTwo and the DepartmentDao of TestServiceThree are JDK proxies, like the @Repository beans behind the
+ * exception translation, and each of them is unpacked at setup and at teardown. `uncached' asks the proxies for their
+ * targets every time, as BeanUtils did before, `cached' goes through BeanUtils.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.ProxyUnpackingBenchmark'.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ProxyUnpackingBenchmark {
+	private BeanUtils beanUtils;
+	private Object personDao;
+	private Object departmentDao;
+
+	@Setup( Level.Trial )
+	public void setUp() {
+		beanUtils = new BeanUtils( );
+
+		personDao = new ProxyFactory( new PersonDaoImpl( ) ).getProxy( );
+		departmentDao = new ProxyFactory( new DepartmentDaoImpl( ) ).getProxy( );
+	}
+
+	@Benchmark
+	public void uncached( Blackhole blackhole ) throws Exception {
+		blackhole.consume( unpack( personDao ) );
+		blackhole.consume( unpack( departmentDao ) );
+		blackhole.consume( unpack( departmentDao ) );
+		blackhole.consume( unpack( personDao ) );
+	}
+
+	@Benchmark
+	public void cached( Blackhole blackhole ) {
+		blackhole.consume( beanUtils.unpackDynamicProxy( personDao ) );
+		blackhole.consume( beanUtils.unpackDynamicProxy( departmentDao ) );
+		blackhole.consume( beanUtils.unpackDynamicProxy( departmentDao ) );
+		blackhole.consume( beanUtils.unpackDynamicProxy( personDao ) );
+	}
+
+	private Object unpack( Object bean ) throws Exception {
+		Object retval = bean;
+
+		if ( AopUtils.isJdkDynamicProxy( bean ) ) {
+			retval = ( ( Advised ) bean ).getTargetSource( ).getTarget( );
+		}
+
+		return retval;
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder( ).include( ProxyUnpackingBenchmark.class.getSimpleName( ) ).build( ) ).run( );
+	}
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.horizontaldb.example.model.UserToken;
+import org.horizontaldb.shard.ConversationRegistry;
+import org.horizontaldb.shard.ShardBeanEnricher;
+import org.horizontaldb.shard.ShardContext;
+import org.horizontaldb.shard.ShardContextEnricher;
+import org.horizontaldb.shard.advise.PersistentConversationValidatorAspect;
+import org.horizontaldb.shard.advise.ShardContextEnricherAspect;
+import org.horizontaldb.shard.annotation.ShardBean;
+import org.horizontaldb.shard.annotation.ShardBeans;
+import org.horizontaldb.shard.hibernate.TenantContext;
+import org.horizontaldb.shard.hibernate.advise.FusedShardInterceptor;
+import org.horizontaldb.shard.hibernate.advise.ShardCallSupport;
+import org.horizontaldb.shard.hibernate.advise.TenantContextEnricherAspect;
+import org.horizontaldb.shard.hibernate.advise.TenantIdValidatorAspect;
+import org.horizontaldb.shard.resolver.ShardBeanResolver;
+import org.horizontaldb.util.BeanUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.AnnotationTransactionAttributeSource;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAttributeSourceAdvisor;
+import org.springframework.transaction.interceptor.TransactionInterceptor;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+/*
+ * The per-call cost of the shard advice: `chain' calls a transactional @ShardBeans method through the five advices
+ * wired by default, the two validators, TenantContextEnricherAspect, the transaction interceptor and
+ * ShardContextEnricherAspect, `fused' calls it through the FusedShardInterceptor alone and `generated' calls the
+ * subclass generated by the ShardServiceProcessor, without a proxy. The transaction manager, the resolver and the
+ * enricher do nothing, so the difference to `direct' is the overhead of the advice.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.ShardAdviceBenchmark'.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ShardAdviceBenchmark {
+	private BenchmarkService direct;
+	private BenchmarkService chain;
+	private BenchmarkService fused;
+	private BenchmarkService generated;
+	private ShardContext shardContext;
+
+	@Setup( Level.Trial )
+	public void setUp() {
+		// the test configuration logs at trace level, the advice is measured without the debug messages of the registry
+		// and of the transaction manager, which logs through commons-logging to java.util.logging here
+		( ( ch.qos.logback.classic.Logger ) LoggerFactory.getLogger( ConversationRegistry.class ) ).setLevel( ch.qos.logback.classic.Level.INFO );
+		java.util.logging.Logger.getLogger( "" ).setLevel( java.util.logging.Level.INFO );
+
+		ConversationRegistry registry = new ConversationRegistry( );
+		registry.startConversation( new BenchmarkUserToken( "client" ) );
+
+		TenantContext tenantContext = new TenantContext( );
+		NoopTransactionManager transactionManager = new NoopTransactionManager( );
+
+		direct = new BenchmarkServiceImpl( );
+		chain = createChain( registry, tenantContext, transactionManager );
+		fused = createFused( registry, tenantContext, transactionManager );
+		generated = createGenerated( registry, tenantContext, transactionManager );
+
+		shardContext = new ShardContext( "client" );
+	}
+
+	@Benchmark
+	public int direct() {
+		return direct.getCount( shardContext );
+	}
+
+	@Benchmark
+	public int chain() {
+		return chain.getCount( shardContext );
+	}
+
+	@Benchmark
+	public int fused() {
+		return fused.getCount( shardContext );
+	}
+
+	@Benchmark
+	public int generated() {
+		return generated.getCount( shardContext );
+	}
+
+	private BenchmarkService createChain( ConversationRegistry registry, TenantContext tenantContext, NoopTransactionManager transactionManager ) {
+		PersistentConversationValidatorAspect conversationValidator = new PersistentConversationValidatorAspect( );
+		ReflectionTestUtils.setField( conversationValidator, "registry", registry );
+
+		TenantIdValidatorAspect tenantIdValidator = new TenantIdValidatorAspect( );
+		ReflectionTestUtils.setField( tenantIdValidator, "tenantContext", tenantContext );
+
+		TransactionInterceptor transactionInterceptor = new TransactionInterceptor( transactionManager, new AnnotationTransactionAttributeSource( ) );
+
+		ShardContextEnricherAspect shardContextEnricher = new ShardContextEnricherAspect( );
+		initEnricher( shardContextEnricher, registry );
+
+		AspectJProxyFactory proxyFactory = new AspectJProxyFactory( new BenchmarkServiceImpl( ) );
+		proxyFactory.addAspect( conversationValidator );
+		proxyFactory.addAspect( tenantIdValidator );
+		proxyFactory.addAspect( new TenantContextEnricherAspect( tenantContext ) );
+		proxyFactory.addAdvisor( new TransactionAttributeSourceAdvisor( transactionInterceptor ) );
+		proxyFactory.addAspect( shardContextEnricher );
+
+		return proxyFactory.getProxy( );
+	}
+
+	private BenchmarkService createFused( ConversationRegistry registry, TenantContext tenantContext, NoopTransactionManager transactionManager ) {
+		FusedShardInterceptor interceptor = new FusedShardInterceptor( tenantContext );
+		interceptor.setTransactionManager( transactionManager );
+		interceptor.init( );
+		initEnricher( interceptor, registry );
+
+		ProxyFactory proxyFactory = new ProxyFactory( new BenchmarkServiceImpl( ) );
+		proxyFactory.addAdvisor( interceptor );
+
+		return ( BenchmarkService ) proxyFactory.getProxy( );
+	}
+
+	private BenchmarkService createGenerated( ConversationRegistry registry, TenantContext tenantContext, NoopTransactionManager transactionManager ) {
+		ShardCallSupport support = new ShardCallSupport( tenantContext );
+		support.setTransactionManager( transactionManager );
+		initEnricher( support, registry );
+
+		BenchmarkService retval = new ShardAdviceBenchmark_BenchmarkServiceImpl_Sharded( );
+		ReflectionTestUtils.setField( retval, "shardCallSupport", support );
+
+		return retval;
+	}
+
+	private void initEnricher( ShardContextEnricher enricher, ConversationRegistry registry ) {
+		ReflectionTestUtils.setField( enricher, "registry", registry );
+		ReflectionTestUtils.setField( enricher, "beanUtils", new BeanUtils( ) );
+
+		enricher.setTargetResolvers( Collections.<Class<?>, ShardBeanResolver> singletonMap( Object.class, new NoopResolver( ) ) );
+		enricher.setTargetEnrichers( Collections.<Class<?>, ShardBeanEnricher> singletonMap( Object.class, new NoopEnricher( ) ) );
+	}
+
+	public interface BenchmarkService {
+
+		int getCount( ShardContext shardContext );
+
+	}
+
+	public static class BenchmarkServiceImpl implements BenchmarkService {
+
+		@Override
+		@Transactional( readOnly = true )
+		@ShardBeans( { @ShardBean( Dao1.class ), @ShardBean( Dao2.class ) } )
+		public int getCount( ShardContext shardContext ) {
+			return 2;
+		}
+	}
+
+	private static class NoopTransactionManager extends AbstractPlatformTransactionManager {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected Object doGetTransaction() {
+			return new Object( );
+		}
+
+		@Override
+		protected void doBegin( Object transaction, TransactionDefinition definition ) {
+		}
+
+		@Override
+		protected void doCommit( DefaultTransactionStatus status ) {
+		}
+
+		@Override
+		protected void doRollback( DefaultTransactionStatus status ) {
+		}
+	}
+
+	private static class NoopResolver implements ShardBeanResolver {
+		private final Object bean = new Object( );
+
+		@Override
+		@SuppressWarnings( "unchecked" )
+		public <T> T getBean( Class<T> beanClass, ShardContext shardContext ) {
+			return ( T ) bean;
+		}
+	}
+
+	private static class NoopEnricher implements ShardBeanEnricher {
+
+		@Override
+		public void setup( Object bean, ShardContext shardContext ) {
+		}
+
+		@Override
+		public void tearDown( Object bean, ShardContext shardContext ) {
+		}
+	}
+
+	private static class BenchmarkUserToken implements UserToken {
+		private final String userId;
+
+		public BenchmarkUserToken( String userId ) {
+			this.userId = userId;
+		}
+
+		@Override
+		public String getUserId() {
+			return userId;
+		}
+
+		@Override
+		public String getOrigin() {
+			return "benchmark";
+		}
+	}
+
+	private interface Dao1 {
+	}
+
+	private interface Dao2 {
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder( ).include( ShardAdviceBenchmark.class.getSimpleName( ) ).build( ) ).run( );
+	}
+
+}
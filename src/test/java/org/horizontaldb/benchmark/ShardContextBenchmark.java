@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.horizontaldb.shard.ShardContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * The bean storage of a ShardContext for one request: a context is filled with 2 or 8 shard beans, which are then read
+ * back. `hashMap' is the former storage, a HashMap per context, `slots' creates a ShardContext per request and
+ * `reused' resets one context for every request. Run it with the GC profiler (`-prof gc') to see the allocation per
+ * request.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.ShardContextBenchmark'.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ShardContextBenchmark {
+	private static final Class<?>[] BEAN_TYPES = { Dao1.class, Dao2.class, Dao3.class, Dao4.class, Dao5.class, Dao6.class, Dao7.class, Dao8.class };
+
+	@Param( { "2", "8" } )
+	private int shardBeans;
+
+	private Object bean;
+	private ShardContext reusedContext;
+
+	@Setup( Level.Trial )
+	public void setUp() {
+		bean = new Object( );
+		reusedContext = new ShardContext( "client" );
+	}
+
+	@Benchmark
+	public int hashMap() {
+		Map<Class<?>, Object> beans = new HashMap<>( );
+
+		for ( int i = 0; i < shardBeans; i++ ) {
+			beans.put( BEAN_TYPES[i], bean );
+		}
+
+		int retval = 0;
+
+		for ( int i = 0; i < shardBeans; i++ ) {
+			if ( beans.get( BEAN_TYPES[i] ) != null ) {
+				retval++;
+			}
+		}
+
+		return retval;
+	}
+
+	@Benchmark
+	public int slots() {
+		return fill( new ShardContext( "client" ) );
+	}
+
+	@Benchmark
+	public int reused() {
+		reusedContext.reset( );
+
+		return fill( reusedContext );
+	}
+
+	private int fill( ShardContext shardContext ) {
+		for ( int i = 0; i < shardBeans; i++ ) {
+			shardContext.setBean( BEAN_TYPES[i], bean );
+		}
+
+		int retval = 0;
+
+		for ( int i = 0; i < shardBeans; i++ ) {
+			if ( shardContext.getBean( BEAN_TYPES[i] ) != null ) {
+				retval++;
+			}
+		}
+
+		return retval;
+	}
+
+	private interface Dao1 {
+	}
+
+	private interface Dao2 {
+	}
+
+	private interface Dao3 {
+	}
+
+	private interface Dao4 {
+	}
+
+	private interface Dao5 {
+	}
+
+	private interface Dao6 {
+	}
+
+	private interface Dao7 {
+	}
+
+	private interface Dao8 {
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder( ).include( ShardContextBenchmark.class.getSimpleName( ) ).build( ) ).run( );
+	}
+
+}
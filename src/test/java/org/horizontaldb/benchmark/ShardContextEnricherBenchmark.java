@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.horizontaldb.shard.ConversationRegistry;
+import org.horizontaldb.shard.ShardBeanEnricher;
+import org.horizontaldb.shard.ShardContext;
+import org.horizontaldb.shard.advise.ShardContextEnricherAspect;
+import org.horizontaldb.shard.annotation.ShardBean;
+import org.horizontaldb.shard.annotation.ShardBeans;
+import org.horizontaldb.shard.resolver.ShardBeanResolver;
+import org.horizontaldb.util.BeanUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/*
+ * Measures what ShardContextEnricherAspect.populateShardContext adds to a call declaring 1, 2 or 8 shard beans. The
+ * resolver and the enricher do nothing. `enricher' runs the setup and teardown of the aspect around a direct call,
+ * `proxied' calls the service through a Spring AOP proxy advised by the aspect, so it includes the matching of the
+ * pointcut at runtime, which costs far more than the aspect itself. `enricherAllocating' tears the beans down one by one,
+ * so the bean array is not given back and each setup allocates a new one, as it did before the arrays were reused; run
+ * with `-prof gc' to compare the allocations per call.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.ShardContextEnricherBenchmark'.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class ShardContextEnricherBenchmark {
+
+	@Param( { "1", "2", "8" } )
+	private int shardBeans;
+
+	private BenchmarkService direct;
+	private BenchmarkService proxied;
+	private BenchmarkAspect aspect;
+	private Method method;
+	private ShardBeans annotation;
+	private ShardContext shardContext;
+
+	@Setup( Level.Trial )
+	public void setUp() throws NoSuchMethodException {
+		aspect = new BenchmarkAspect( );
+
+		ReflectionTestUtils.setField( aspect, "registry", new ConversationRegistry( ) );
+		ReflectionTestUtils.setField( aspect, "beanUtils", new BeanUtils( ) );
+
+		aspect.setTargetResolvers( Collections.<Class<?>, ShardBeanResolver> singletonMap( Object.class, new NoopResolver( ) ) );
+		aspect.setTargetEnrichers( Collections.<Class<?>, ShardBeanEnricher> singletonMap( Object.class, new NoopEnricher( ) ) );
+
+		direct = new BenchmarkServiceImpl( );
+
+		AspectJProxyFactory proxyFactory = new AspectJProxyFactory( direct );
+		proxyFactory.addAspect( aspect );
+
+		proxied = proxyFactory.getProxy( );
+
+		shardContext = new ShardContext( "client" );
+
+		String methodName = shardBeans == 1 ? "oneBean" : shardBeans == 2 ? "twoBeans" : "eightBeans";
+
+		method = BenchmarkServiceImpl.class.getMethod( methodName, ShardContext.class );
+		annotation = method.getAnnotation( ShardBeans.class );
+	}
+
+	@Benchmark
+	public int direct() {
+		return call( direct );
+	}
+
+	@Benchmark
+	public int enricher() {
+		Object[] beans = aspect.setup( method, annotation, shardContext );
+
+		try {
+			return call( direct );
+		} finally {
+			aspect.tearDown( beans, shardContext );
+		}
+	}
+
+	@Benchmark
+	public int enricherAllocating() {
+		Object[] beans = aspect.setup( method, annotation, shardContext );
+
+		try {
+			return call( direct );
+		} finally {
+			for ( Object bean : beans ) {
+				aspect.tearDown( bean, shardContext );
+			}
+		}
+	}
+
+	@Benchmark
+	public int proxied() {
+		return call( proxied );
+	}
+
+	private int call( BenchmarkService service ) {
+		int retval;
+
+		switch ( shardBeans ) {
+			case 1:
+				retval = service.oneBean( shardContext );
+				break;
+			case 2:
+				retval = service.twoBeans( shardContext );
+				break;
+			default:
+				retval = service.eightBeans( shardContext );
+				break;
+		}
+
+		return retval;
+	}
+
+	public interface BenchmarkService {
+
+		int oneBean( ShardContext shardContext );
+
+		int twoBeans( ShardContext shardContext );
+
+		int eightBeans( ShardContext shardContext );
+
+	}
+
+	public static class BenchmarkServiceImpl implements BenchmarkService {
+
+		@Override
+		@ShardBeans( { @ShardBean( Dao1.class ) } )
+		public int oneBean( ShardContext shardContext ) {
+			return 1;
+		}
+
+		@Override
+		@ShardBeans( { @ShardBean( Dao1.class ), @ShardBean( Dao2.class ) } )
+		public int twoBeans( ShardContext shardContext ) {
+			return 2;
+		}
+
+		@Override
+		@ShardBeans( { @ShardBean( Dao1.class ), @ShardBean( Dao2.class ), @ShardBean( Dao3.class ), @ShardBean( Dao4.class ), @ShardBean( Dao5.class ),
+				@ShardBean( Dao6.class ), @ShardBean( Dao7.class ), @ShardBean( Dao8.class ) } )
+		public int eightBeans( ShardContext shardContext ) {
+			return 8;
+		}
+	}
+
+	private static class BenchmarkAspect extends ShardContextEnricherAspect {
+
+		public Object[] setup( Method method, ShardBeans shardBeans, ShardContext shardContext ) {
+			return doSetup( method, shardBeans, shardContext );
+		}
+
+		public void tearDown( Object[] beans, ShardContext shardContext ) {
+			doTearDown( beans, shardContext );
+		}
+
+		public void tearDown( Object bean, ShardContext shardContext ) {
+			doTearDown( bean, shardContext );
+		}
+	}
+
+	private static class NoopResolver implements ShardBeanResolver {
+		private final Object bean = new Object( );
+
+		@Override
+		@SuppressWarnings( "unchecked" )
+		public <T> T getBean( Class<T> beanClass, ShardContext shardContext ) {
+			return ( T ) bean;
+		}
+	}
+
+	private static class NoopEnricher implements ShardBeanEnricher {
+
+		@Override
+		public void setup( Object bean, ShardContext shardContext ) {
+		}
+
+		@Override
+		public void tearDown( Object bean, ShardContext shardContext ) {
+		}
+	}
+
+	private interface Dao1 {
+	}
+
+	private interface Dao2 {
+	}
+
+	private interface Dao3 {
+	}
+
+	private interface Dao4 {
+	}
+
+	private interface Dao5 {
+	}
+
+	private interface Dao6 {
+	}
+
+	private interface Dao7 {
+	}
+
+	private interface Dao8 {
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder( ).include( ShardContextEnricherBenchmark.class.getSimpleName( ) ).build( ) ).run( );
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.engine.jdbc.connections.spi.MultiTenantConnectionProvider;
+import org.hibernate.service.spi.Stoppable;
+import org.horizontaldb.example.model.UserToken;
+import org.horizontaldb.shard.ConversationRegistry;
+import org.horizontaldb.shard.ShardRouter;
+import org.horizontaldb.shard.hibernate.DataSourceFactory;
+import org.horizontaldb.shard.hibernate.DataSourceResource;
+import org.horizontaldb.shard.hibernate.SchemaTenantConnectionProvider;
+import org.horizontaldb.shard.hibernate.SharedDataSourceFactory;
+import org.horizontaldb.shard.hibernate.TenantConnectionProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/*
+ * Compares the DATABASE mode, a pool and an in-memory H2 database per tenant, with the SCHEMA mode, one shared pool
+ * and a schema per tenant in a single H2 database. Each operation borrows a connection of a random tenant, runs a
+ * trivial query and returns the connection.
+ *
+ * Run it from the test classpath, e.g. with `mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.horizontaldb.benchmark.TenantConnectionProviderBenchmark'.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Threads( 4 )
+@Fork( 1 )
+public class TenantConnectionProviderBenchmark {
+	private static final int TENANT_POOL_SIZE = 2;
+	private static final int SHARED_POOL_SIZE = 16;
+
+	@Param( { "DATABASE", "SCHEMA" } )
+	private String multiTenancy;
+
+	@Param( { "10", "100" } )
+	private int tenants;
+
+	private MultiTenantConnectionProvider provider;
+	private String[] tenantIds;
+
+	@Setup( Level.Trial )
+	public void setUp() throws SQLException {
+		tenantIds = new String[tenants];
+
+		for ( int i = 0; i < tenants; i++ ) {
+			tenantIds[i] = "tenant" + i;
+		}
+
+		if ( "SCHEMA".equals( multiTenancy ) ) {
+			provider = createSchemaProvider( );
+		} else {
+			provider = createDatabaseProvider( );
+		}
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown() {
+		( ( Stoppable ) provider ).stop( );
+	}
+
+	@Benchmark
+	public boolean borrowConnection() throws SQLException {
+		String tenantId = tenantIds[ThreadLocalRandom.current( ).nextInt( tenants )];
+
+		Connection connection = provider.getConnection( tenantId );
+
+		try ( Statement statement = connection.createStatement( ) ) {
+			return statement.execute( "SELECT 1" );
+		} finally {
+			provider.releaseConnection( tenantId, connection );
+		}
+	}
+
+	private MultiTenantConnectionProvider createDatabaseProvider() {
+		ConversationRegistry registry = new ConversationRegistry( );
+
+		for ( String tenantId : tenantIds ) {
+			registry.startConversation( new BenchmarkUserToken( tenantId ) );
+		}
+
+		TenantConnectionProvider retval = new TenantConnectionProvider( );
+
+		ReflectionTestUtils.setField( retval, "registry", registry );
+		ReflectionTestUtils.setField( retval, "dataSourceFactory", new DataSourceFactory( ) {
+
+			@Override
+			public DataSourceResource getDataSource( String tenantId ) {
+				return new DataSourceResource( createPool( String.format( "jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1", tenantId ), TENANT_POOL_SIZE ) );
+			}
+		} );
+		ReflectionTestUtils.setField( retval, "anyDataSourceTenantId", tenantIds[0] );
+
+		retval.init( );
+
+		return retval;
+	}
+
+	private MultiTenantConnectionProvider createSchemaProvider() throws SQLException {
+		ShardRouter shardRouter = new ShardRouter( );
+		shardRouter.setServers( Arrays.asList( "benchmarkTenants" ) );
+
+		SchemaTenantConnectionProvider retval = new SchemaTenantConnectionProvider( );
+
+		ReflectionTestUtils.setField( retval, "dataSourceFactory", new SharedDataSourceFactory( ) {
+
+			@Override
+			public DataSourceResource getSharedDataSource( String serverUrl ) {
+				return new DataSourceResource( createPool( serverUrl, SHARED_POOL_SIZE ) );
+			}
+		} );
+		ReflectionTestUtils.setField( retval, "anyDataSourceTenantId", tenantIds[0] );
+		ReflectionTestUtils.setField( retval, "shardRouter", shardRouter );
+		ReflectionTestUtils.setField( retval, "serverUrlTemplate", "jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1" );
+		ReflectionTestUtils.setField( retval, "setSchemaTemplate", "SET SCHEMA %s" );
+		ReflectionTestUtils.setField( retval, "defaultSchema", "PUBLIC" );
+
+		Connection connection = retval.getAnyConnection( );
+
+		try ( Statement statement = connection.createStatement( ) ) {
+			for ( String tenantId : tenantIds ) {
+				statement.execute( String.format( "CREATE SCHEMA IF NOT EXISTS %s", tenantId ) );
+			}
+		} finally {
+			retval.releaseAnyConnection( connection );
+		}
+
+		return retval;
+	}
+
+	private org.apache.tomcat.jdbc.pool.DataSource createPool( String url, int size ) {
+		org.apache.tomcat.jdbc.pool.DataSource retval = new org.apache.tomcat.jdbc.pool.DataSource( );
+
+		retval.setDriverClassName( "org.h2.Driver" );
+		retval.setUrl( url );
+		retval.setInitialSize( 1 );
+		retval.setMinIdle( 1 );
+		retval.setMaxIdle( size );
+		retval.setMaxActive( size );
+
+		return retval;
+	}
+
+	private static class BenchmarkUserToken implements UserToken {
+		private final String userId;
+
+		public BenchmarkUserToken( String userId ) {
+			this.userId = userId;
+		}
+
+		@Override
+		public String getUserId() {
+			return userId;
+		}
+
+		@Override
+		public String getOrigin() {
+			return "benchmark";
+		}
+	}
+
+	public static void main( String[] args ) throws RunnerException {
+		new Runner( new OptionsBuilder( ).include( TenantConnectionProviderBenchmark.class.getSimpleName( ) ).build( ) ).run( );
+	}
+
+}
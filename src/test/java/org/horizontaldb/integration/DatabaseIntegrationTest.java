@@ -32,6 +32,7 @@ import org.horizontaldb.testhelpers.TestUserHelper.TestPerson;
 import org.horizontaldb.testhelpers.TestUserHelper.TestUser;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
@@ -41,9 +42,13 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
  * 
  * The database instance is an H2 tcp server which is started up before the testcases are about to be executed,
  * and shut down once all test finished. The database files are removed by the jvm on exit.
+ * 
+ * The context is closed after the class, it must not outlive the database server, nor hold on to the named cache
+ * manager of the next context.
  */
 @ContextConfiguration( locations = { "classpath:/META-INF/spring/spring-context.xml", "/integration-testspring-context.xml" } )
 @RunWith( SpringJUnit4ClassRunner.class )
+@DirtiesContext
 public class DatabaseIntegrationTest extends EmbeddedH2Helper {
 	@Inject
 	private TestUserHelper testUserHelper;
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.integration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import javax.inject.Inject;
+
+import org.horizontaldb.shard.hibernate.advise.ShardCallSupport;
+import org.horizontaldb.testhelpers.TestServiceOne;
+import org.horizontaldb.testhelpers.TestServiceTwo;
+import org.junit.Test;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.test.context.ActiveProfiles;
+
+@ActiveProfiles( "generatedShardServices" )
+public class GeneratedInterceptorMockEnvironmentTest extends InterceptorMockEnvironmentTest {
+	@Inject
+	private TestServiceOne testServiceOne;
+	@Inject
+	private TestServiceTwo testServiceTwo;
+
+	@Test
+	public void shouldUseGeneratedServicesWithoutProxies() {
+		assertEquals( TestServiceOne.class.getName( ) + ShardCallSupport.GENERATED_CLASS_SUFFIX, testServiceOne.getClass( ).getName( ) );
+		assertEquals( TestServiceTwo.class.getName( ) + ShardCallSupport.GENERATED_CLASS_SUFFIX, testServiceTwo.getClass( ).getName( ) );
+
+		assertFalse( AopUtils.isAopProxy( testServiceOne ) );
+		assertFalse( AopUtils.isAopProxy( testServiceTwo ) );
+	}
+
+}
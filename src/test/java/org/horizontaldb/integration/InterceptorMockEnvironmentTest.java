@@ -110,6 +110,7 @@ public class InterceptorMockEnvironmentTest {
 		expect( mockShardBeanResolver.getBean( same( DepartmentDao.class ), anyObject( ShardContext.class ) ) ).andReturn( null );
 		mockShardBeanEnricher.setup( anyObject( DepartmentDaoImpl.class ), anyObject( ShardContext.class ) );
 		mockShardBeanEnricher.tearDown( anyObject( DepartmentDaoImpl.class ), anyObject( ShardContext.class ) );
+		expect( mockDataSource.getPool( ) ).andReturn( null );
 		mockDataSource.close( true );
 		mockRegistry.teardownConversation( testUserHelper.getJoeToken( ) );
 		// end protocol
@@ -231,6 +232,7 @@ public class InterceptorMockEnvironmentTest {
 		// end Hibernate transaction
 
 		// cleanup after service calls
+		expect( mockDataSource.getPool( ) ).andReturn( null );
 		mockDataSource.close( true );
 		mockRegistry.teardownConversation( testUserHelper.getJoeToken( ) );
 
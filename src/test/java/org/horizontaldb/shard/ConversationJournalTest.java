@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConversationJournalTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder( );
+
+	@Test
+	public void shouldRestoreTheConversationsAlive() throws IOException {
+		ConversationJournal journal = new ConversationJournal( folder.getRoot( ), 4096 );
+
+		assertTrue( journal.load( ).isEmpty( ) );
+
+		journal.started( "first", 1 );
+		journal.started( "second", 2 );
+		journal.ended( "first" );
+		journal.started( "third", 3 );
+		journal.close( );
+
+		Map<String, Long> restored = new ConversationJournal( folder.getRoot( ), 4096 ).load( );
+
+		assertEquals( 2, restored.size( ) );
+		assertEquals( Long.valueOf( 2 ), restored.get( "second" ) );
+		assertEquals( Long.valueOf( 3 ), restored.get( "third" ) );
+	}
+
+	@Test
+	public void shouldContinueInANewGenerationWhenTheSegmentIsFull() throws IOException {
+		ConversationJournal journal = new ConversationJournal( folder.getRoot( ), 64 );
+		journal.load( );
+
+		for ( int i = 0; i < 10; i++ ) {
+			journal.started( "client" + i, i );
+		}
+
+		journal.close( );
+
+		assertEquals( 10, new ConversationJournal( folder.getRoot( ), 64 ).load( ).size( ) );
+	}
+
+	@Test
+	public void shouldReplayTheGenerationsAfterTheSnapshot() throws IOException {
+		ConversationJournal journal = new ConversationJournal( folder.getRoot( ), 4096 );
+		journal.load( );
+
+		journal.started( "first", 1 );
+		journal.started( "second", 2 );
+
+		long firstGeneration = journal.rotate( );
+
+		// ended while the snapshot is taken, so it is both in the snapshot and in the new generation
+		journal.ended( "second" );
+		journal.started( "third", 3 );
+
+		Map<String, Long> snapshot = new LinkedHashMap<>( );
+		snapshot.put( "first", 1L );
+		snapshot.put( "second", 2L );
+		snapshot.put( "third", 3L );
+
+		journal.writeSnapshot( firstGeneration, snapshot );
+		journal.close( );
+
+		assertFalse( new File( folder.getRoot( ), "conversations-1.journal" ).exists( ) );
+
+		Map<String, Long> restored = new ConversationJournal( folder.getRoot( ), 4096 ).load( );
+
+		assertEquals( 2, restored.size( ) );
+		assertTrue( restored.containsKey( "first" ) );
+		assertTrue( restored.containsKey( "third" ) );
+	}
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMock;
+import org.horizontaldb.example.model.UserToken;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ConversationRegistryTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder( );
+
+	private ConversationRegistry registry;
+	private UserToken userToken;
+
+	@Before
+	public void setUp() {
+		registry = new ConversationRegistry( );
+
+		userToken = EasyMock.createMock( UserToken.class );
+		expect( userToken.getUserId( ) ).andReturn( "testClient" ).anyTimes( );
+		replay( userToken );
+	}
+
+	@Test
+	public void shouldAcquireSharedResourceOncePerConversation() {
+		SharedResource resource = EasyMock.createMock( SharedResource.class );
+
+		resource.acquire( );
+		resource.release( );
+
+		replay( resource );
+
+		registry.startConversation( userToken );
+
+		assertTrue( registry.hasConversation( "testClient" ) );
+
+		registry.addResource( "testClient", resource );
+		registry.addResource( "testClient", resource );
+		registry.teardownConversation( userToken );
+
+		assertFalse( registry.hasConversation( "testClient" ) );
+
+		verify( resource );
+	}
+
+	@Test
+	public void shouldNotRegisterResourcesWithoutConversation() {
+		SharedResource resource = EasyMock.createMock( SharedResource.class );
+
+		replay( resource );
+
+		registry.addResource( "testClient", resource );
+
+		registry.startConversation( userToken );
+		registry.teardownConversation( userToken );
+
+		registry.addResource( "testClient", resource );
+
+		verify( resource );
+	}
+
+	@Test
+	public void shouldExpireIdleConversations() throws InterruptedException {
+		SharedResource resource = EasyMock.createMock( SharedResource.class );
+
+		resource.acquire( );
+		resource.release( );
+
+		replay( resource );
+
+		ReflectionTestUtils.setField( registry, "idleTimeoutMillis", 50L );
+		ReflectionTestUtils.setField( registry, "expiryTickMillis", 10L );
+
+		registry.init( );
+
+		try {
+			registry.startConversation( userToken );
+			registry.addResource( "testClient", resource );
+
+			Thread.sleep( 150 );
+
+			registry.expireConversations( );
+
+			assertFalse( registry.hasConversation( "testClient" ) );
+			assertEquals( 0, registry.getConversationCount( ) );
+
+			verify( resource );
+		} finally {
+			registry.stop( );
+		}
+	}
+
+	@Test
+	public void shouldReleaseResourcesOffTheCallerThread() throws InterruptedException {
+		final CountDownLatch releaseAllowed = new CountDownLatch( 1 );
+		final CountDownLatch released = new CountDownLatch( 1 );
+
+		ReflectionTestUtils.setField( registry, "releaseThreads", 1 );
+		ReflectionTestUtils.setField( registry, "releaseQueueSize", 10 );
+
+		registry.init( );
+
+		try {
+			registry.startConversation( userToken );
+			registry.addResource( "testClient", new Resource( ) {
+
+				@Override
+				public void release() {
+					try {
+						releaseAllowed.await( );
+					} catch ( InterruptedException ex ) {
+						Thread.currentThread( ).interrupt( );
+					}
+
+					released.countDown( );
+				}
+			} );
+
+			// the teardown does not wait for the slow release
+			registry.teardownConversation( userToken );
+
+			assertFalse( registry.hasConversation( "testClient" ) );
+			assertEquals( 0, registry.getReleaseCount( ) );
+
+			releaseAllowed.countDown( );
+
+			assertTrue( released.await( 1, TimeUnit.SECONDS ) );
+		} finally {
+			registry.stop( );
+		}
+	}
+
+	@Test
+	public void shouldRestoreConversationsFromTheJournal() throws IOException {
+		ReflectionTestUtils.setField( registry, "journalDirectory", folder.getRoot( ).getPath( ) );
+		ReflectionTestUtils.setField( registry, "journalSegmentBytes", 4096 );
+
+		registry.init( );
+		registry.startConversation( userToken );
+		registry.compactJournal( );
+		registry.stop( );
+
+		ConversationRegistry restarted = new ConversationRegistry( );
+
+		ReflectionTestUtils.setField( restarted, "journalDirectory", folder.getRoot( ).getPath( ) );
+		ReflectionTestUtils.setField( restarted, "journalSegmentBytes", 4096 );
+
+		restarted.init( );
+
+		try {
+			assertTrue( restarted.hasConversation( "testClient" ) );
+
+			restarted.teardownConversation( userToken );
+		} finally {
+			restarted.stop( );
+		}
+
+		ConversationRegistry restartedAgain = new ConversationRegistry( );
+
+		ReflectionTestUtils.setField( restartedAgain, "journalDirectory", folder.getRoot( ).getPath( ) );
+		ReflectionTestUtils.setField( restartedAgain, "journalSegmentBytes", 4096 );
+
+		restartedAgain.init( );
+
+		try {
+			assertFalse( restartedAgain.hasConversation( "testClient" ) );
+		} finally {
+			restartedAgain.stop( );
+		}
+	}
+
+	@Test
+	public void shouldJournalTheEndOfAConversationAfterItsStart() throws Exception {
+		final CountDownLatch journaling = new CountDownLatch( 1 );
+		final CountDownLatch proceed = new CountDownLatch( 1 );
+
+		ReflectionTestUtils.setField( registry, "journalDirectory", folder.getRoot( ).getPath( ) );
+		ReflectionTestUtils.setField( registry, "journalSegmentBytes", 4096 );
+
+		registry.init( );
+
+		ConversationJournal journal = ( ConversationJournal ) ReflectionTestUtils.getField( registry, "journal" );
+		journal.close( );
+
+		// holds the start of the conversation between the map and the journal
+		ConversationJournal slowJournal = new ConversationJournal( folder.getRoot( ), 4096 ) {
+
+			@Override
+			public void started( String clientId, long startedAt ) {
+				journaling.countDown( );
+
+				try {
+					proceed.await( 5, TimeUnit.SECONDS );
+				} catch ( InterruptedException ex ) {
+					Thread.currentThread( ).interrupt( );
+				}
+
+				super.started( clientId, startedAt );
+			}
+		};
+		slowJournal.load( );
+
+		ReflectionTestUtils.setField( registry, "journal", slowJournal );
+
+		Thread starter = new Thread( new Runnable( ) {
+
+			@Override
+			public void run() {
+				registry.startConversation( userToken );
+			}
+		} );
+		starter.start( );
+
+		assertTrue( journaling.await( 5, TimeUnit.SECONDS ) );
+
+		Thread tearer = new Thread( new Runnable( ) {
+
+			@Override
+			public void run() {
+				registry.teardownConversation( userToken );
+			}
+		} );
+		tearer.start( );
+		tearer.join( 200 );
+
+		proceed.countDown( );
+
+		starter.join( );
+		tearer.join( );
+
+		assertFalse( registry.hasConversation( "testClient" ) );
+
+		registry.stop( );
+
+		ConversationRegistry restarted = new ConversationRegistry( );
+
+		ReflectionTestUtils.setField( restarted, "journalDirectory", folder.getRoot( ).getPath( ) );
+		ReflectionTestUtils.setField( restarted, "journalSegmentBytes", 4096 );
+
+		restarted.init( );
+
+		try {
+			assertFalse( restarted.hasConversation( "testClient" ) );
+		} finally {
+			restarted.stop( );
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HashedTimerWheelTest {
+
+	@Test
+	public void shouldExpireTimeoutsAtTheirDeadline() {
+		HashedTimerWheel<TestTimeout> wheel = new HashedTimerWheel<>( 8, 10, 1000 );
+
+		TestTimeout early = new TestTimeout( 1025 );
+		// more than a round of the wheel ahead
+		TestTimeout late = new TestTimeout( 1300 );
+
+		wheel.schedule( early );
+		wheel.schedule( late );
+
+		assertTrue( wheel.advance( 1020 ).isEmpty( ) );
+		assertEquals( Arrays.asList( early ), wheel.advance( 1030 ) );
+		assertTrue( wheel.advance( 1290 ).isEmpty( ) );
+		assertEquals( 1, wheel.size( ) );
+		assertEquals( Arrays.asList( late ), wheel.advance( 1300 ) );
+		assertEquals( 0, wheel.size( ) );
+		assertEquals( 1300, wheel.getTime( ) );
+	}
+
+	@Test
+	public void shouldRescheduleTimeoutsWhoseDeadlineMoved() {
+		HashedTimerWheel<TestTimeout> wheel = new HashedTimerWheel<>( 8, 10, 1000 );
+
+		TestTimeout timeout = new TestTimeout( 1050 );
+
+		wheel.schedule( timeout );
+
+		timeout.deadline = 1500;
+
+		assertTrue( wheel.advance( 1100 ).isEmpty( ) );
+		assertEquals( 1, wheel.size( ) );
+
+		// the wheel skipped several rounds in one step
+		assertEquals( Arrays.asList( timeout ), wheel.advance( 5000 ) );
+	}
+
+	private static class TestTimeout implements HashedTimerWheel.Timeout {
+		private long deadline;
+
+		public TestTimeout( long deadline ) {
+			this.deadline = deadline;
+		}
+
+		@Override
+		public long getDeadline() {
+			return deadline;
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ShardContextTest {
+
+	@Test
+	public void shouldKeepBeansByType() {
+		ShardContext shardContext = new ShardContext( "testClient" );
+
+		Object first = new Object( );
+		Object second = new Object( );
+
+		assertNull( shardContext.getBean( FirstDao.class ) );
+
+		shardContext.setBean( FirstDao.class, first );
+		shardContext.setBean( SecondDao.class, second );
+
+		assertSame( first, shardContext.getBean( FirstDao.class ) );
+		assertSame( second, shardContext.getBean( SecondDao.class ) );
+		// a type registered by another context after this one was filled
+		assertNull( shardContext.getBean( UnusedDao.class ) );
+	}
+
+	@Test
+	public void shouldDropBeansOnReset() {
+		ShardContext shardContext = new ShardContext( "testClient" );
+
+		shardContext.setBean( FirstDao.class, new Object( ) );
+		shardContext.reset( );
+
+		assertNull( shardContext.getBean( FirstDao.class ) );
+
+		Object bean = new Object( );
+
+		shardContext.setBean( FirstDao.class, bean );
+
+		assertSame( bean, shardContext.getBean( FirstDao.class ) );
+	}
+
+	private interface FirstDao {
+	}
+
+	private interface SecondDao {
+	}
+
+	private interface UnusedDao {
+	}
+
+}
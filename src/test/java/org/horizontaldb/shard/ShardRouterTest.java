@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardRouterTest {
+	private static final int TENANTS = 10000;
+
+	private ShardRouter router;
+
+	@Before
+	public void setUp() {
+		router = new ShardRouter( );
+		router.setVirtualNodes( 160 );
+		router.setServers( Arrays.asList( "db1", "db2", "db3" ) );
+	}
+
+	@Test
+	public void shouldSpreadTenantsEvenlyOverServers() {
+		Map<String, Integer> tenantsByServer = new HashMap<>( );
+
+		for ( int i = 0; i < TENANTS; i++ ) {
+			String server = router.getServer( "tenant" + i );
+
+			assertEquals( server, router.getServer( "tenant" + i ) );
+
+			Integer count = tenantsByServer.get( server );
+			tenantsByServer.put( server, count == null ? 1 : count + 1 );
+		}
+
+		assertEquals( 3, tenantsByServer.size( ) );
+
+		for ( Integer count : tenantsByServer.values( ) ) {
+			assertTrue( String.valueOf( tenantsByServer ), Math.abs( count - TENANTS / 3 ) < TENANTS / 3 / 4 );
+		}
+	}
+
+	@Test
+	public void shouldMoveOnlyTenantsOfTheNewServer() {
+		String[] before = new String[TENANTS];
+
+		for ( int i = 0; i < TENANTS; i++ ) {
+			before[i] = router.getServer( "tenant" + i );
+		}
+
+		router.addServer( "db4" );
+
+		int moved = 0;
+
+		for ( int i = 0; i < TENANTS; i++ ) {
+			String after = router.getServer( "tenant" + i );
+
+			if ( !after.equals( before[i] ) ) {
+				assertEquals( "db4", after );
+
+				moved++;
+			}
+		}
+
+		assertTrue( String.valueOf( moved ), Math.abs( moved - TENANTS / 4 ) < TENANTS / 4 / 4 );
+	}
+
+	@Test
+	public void shouldPreferOverrides() {
+		String server = router.getServer( "testClient" );
+		String other = server.equals( "db1" ) ? "db2" : "db1";
+
+		router.setOverride( "testClient", other );
+
+		assertEquals( other, router.getServer( "testClient" ) );
+
+		router.removeOverride( "testClient" );
+
+		assertEquals( server, router.getServer( "testClient" ) );
+	}
+
+	@Test( expected = IllegalStateException.class )
+	public void shouldFailWithoutServers() {
+		new ShardRouter( ).getServer( "testClient" );
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TypeLookupTest {
+
+	@Test
+	public void shouldPreferTheMostSpecificKeyRegardlessOfOrder() {
+		Map<Class<?>, String> mappings = new LinkedHashMap<>( );
+		mappings.put( Object.class, "object" );
+		mappings.put( Base.class, "base" );
+		mappings.put( Derived.class, "derived" );
+
+		TypeLookup<String> lookup = new TypeLookup<>( mappings );
+
+		assertEquals( "derived", lookup.get( Derived.class ) );
+		assertEquals( "derived", lookup.get( Leaf.class ) );
+		assertEquals( "base", lookup.get( Base.class ) );
+		assertEquals( "object", lookup.get( String.class ) );
+	}
+
+	@Test
+	public void shouldPreferTheClosestOfUnrelatedKeys() {
+		Map<Class<?>, String> mappings = new HashMap<>( );
+		mappings.put( Far.class, "far" );
+		mappings.put( Near.class, "near" );
+
+		TypeLookup<String> lookup = new TypeLookup<>( mappings );
+
+		// Leaf implements Near directly, Far through Derived and Base
+		assertEquals( "near", lookup.get( Leaf.class ) );
+	}
+
+	@Test
+	public void shouldNotSeeChangesOfTheMappings() {
+		Map<Class<?>, String> mappings = new HashMap<>( );
+
+		TypeLookup<String> lookup = new TypeLookup<>( mappings );
+
+		assertNull( lookup.get( Base.class ) );
+
+		mappings.put( Base.class, "base" );
+
+		assertNull( lookup.get( Base.class ) );
+		assertNull( new TypeLookup<String>( null ).get( Base.class ) );
+	}
+
+	private interface Far {
+	}
+
+	private interface Near {
+	}
+
+	private static class Base implements Far {
+	}
+
+	private static class Derived extends Base {
+	}
+
+	private static class Leaf extends Derived implements Near {
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.advise;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.horizontaldb.shard.ConversationRegistry;
+import org.horizontaldb.shard.ShardBeanEnricher;
+import org.horizontaldb.shard.ShardContext;
+import org.horizontaldb.shard.annotation.ShardBean;
+import org.horizontaldb.shard.annotation.ShardBeans;
+import org.horizontaldb.shard.resolver.ShardBeanResolver;
+import org.horizontaldb.util.BeanUtils;
+import org.junit.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class ShardContextEnricherAspectTest {
+
+	@Test
+	public void shouldResolveTheBeansOfEachImplementationOfAnInterfaceMethod() {
+		final List<Class<?>> resolved = new ArrayList<>( );
+
+		ShardContextEnricherAspect aspect = new ShardContextEnricherAspect( );
+		ReflectionTestUtils.setField( aspect, "registry", EasyMock.createNiceMock( ConversationRegistry.class ) );
+		ReflectionTestUtils.setField( aspect, "beanUtils", new BeanUtils( ) );
+
+		aspect.setTargetEnrichers( Collections.<Class<?>, ShardBeanEnricher> emptyMap( ) );
+		aspect.setTargetResolvers( Collections.<Class<?>, ShardBeanResolver> singletonMap( Object.class, new ShardBeanResolver( ) {
+
+			@Override
+			@SuppressWarnings( "unchecked" )
+			public <T> T getBean( Class<T> beanClass, ShardContext shardContext ) {
+				resolved.add( beanClass );
+
+				return ( T ) new Object( );
+			}
+		} ) );
+
+		Service first = proxy( new FirstService( ), aspect );
+		Service second = proxy( new SecondService( ), aspect );
+
+		first.call( new ShardContext( "testClient" ) );
+		second.call( new ShardContext( "testClient" ) );
+		first.call( new ShardContext( "testClient" ) );
+
+		assertEquals( Arrays.<Class<?>> asList( Dao1.class, Dao2.class, Dao3.class, Dao1.class ), resolved );
+	}
+
+	@Test
+	public void shouldTearDownTheBeansOfNestedCalls() {
+		final List<Object> events = new ArrayList<>( );
+
+		ShardContextEnricherAspect aspect = newAspect( new ShardBeanResolver( ) {
+			private int beans;
+
+			@Override
+			@SuppressWarnings( "unchecked" )
+			public <T> T getBean( Class<T> beanClass, ShardContext shardContext ) {
+				return ( T ) ( "bean" + beans++ );
+			}
+		}, events );
+
+		OuterService outer = new OuterService( );
+		outer.inner = proxy( new SecondService( ), aspect );
+
+		Service service = proxy( outer, aspect );
+
+		service.call( new ShardContext( "testClient" ) );
+		service.call( new ShardContext( "testClient" ) );
+
+		assertEquals( Arrays.<Object> asList( "setup bean0", "setup bean1", "setup bean2", "setup bean3", "tearDown bean2", "tearDown bean3",
+				"tearDown bean0", "tearDown bean1", "setup bean4", "setup bean5", "setup bean6", "setup bean7", "tearDown bean6",
+				"tearDown bean7", "tearDown bean4", "tearDown bean5" ), events );
+	}
+
+	@Test
+	public void shouldLookUpTheEnricherOfEachBeanClass() {
+		final List<Object> events = new ArrayList<>( );
+
+		ShardContextEnricherAspect aspect = newAspect( new ShardBeanResolver( ) {
+			private int beans;
+
+			@Override
+			@SuppressWarnings( "unchecked" )
+			public <T> T getBean( Class<T> beanClass, ShardContext shardContext ) {
+				// the beans of a tenant may be of another class than those of the previous one
+				return ( T ) ( beans++ % 2 == 0 ? "bean" : Integer.valueOf( beans ) );
+			}
+		}, events );
+
+		Service service = proxy( new FirstService( ), aspect );
+
+		service.call( new ShardContext( "testClient" ) );
+		service.call( new ShardContext( "testClient" ) );
+		service.call( new ShardContext( "testClient" ) );
+
+		assertEquals( Arrays.<Object> asList( "setup bean", "tearDown bean", "setup bean", "tearDown bean" ), events );
+	}
+
+	/*
+	 * only the String beans are enriched, the enricher records what it is called with
+	 */
+	private ShardContextEnricherAspect newAspect( ShardBeanResolver resolver, final List<Object> events ) {
+		ShardContextEnricherAspect retval = new ShardContextEnricherAspect( );
+		ReflectionTestUtils.setField( retval, "registry", EasyMock.createNiceMock( ConversationRegistry.class ) );
+		ReflectionTestUtils.setField( retval, "beanUtils", new BeanUtils( ) );
+
+		retval.setTargetResolvers( Collections.<Class<?>, ShardBeanResolver> singletonMap( Object.class, resolver ) );
+		retval.setTargetEnrichers( Collections.<Class<?>, ShardBeanEnricher> singletonMap( String.class, new ShardBeanEnricher( ) {
+
+			@Override
+			public void setup( Object bean, ShardContext shardContext ) {
+				events.add( "setup " + bean );
+			}
+
+			@Override
+			public void tearDown( Object bean, ShardContext shardContext ) {
+				events.add( "tearDown " + bean );
+			}
+		} ) );
+
+		return retval;
+	}
+
+	private Service proxy( Service target, ShardContextEnricherAspect aspect ) {
+		AspectJProxyFactory proxyFactory = new AspectJProxyFactory( target );
+		proxyFactory.addAspect( aspect );
+
+		return proxyFactory.getProxy( );
+	}
+
+	public interface Service {
+
+		void call( ShardContext shardContext );
+
+	}
+
+	public static class FirstService implements Service {
+
+		@Override
+		@ShardBeans( { @ShardBean( Dao1.class ) } )
+		public void call( ShardContext shardContext ) {
+		}
+	}
+
+	public static class SecondService implements Service {
+
+		@Override
+		@ShardBeans( { @ShardBean( Dao2.class ), @ShardBean( Dao3.class ) } )
+		public void call( ShardContext shardContext ) {
+		}
+	}
+
+	public static class OuterService implements Service {
+		private Service inner;
+
+		@Override
+		@ShardBeans( { @ShardBean( Dao1.class ), @ShardBean( Dao2.class ) } )
+		public void call( ShardContext shardContext ) {
+			inner.call( shardContext );
+		}
+	}
+
+	private interface Dao1 {
+	}
+
+	private interface Dao2 {
+	}
+
+	private interface Dao3 {
+	}
+
+}
@@ -19,6 +19,8 @@ package org.horizontaldb.shard.hibernate;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import org.easymock.EasyMock;
 import org.hibernate.Session;
@@ -178,4 +180,62 @@ public class AbstractDaoEnricherTest {
         verify( txManager, mockSessionFactory, mockSession, mockSession1, mockSession2, mockDao, mockDao1, mockDao2 );
     }
 
+    @Test
+    public void shouldRestoreSessionsOfDeeplyNestedContexts() {
+        AbstractDaoEnricher enricher = new AbstractDaoEnricher( txManager );
+
+        int depth = 12;
+
+        ShardContext[ ] shardContexts = new ShardContext[ depth ];
+        Session[ ] sessions = new Session[ depth ];
+        SessionFactory mockSessionFactory = EasyMock.createNiceMock( SessionFactory.class );
+        PersonDaoImpl personDao = new PersonDaoImpl( );
+        DepartmentDaoImpl departmentDao = new DepartmentDaoImpl( );
+
+        for ( int i = 0; i < depth; i++ ) {
+            shardContexts[ i ] = new ShardContext( "testClient" + i );
+            sessions[ i ] = EasyMock.createNiceMock( Session.class );
+
+            // called during statistics logging
+            expect( sessions[ i ].getSessionFactory( ) ).andStubReturn( mockSessionFactory );
+            expect( mockSessionFactory.getCurrentSession( ) ).andReturn( sessions[ i ] );
+        }
+
+        expect( txManager.getSessionFactory( ) ).andReturn( mockSessionFactory ).times( depth );
+
+        replay( ( Object[ ] ) sessions );
+        replay( txManager, mockSessionFactory );
+
+        // the department dao is used on every second level only
+        for ( int i = 0; i < depth; i++ ) {
+            enricher.setup( personDao, shardContexts[ i ] );
+
+            if ( i % 2 == 0 ) {
+                enricher.setup( departmentDao, shardContexts[ i ] );
+            }
+        }
+
+        for ( int i = depth - 1; i >= 0; i-- ) {
+            enricher.tearDown( personDao, shardContexts[ i ] );
+
+            if ( i > 0 ) {
+                assertSame( sessions[ i - 1 ], personDao.getSession( ) );
+            } else {
+                assertNull( personDao.getSession( ) );
+            }
+
+            if ( i % 2 == 0 ) {
+                enricher.tearDown( departmentDao, shardContexts[ i ] );
+
+                if ( i > 0 ) {
+                    assertSame( sessions[ i - 2 ], departmentDao.getSession( ) );
+                } else {
+                    assertNull( departmentDao.getSession( ) );
+                }
+            }
+        }
+
+        verify( txManager, mockSessionFactory );
+    }
+
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.horizontaldb.shard.hibernate.CircuitBreaker.State;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void shouldOpenAfterConsecutiveFailures() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker( 3, 60000 );
+
+		circuitBreaker.recordFailure( );
+		circuitBreaker.recordFailure( );
+		circuitBreaker.recordSuccess( );
+		circuitBreaker.recordFailure( );
+		circuitBreaker.recordFailure( );
+
+		assertEquals( State.CLOSED, circuitBreaker.getState( ) );
+		assertTrue( circuitBreaker.recordFailure( ) );
+		assertEquals( State.OPEN, circuitBreaker.getState( ) );
+		assertFalse( circuitBreaker.allowRequest( ) );
+	}
+
+	@Test
+	public void shouldLetOneProbeThroughAfterTheOpenPeriod() throws InterruptedException {
+		CircuitBreaker circuitBreaker = new CircuitBreaker( 1, 10 );
+
+		circuitBreaker.recordFailure( );
+
+		Thread.sleep( 20 );
+
+		assertTrue( circuitBreaker.allowRequest( ) );
+		assertEquals( State.HALF_OPEN, circuitBreaker.getState( ) );
+		assertFalse( circuitBreaker.allowRequest( ) );
+
+		assertTrue( circuitBreaker.recordFailure( ) );
+		assertFalse( circuitBreaker.allowRequest( ) );
+
+		Thread.sleep( 20 );
+
+		assertTrue( circuitBreaker.allowRequest( ) );
+		assertTrue( circuitBreaker.recordSuccess( ) );
+		assertEquals( State.CLOSED, circuitBreaker.getState( ) );
+		assertTrue( circuitBreaker.allowRequest( ) );
+	}
+
+	@Test
+	public void shouldNeverOpenWithoutThreshold() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker( 0, 60000 );
+
+		for ( int i = 0; i < 10; i++ ) {
+			assertFalse( circuitBreaker.recordFailure( ) );
+		}
+
+		assertTrue( circuitBreaker.allowRequest( ) );
+		assertFalse( circuitBreaker.trip( ) );
+		assertEquals( State.CLOSED, circuitBreaker.getState( ) );
+	}
+
+	@Test
+	public void shouldPruneClosedBreakersOfTenantsWithoutPool() {
+		TenantCircuitBreakers circuitBreakers = new TenantCircuitBreakers( 1, 60000 );
+
+		circuitBreakers.get( "pooled" );
+		circuitBreakers.get( "evicted" );
+		circuitBreakers.get( "failing" ).recordFailure( );
+
+		assertEquals( 1, circuitBreakers.prune( Collections.singleton( "pooled" ) ) );
+		assertEquals( 2, circuitBreakers.size( ) );
+		assertEquals( State.OPEN, circuitBreakers.get( "failing" ).getState( ) );
+		assertEquals( 2, circuitBreakers.size( ) );
+	}
+
+	@Test
+	public void shouldOpenRightAwayWhenTripped() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker( 3, 60000 );
+
+		assertTrue( circuitBreaker.trip( ) );
+		assertEquals( State.OPEN, circuitBreaker.getState( ) );
+		assertFalse( circuitBreaker.allowRequest( ) );
+		assertFalse( circuitBreaker.trip( ) );
+	}
+
+}
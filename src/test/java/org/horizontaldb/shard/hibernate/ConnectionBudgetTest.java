@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ConnectionBudgetTest {
+
+	@Test
+	public void shouldRejectConnectionsAboveTheBudget() throws SQLException {
+		ConnectionBudget budget = new ConnectionBudget( 2, 10 );
+
+		budget.acquire( "testClient" );
+		budget.acquire( "testClient" );
+
+		try {
+			budget.acquire( "testClient" );
+
+			fail( "budget exceeded" );
+		} catch ( SQLException ex ) {
+			// expected
+		}
+
+		budget.release( );
+		budget.acquire( "testClient" );
+
+		assertEquals( 3, budget.getAcquisitions( ) );
+		assertEquals( 1, budget.getWaits( ) );
+		assertEquals( 1, budget.getTimeouts( ) );
+		assertEquals( 0, budget.getAvailableConnections( ) );
+	}
+
+	@Test
+	public void shouldPassReleasedConnectionToWaitingCaller() throws Exception {
+		final ConnectionBudget budget = new ConnectionBudget( 1, 5000 );
+
+		budget.acquire( "testClient" );
+
+		ExecutorService executor = Executors.newSingleThreadExecutor( );
+
+		try {
+			Future<Void> waiting = executor.submit( new Callable<Void>( ) {
+
+				@Override
+				public Void call() throws Exception {
+					budget.acquire( "testClient" );
+
+					return null;
+				}
+			} );
+
+			while ( budget.getQueueLength( ) == 0 ) {
+				Thread.sleep( 1 );
+			}
+
+			Thread.sleep( 50 );
+
+			budget.release( );
+
+			waiting.get( );
+		} finally {
+			executor.shutdownNow( );
+		}
+
+		assertEquals( 1, budget.getWaits( ) );
+		assertTrue( String.valueOf( budget.getMaxWaitMillis( ) ), budget.getMaxWaitMillis( ) >= 40 );
+		assertEquals( budget.getMaxWaitMillis( ), budget.getTotalWaitMillis( ) );
+	}
+
+	@Test
+	public void shouldTakeTurnsBetweenTenantsWaiting() throws Exception {
+		final ConnectionBudget budget = new ConnectionBudget( 1, 5000 );
+		final List<String> served = Collections.synchronizedList( new ArrayList<String>( ) );
+
+		budget.acquire( "holder" );
+
+		ExecutorService executor = Executors.newCachedThreadPool( );
+		List<Future<Void>> callers = new ArrayList<>( );
+
+		try {
+			// the burst of one tenant queues up before the other tenant
+			String[] tenants = { "bursting", "bursting", "bursting", "quiet" };
+
+			for ( final String tenant : tenants ) {
+				int queued = budget.getQueueLength( );
+
+				callers.add( executor.submit( new Callable<Void>( ) {
+
+					@Override
+					public Void call() throws Exception {
+						budget.acquire( tenant );
+						served.add( tenant );
+						budget.release( );
+
+						return null;
+					}
+				} ) );
+
+				while ( budget.getQueueLength( ) == queued ) {
+					Thread.sleep( 1 );
+				}
+			}
+
+			budget.release( );
+
+			for ( Future<Void> caller : callers ) {
+				caller.get( );
+			}
+		} finally {
+			executor.shutdownNow( );
+		}
+
+		assertEquals( Arrays.asList( "bursting", "quiet", "bursting", "bursting" ), served );
+		assertEquals( 1, budget.getAvailableConnections( ) );
+		assertEquals( 0, budget.getQueueLength( ) );
+	}
+
+	@Test
+	public void shouldNotLimitWithoutBudget() throws SQLException {
+		ConnectionBudget budget = new ConnectionBudget( 0, 0 );
+
+		for ( int i = 0; i < 1000; i++ ) {
+			budget.acquire( "testClient" );
+		}
+
+		assertEquals( 0, budget.getWaits( ) );
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void shouldReportPercentilesAsBucketUpperBounds() {
+		LatencyHistogram histogram = new LatencyHistogram( );
+
+		for ( int i = 0; i < 98; i++ ) {
+			histogram.record( TimeUnit.MICROSECONDS.toNanos( 3 ) );
+		}
+
+		histogram.record( TimeUnit.MILLISECONDS.toNanos( 10 ) );
+		histogram.record( TimeUnit.MILLISECONDS.toNanos( 20 ) );
+
+		assertEquals( 100, histogram.getCount( ) );
+		assertEquals( 4, histogram.getPercentileMicros( 50 ) );
+		assertEquals( 16384, histogram.getPercentileMicros( 99 ) );
+		assertEquals( 20000, histogram.getPercentileMicros( 100 ) );
+		assertEquals( 20000, histogram.getMaxMicros( ) );
+		assertEquals( 302.94, histogram.getMeanMicros( ), 0.001 );
+	}
+
+	@Test
+	public void shouldReportZeroWithoutSamples() {
+		LatencyHistogram histogram = new LatencyHistogram( );
+
+		assertEquals( 0, histogram.getPercentileMicros( 99 ) );
+		assertEquals( 0, histogram.getMeanMicros( ), 0 );
+	}
+
+}
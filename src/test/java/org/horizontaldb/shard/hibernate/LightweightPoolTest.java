@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LightweightPoolTest {
+	private LightweightPool pool;
+
+	@Before
+	public void setUp() throws SQLException {
+		pool = new LightweightPool( );
+		pool.setDriverClassName( "org.h2.Driver" );
+		pool.setUrl( "jdbc:h2:mem:lightweightPoolTest" );
+		pool.setInitialSize( 1 );
+		pool.setMaxActive( 2 );
+		pool.setMaxIdle( 2 );
+		pool.setMaxWait( 50 );
+		pool.start( );
+	}
+
+	@After
+	public void tearDown() {
+		pool.close( );
+	}
+
+	@Test
+	public void shouldReuseReturnedConnections() throws SQLException {
+		assertEquals( 1, pool.getSize( ) );
+		assertEquals( 1, pool.getIdle( ) );
+
+		Connection first = pool.getConnection( );
+		Connection second = pool.getConnection( );
+
+		assertEquals( 2, pool.getSize( ) );
+		assertEquals( 2, pool.getActive( ) );
+		assertEquals( 0, pool.getIdle( ) );
+
+		Connection physical = second.unwrap( org.h2.jdbc.JdbcConnection.class );
+
+		first.close( );
+		second.close( );
+
+		assertEquals( 0, pool.getActive( ) );
+		assertEquals( 2, pool.getIdle( ) );
+
+		// the connection returned last is lent out first
+		Connection third = pool.getConnection( );
+
+		assertEquals( physical, third.unwrap( org.h2.jdbc.JdbcConnection.class ) );
+		assertEquals( 2, pool.getSize( ) );
+
+		third.close( );
+	}
+
+	@Test
+	public void shouldValidateOnlyReusedConnectionsOnBorrow() throws SQLException {
+		Connection reused = pool.getConnection( );
+		Connection opened = pool.getConnection( );
+
+		try {
+			assertTrue( pool.isBorrowValidationDue( reused ) );
+			assertFalse( pool.isBorrowValidationDue( opened ) );
+		} finally {
+			reused.close( );
+			opened.close( );
+		}
+	}
+
+	@Test
+	public void shouldTimeOutWhenAllConnectionsAreLentOut() throws SQLException {
+		Connection first = pool.getConnection( );
+		Connection second = pool.getConnection( );
+
+		try {
+			pool.getConnection( );
+
+			fail( "the pool is exhausted" );
+		} catch ( SQLTransientConnectionException ex ) {
+			// expected
+		}
+
+		assertEquals( 0, pool.getWaitCount( ) );
+
+		first.close( );
+		second.close( );
+	}
+
+	@Test
+	public void shouldReturnConnectionClosedConcurrentlyOnce() throws Exception {
+		for ( int i = 0; i < 200; i++ ) {
+			final Connection connection = pool.getConnection( );
+			final CyclicBarrier barrier = new CyclicBarrier( 2 );
+			Runnable close = new Runnable( ) {
+
+				@Override
+				public void run() {
+					try {
+						barrier.await( );
+
+						connection.close( );
+					} catch ( Exception ex ) {
+						throw new IllegalStateException( ex );
+					}
+				}
+			};
+
+			Thread first = new Thread( close );
+			Thread second = new Thread( close );
+
+			first.start( );
+			second.start( );
+			first.join( );
+			second.join( );
+
+			assertEquals( 0, pool.getActive( ) );
+			assertEquals( pool.getSize( ), pool.getIdle( ) );
+		}
+	}
+
+	@Test
+	public void shouldResetReturnedConnections() throws SQLException {
+		Connection connection = pool.getConnection( );
+		Connection physical = connection.unwrap( org.h2.jdbc.JdbcConnection.class );
+
+		try ( Statement statement = connection.createStatement( ) ) {
+			statement.execute( "CREATE TABLE reset_test ( id INT )" );
+		}
+
+		connection.setAutoCommit( false );
+		connection.setTransactionIsolation( Connection.TRANSACTION_SERIALIZABLE );
+
+		try ( Statement statement = connection.createStatement( ) ) {
+			statement.execute( "INSERT INTO reset_test VALUES ( 1 )" );
+		}
+
+		connection.setReadOnly( true );
+
+		// abandoned in the middle of the transaction
+		connection.close( );
+
+		Connection next = pool.getConnection( );
+
+		try {
+			assertEquals( physical, next.unwrap( org.h2.jdbc.JdbcConnection.class ) );
+			assertTrue( next.getAutoCommit( ) );
+			assertFalse( next.isReadOnly( ) );
+			assertEquals( Connection.TRANSACTION_READ_COMMITTED, next.getTransactionIsolation( ) );
+
+			try ( Statement statement = next.createStatement( ); ResultSet resultSet = statement.executeQuery( "SELECT COUNT(*) FROM reset_test" ) ) {
+				resultSet.next( );
+
+				assertEquals( 0, resultSet.getInt( 1 ) );
+			}
+		} finally {
+			next.close( );
+		}
+	}
+
+	@Test
+	public void shouldCloseReturnedConnectionsWhichCannotBeReset() throws SQLException {
+		Connection connection = pool.getConnection( );
+
+		// the physical connection breaks while it is lent out
+		connection.unwrap( org.h2.jdbc.JdbcConnection.class ).close( );
+		connection.close( );
+
+		assertEquals( 0, pool.getActive( ) );
+		assertEquals( 0, pool.getIdle( ) );
+		assertEquals( 0, pool.getSize( ) );
+	}
+
+	@Test
+	public void shouldCloseSurplusConnections() throws SQLException {
+		Connection first = pool.getConnection( );
+		Connection second = pool.getConnection( );
+
+		first.close( );
+
+		pool.setMaxIdle( 0 );
+
+		assertEquals( 0, pool.getIdle( ) );
+		assertEquals( 1, pool.getSize( ) );
+
+		second.close( );
+
+		assertEquals( 0, pool.getSize( ) );
+		assertTrue( second.isClosed( ) );
+
+		try {
+			second.createStatement( );
+
+			fail( "the connection is returned" );
+		} catch ( SQLException ex ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void shouldCloseIdleConnectionsFailingValidation() throws SQLException {
+		Connection connection = pool.getConnection( );
+		Connection physical = connection.unwrap( org.h2.jdbc.JdbcConnection.class );
+
+		connection.close( );
+
+		// the physical connection breaks while it is idle
+		physical.close( );
+
+		assertEquals( 1, pool.getIdle( ) );
+		assertEquals( 1, pool.testIdle( ) );
+		assertEquals( 0, pool.getIdle( ) );
+		assertEquals( 0, pool.getSize( ) );
+	}
+
+	@Test
+	public void shouldCloseLentConnectionsWhenReturnedToAClosedPool() throws SQLException {
+		Connection connection = pool.getConnection( );
+		Connection physical = connection.unwrap( org.h2.jdbc.JdbcConnection.class );
+
+		pool.close( );
+
+		assertFalse( physical.isClosed( ) );
+
+		connection.close( );
+
+		assertTrue( physical.isClosed( ) );
+		assertEquals( 0, pool.getSize( ) );
+
+		try {
+			pool.getConnection( );
+
+			fail( "the pool is closed" );
+		} catch ( SQLException ex ) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PoolHealthCheckerTest {
+	private TenantDataSourceRegistry registry;
+
+	@Before
+	public void setUp() {
+		registry = new TenantDataSourceRegistry( new DataSourceFactory( ) {
+
+			@Override
+			public DataSourceResource getDataSource( String tenantId ) {
+				org.apache.tomcat.jdbc.pool.DataSource dataSource = new org.apache.tomcat.jdbc.pool.DataSource( );
+				dataSource.setDriverClassName( "org.h2.Driver" );
+				dataSource.setUrl( "jdbc:h2:mem:" + tenantId );
+				dataSource.setInitialSize( 2 );
+				dataSource.setValidationQuery( "select 1" );
+				dataSource.setValidationInterval( 0 );
+				dataSource.setTestOnBorrow( true );
+
+				return new DataSourceResource( dataSource );
+			}
+		} );
+	}
+
+	@After
+	public void tearDown() {
+		registry.releaseAll( );
+	}
+
+	@Test
+	public void shouldSuspendBorrowValidationOfVerifiedPools() throws Exception {
+		PoolHealthChecker healthChecker = new PoolHealthChecker( 1, 60000 );
+		healthChecker.addRegistry( registry );
+
+		DataSourceResource first = createPool( "first" );
+		DataSourceResource second = createPool( "second" );
+
+		healthChecker.check( );
+
+		// a batch of one pool per round
+		assertEquals( 1, healthChecker.getChecks( ) );
+		assertEquals( 1, healthChecker.getVerifiedPools( ) );
+		assertTrue( first.isBorrowValidationSuspended( ) ^ second.isBorrowValidationSuspended( ) );
+
+		healthChecker.check( );
+
+		assertEquals( 2, healthChecker.getVerifiedPools( ) );
+		assertTrue( first.isBorrowValidationSuspended( ) );
+		assertFalse( ( ( org.apache.tomcat.jdbc.pool.DataSource ) first.getDataSource( ) ).isTestOnBorrow( ) );
+	}
+
+	@Test
+	public void shouldResumeBorrowValidationOfUnhealthyPools() throws Exception {
+		PoolHealthChecker healthChecker = new PoolHealthChecker( 0, 60000 );
+		healthChecker.addRegistry( registry );
+
+		DataSourceResource resource = createPool( "unhealthy" );
+
+		healthChecker.check( );
+
+		assertTrue( resource.isBorrowValidationSuspended( ) );
+
+		// every idle connection fails the validation from now on
+		( ( org.apache.tomcat.jdbc.pool.DataSource ) resource.getDataSource( ) ).setValidationQuery( "select * from missing_table" );
+
+		healthChecker.check( );
+
+		assertFalse( resource.isBorrowValidationSuspended( ) );
+		assertTrue( ( ( org.apache.tomcat.jdbc.pool.DataSource ) resource.getDataSource( ) ).isTestOnBorrow( ) );
+		assertEquals( 1, healthChecker.getFailedChecks( ) );
+		assertEquals( 0, healthChecker.getVerifiedPools( ) );
+	}
+
+	@Test
+	public void shouldTripCircuitBreakerOfDeadPools() throws Exception {
+		TenantCircuitBreakers circuitBreakers = new TenantCircuitBreakers( 3, 60000 );
+		PoolHealthChecker healthChecker = new PoolHealthChecker( 0, 60000 );
+		healthChecker.addRegistry( registry, circuitBreakers );
+
+		DataSourceResource resource = createPool( "dead" );
+		org.apache.tomcat.jdbc.pool.DataSource dataSource = ( org.apache.tomcat.jdbc.pool.DataSource ) resource.getDataSource( );
+
+		healthChecker.check( );
+
+		assertEquals( 0, healthChecker.getDeadPools( ) );
+
+		dataSource.setValidationQuery( "select * from missing_table" );
+
+		healthChecker.check( );
+
+		assertEquals( 1, healthChecker.getDeadPools( ) );
+		assertEquals( CircuitBreaker.State.OPEN, circuitBreakers.get( "dead" ).getState( ) );
+
+		// the database is back, and a probe borrow left a connection in the pool
+		dataSource.setValidationQuery( "select 1" );
+		dataSource.getConnection( ).close( );
+
+		healthChecker.check( );
+
+		assertEquals( 0, healthChecker.getDeadPools( ) );
+		assertEquals( 1, healthChecker.getVerifiedPools( ) );
+	}
+
+	@Test
+	public void shouldCountOnlyBorrowsWhichWouldBeValidated() throws Exception {
+		PoolHealthChecker healthChecker = new PoolHealthChecker( 0, 60000 );
+		healthChecker.addRegistry( registry );
+
+		DataSourceResource resource = createPool( "interval" );
+		org.apache.tomcat.jdbc.pool.DataSource dataSource = ( org.apache.tomcat.jdbc.pool.DataSource ) resource.getDataSource( );
+
+		healthChecker.check( );
+
+		Connection connection = dataSource.getConnection( );
+
+		try {
+			assertTrue( resource.getPool( ).isBorrowValidationDue( connection ) );
+
+			// the health check has just validated the connection
+			dataSource.setValidationInterval( 60000 );
+
+			assertFalse( resource.getPool( ).isBorrowValidationDue( connection ) );
+
+			dataSource.setValidationInterval( 0 );
+			dataSource.setValidationQuery( null );
+
+			assertFalse( resource.getPool( ).isBorrowValidationDue( connection ) );
+		} finally {
+			connection.close( );
+		}
+	}
+
+	private DataSourceResource createPool( String tenantId ) throws Exception {
+		DataSourceResource retval = registry.getResource( tenantId );
+
+		( ( org.apache.tomcat.jdbc.pool.DataSource ) retval.getDataSource( ) ).createPool( );
+
+		return retval;
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.horizontaldb.shard.hibernate.PoolResizeEvent.Reason;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PoolSizeControllerTest {
+	private org.apache.tomcat.jdbc.pool.DataSource dataSource;
+	private DataSourceResource resource;
+	private PoolSizeController controller;
+	private List<PoolResizeEvent> events;
+
+	@Before
+	public void setUp() throws SQLException {
+		dataSource = new org.apache.tomcat.jdbc.pool.DataSource( );
+		dataSource.setDriverClassName( "org.h2.Driver" );
+		dataSource.setUrl( "jdbc:h2:mem:poolSizing" );
+		dataSource.setInitialSize( 1 );
+		dataSource.setMaxActive( 8 );
+		dataSource.createPool( );
+		dataSource.setMaxActive( 2 );
+		dataSource.setMinIdle( 1 );
+		dataSource.setMaxIdle( 2 );
+
+		resource = new DataSourceResource( dataSource );
+
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( new DataSourceFactory( ) {
+
+			@Override
+			public DataSourceResource getDataSource( String tenantId ) {
+				return resource;
+			}
+		} );
+		registry.getResource( "testClient" );
+
+		events = new ArrayList<>( );
+
+		controller = new PoolSizeController( registry );
+		controller.setMinActive( 1 );
+		controller.setMaxActive( 8 );
+		controller.setHotWaitMillis( 10 );
+		controller.addListener( new PoolResizeListener( ) {
+
+			@Override
+			public void resized( PoolResizeEvent event ) {
+				events.add( event );
+			}
+		} );
+
+		controller.adjust( );
+	}
+
+	@After
+	public void tearDown() {
+		resource.close( );
+	}
+
+	@Test
+	public void shouldGrowHotPoolUpToTheLimit() throws InterruptedException {
+		for ( int i = 0; i < 3; i++ ) {
+			borrow( 50 );
+
+			controller.adjust( );
+		}
+
+		assertEquals( 2, events.size( ) );
+		assertEquals( Reason.HOT, events.get( 0 ).getReason( ) );
+		assertEquals( 4, events.get( 0 ).getMaxActive( ) );
+		assertEquals( 8, events.get( 1 ).getMaxActive( ) );
+		assertEquals( 8, dataSource.getMaxActive( ) );
+		assertEquals( 8, dataSource.getMaxIdle( ) );
+	}
+
+	@Test
+	public void shouldShrinkColdPoolAndRestoreIdleConnectionsOnUse() throws InterruptedException {
+		Thread.sleep( 2 );
+
+		controller.adjust( );
+
+		assertEquals( 1, events.size( ) );
+		assertEquals( Reason.COLD, events.get( 0 ).getReason( ) );
+		assertEquals( 1, dataSource.getMaxActive( ) );
+		assertEquals( 0, dataSource.getMinIdle( ) );
+		assertEquals( 0, dataSource.getMaxIdle( ) );
+
+		borrow( 0 );
+
+		controller.adjust( );
+
+		assertEquals( 2, events.size( ) );
+		assertEquals( Reason.WARM, events.get( 1 ).getReason( ) );
+		assertEquals( 1, dataSource.getMaxActive( ) );
+		// the configured maxIdle, not the shrunk maxActive
+		assertEquals( 2, dataSource.getMaxIdle( ) );
+	}
+
+	@Test
+	public void shouldLeaveSteadyPoolAlone() throws InterruptedException {
+		borrow( 1 );
+
+		controller.adjust( );
+
+		assertEquals( 0, events.size( ) );
+		assertEquals( 2, dataSource.getMaxActive( ) );
+	}
+
+	private void borrow( long waitMillis ) throws InterruptedException {
+		Thread.sleep( 2 );
+
+		resource.recordBorrow( TimeUnit.MILLISECONDS.toNanos( waitMillis ) );
+	}
+
+}
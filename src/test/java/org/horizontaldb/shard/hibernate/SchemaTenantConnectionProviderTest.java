@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.horizontaldb.shard.ShardRouter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class SchemaTenantConnectionProviderTest {
+
+	private SchemaTenantConnectionProvider provider;
+	private AtomicInteger createdDataSources;
+
+	@Before
+	public void setUp() throws SQLException {
+		createdDataSources = new AtomicInteger( );
+
+		ShardRouter shardRouter = new ShardRouter( );
+		shardRouter.setServers( Arrays.asList( "schemaTenants" ) );
+
+		provider = new SchemaTenantConnectionProvider( );
+
+		ReflectionTestUtils.setField( provider, "dataSourceFactory", new SharedDataSourceFactory( ) {
+
+			@Override
+			public DataSourceResource getSharedDataSource( String serverUrl ) {
+				createdDataSources.incrementAndGet( );
+
+				org.apache.tomcat.jdbc.pool.DataSource dataSource = new org.apache.tomcat.jdbc.pool.DataSource( );
+				dataSource.setDriverClassName( "org.h2.Driver" );
+				dataSource.setUrl( serverUrl );
+				dataSource.setInitialSize( 1 );
+				dataSource.setMaxActive( 1 );
+
+				return new DataSourceResource( dataSource );
+			}
+		} );
+		ReflectionTestUtils.setField( provider, "anyDataSourceTenantId", "template" );
+		ReflectionTestUtils.setField( provider, "shardRouter", shardRouter );
+		ReflectionTestUtils.setField( provider, "serverUrlTemplate", "jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1" );
+		ReflectionTestUtils.setField( provider, "setSchemaTemplate", "SET SCHEMA %s" );
+		ReflectionTestUtils.setField( provider, "defaultSchema", "PUBLIC" );
+
+		Connection connection = provider.getAnyConnection( );
+
+		try ( Statement statement = connection.createStatement( ) ) {
+			statement.execute( "CREATE SCHEMA IF NOT EXISTS JOE" );
+			statement.execute( "CREATE SCHEMA IF NOT EXISTS JANE" );
+		} finally {
+			provider.releaseAnyConnection( connection );
+		}
+	}
+
+	@After
+	public void tearDown() {
+		provider.stop( );
+	}
+
+	@Test
+	public void shouldServeTenantsFromOneSharedPool() throws SQLException {
+		assertEquals( "JOE", getSchemaOfConnection( "JOE" ) );
+		assertEquals( "JANE", getSchemaOfConnection( "JANE" ) );
+
+		assertEquals( 1, createdDataSources.get( ) );
+	}
+
+	@Test
+	public void shouldResetSchemaOnRelease() throws SQLException {
+		getSchemaOfConnection( "JOE" );
+
+		// the pool holds a single connection, so this is the one just released
+		Connection connection = provider.getAnyConnection( );
+
+		try {
+			assertEquals( "PUBLIC", getSchema( connection ) );
+		} finally {
+			provider.releaseAnyConnection( connection );
+		}
+	}
+
+	@Test
+	public void shouldDiscardConnectionWhenSchemaResetFails() throws SQLException {
+		Connection connection = provider.getConnection( "JOE" );
+
+		ReflectionTestUtils.setField( provider, "defaultSchema", "MISSING" );
+
+		try {
+			provider.releaseConnection( "JOE", connection );
+			fail( );
+		} catch ( SQLException ex ) {
+			// the schema does not exist
+		}
+
+		// the pool holds a single connection, which must not be the one still on the schema of JOE
+		Connection next = provider.getAnyConnection( );
+
+		try {
+			assertEquals( "PUBLIC", getSchema( next ) );
+		} finally {
+			provider.releaseAnyConnection( next );
+		}
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void shouldRejectTenantIdWhichIsNotASchemaName() throws SQLException {
+		provider.getConnection( "JOE; DROP ALL OBJECTS" );
+	}
+
+	private String getSchemaOfConnection( String tenantId ) throws SQLException {
+		Connection connection = provider.getConnection( tenantId );
+
+		try {
+			return getSchema( connection );
+		} finally {
+			provider.releaseConnection( tenantId, connection );
+		}
+	}
+
+	private String getSchema( Connection connection ) throws SQLException {
+		try ( Statement statement = connection.createStatement( ); ResultSet resultSet = statement.executeQuery( "SELECT SCHEMA()" ) ) {
+			resultSet.next( );
+
+			return resultSet.getString( 1 );
+		}
+	}
+
+}
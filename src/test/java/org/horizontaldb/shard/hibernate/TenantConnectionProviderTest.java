@@ -0,0 +1,411 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.horizontaldb.example.model.UserToken;
+import org.horizontaldb.shard.ConversationRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class TenantConnectionProviderTest {
+	private TenantConnectionProvider provider;
+	private ConversationRegistry conversationRegistry;
+	private TenantContext tenantContext;
+	private boolean failingReplicas;
+	private boolean failingPrimary;
+	private boolean brokenPrimary;
+
+	@Before
+	public void setUp() {
+		provider = createProvider( "" );
+	}
+
+	@After
+	public void tearDown() {
+		tenantContext.setReadOnly( false );
+
+		provider.stop( );
+	}
+
+	private TenantConnectionProvider createProvider( String prewarmTenants ) {
+		conversationRegistry = new ConversationRegistry( );
+		tenantContext = new TenantContext( );
+
+		TenantConnectionProvider retval = new TenantConnectionProvider( );
+
+		ReflectionTestUtils.setField( retval, "registry", conversationRegistry );
+		ReflectionTestUtils.setField( retval, "dataSourceFactory", new ReplicatedDataSourceFactory( ) );
+		ReflectionTestUtils.setField( retval, "tenantContext", tenantContext );
+		ReflectionTestUtils.setField( retval, "maxConnections", 10 );
+		ReflectionTestUtils.setField( retval, "connectionBudgetMaxWaitMillis", 20L );
+		ReflectionTestUtils.setField( retval, "shutdownDrainMillis", 10000L );
+		ReflectionTestUtils.setField( retval, "shutdownParallelism", 2 );
+		ReflectionTestUtils.setField( retval, "circuitBreakerFailureThreshold", 2 );
+		ReflectionTestUtils.setField( retval, "circuitBreakerOpenMillis", 60000L );
+		ReflectionTestUtils.setField( retval, "prewarmOnConversationStart", true );
+		ReflectionTestUtils.setField( retval, "prewarmTenants", prewarmTenants );
+		ReflectionTestUtils.setField( retval, "prewarmParallelism", 2 );
+		ReflectionTestUtils.setField( retval, "prewarmQueueSize", 10 );
+
+		retval.init( );
+
+		return retval;
+	}
+
+	@Test
+	public void shouldServeWritesFromPrimary() throws SQLException {
+		assertTrue( getUrl( ).startsWith( "jdbc:h2:mem:primary" ) );
+	}
+
+	@Test
+	public void shouldServeReadOnlyWorkFromReplicas() throws SQLException {
+		tenantContext.setReadOnly( true );
+
+		assertTrue( getUrl( ).startsWith( "jdbc:h2:mem:replica" ) );
+	}
+
+	@Test
+	public void shouldSpreadReadOnlyWorkOverReplicas() throws SQLException {
+		tenantContext.setReadOnly( true );
+
+		Connection first = provider.getConnection( "testClient" );
+		Connection second = provider.getConnection( "testClient" );
+
+		try {
+			assertNotEquals( first.getMetaData( ).getURL( ), second.getMetaData( ).getURL( ) );
+		} finally {
+			provider.releaseConnection( "testClient", first );
+			provider.releaseConnection( "testClient", second );
+		}
+	}
+
+	@Test
+	public void shouldFallBackToPrimaryWhenReplicaFails() throws SQLException {
+		failingReplicas = true;
+
+		tenantContext.setReadOnly( true );
+
+		assertTrue( getUrl( ).startsWith( "jdbc:h2:mem:primary" ) );
+		assertEquals( 0, provider.getConnectionBudget( ).getWaits( ) );
+	}
+
+	@Test
+	public void shouldFailFastOnceTheCircuitBreakerOpens() {
+		failingPrimary = true;
+
+		for ( int i = 0; i < 2; i++ ) {
+			try {
+				provider.getConnection( "testClient" );
+				fail( );
+			} catch ( IllegalStateException | SQLException ex ) {
+				assertTrue( ex instanceof IllegalStateException );
+			}
+		}
+
+		failingPrimary = false;
+
+		try {
+			provider.getConnection( "testClient" );
+			fail( );
+		} catch ( SQLException ex ) {
+			assertTrue( ex instanceof SQLTransientConnectionException );
+		}
+
+		assertEquals( Collections.singletonMap( "testClient", "OPEN" ), provider.getMetrics( ).getTrippedCircuitBreakers( ) );
+		assertEquals( 10, provider.getConnectionBudget( ).getAvailableConnections( ) );
+	}
+
+	@Test
+	public void shouldReopenTheCircuitBreakerWhenTheProbeThrowsAnError() throws SQLException {
+		ReflectionTestUtils.setField( provider, "circuitBreakers", new TenantCircuitBreakers( 1, 0 ) );
+
+		failingPrimary = true;
+
+		try {
+			provider.getConnection( "testClient" );
+			fail( );
+		} catch ( IllegalStateException ex ) {
+			// opens the breaker
+		}
+
+		failingPrimary = false;
+		brokenPrimary = true;
+
+		try {
+			provider.getConnection( "testClient" );
+			fail( );
+		} catch ( NoClassDefFoundError ex ) {
+			// the probe
+		}
+
+		assertEquals( CircuitBreaker.State.OPEN, provider.getCircuitBreakers( ).get( "testClient" ).getState( ) );
+
+		brokenPrimary = false;
+
+		assertTrue( getUrl( ).startsWith( "jdbc:h2:mem:primary" ) );
+		assertEquals( CircuitBreaker.State.CLOSED, provider.getCircuitBreakers( ).get( "testClient" ).getState( ) );
+	}
+
+	@Test
+	public void shouldDrainConnectionsInUseBeforeClosingThePools() throws Exception {
+		Connection connection = provider.getConnection( "testClient" );
+
+		Thread stopping = new Thread( new Runnable( ) {
+
+			@Override
+			public void run() {
+				provider.stop( );
+			}
+		} );
+
+		stopping.start( );
+
+		assertTrue( awaitRefusal( ) );
+
+		stopping.join( 100 );
+
+		assertTrue( stopping.isAlive( ) );
+		assertFalse( connection.isClosed( ) );
+
+		provider.releaseConnection( "testClient", connection );
+
+		stopping.join( 5000 );
+
+		assertFalse( stopping.isAlive( ) );
+		assertEquals( 0, provider.getMetrics( ).getOpenPools( ) );
+		assertEquals( 1, provider.getStatistics( ).getCloses( ) );
+	}
+
+	@Test
+	public void shouldWarmUpThePoolOfANewConversation() throws InterruptedException {
+		conversationRegistry.startConversation( new UserToken( ) {
+
+			@Override
+			public String getUserId() {
+				return "testClient";
+			}
+
+			@Override
+			public String getOrigin() {
+				return null;
+			}
+		} );
+
+		assertTrue( awaitOpenPools( 1 ) );
+		assertTrue( awaitReferences( "testClient" ) );
+		// the pool is registered before it is warmed up
+		assertTrue( awaitWarmUp( "testClient" ) );
+
+		assertEquals( 0, provider.getMetrics( ).getTenantPools( "testClient" ).get( 0 ).getBorrowCount( ) );
+	}
+
+	@Test
+	public void shouldWarmUpTheConfiguredTenantsAtStartup() throws InterruptedException {
+		provider.stop( );
+
+		provider = createProvider( "first, second" );
+
+		assertTrue( awaitOpenPools( 2 ) );
+	}
+
+	@Test
+	public void shouldCollectPoolMetrics() throws SQLException {
+		tenantContext.setReadOnly( true );
+		getUrl( );
+		tenantContext.setReadOnly( false );
+		getUrl( );
+
+		ConnectionProviderMetrics metrics = provider.getMetrics( );
+		List<PoolMetrics> pools = metrics.getTenantPools( "testClient" );
+
+		assertEquals( 2, metrics.getBorrowCount( ) );
+		// the replicas are compared, so all of them are built
+		assertEquals( 3, metrics.getOpenPools( ) );
+		assertEquals( 3, metrics.getPoolCreations( ) );
+		assertEquals( 3, pools.size( ) );
+		assertEquals( "primary", pools.get( 0 ).getPool( ) );
+		assertEquals( 1, pools.get( 0 ).getBorrowCount( ) );
+		assertEquals( 1, pools.get( 0 ).getIdle( ) );
+		assertTrue( pools.get( 1 ).getPool( ).startsWith( "replica-" ) );
+	}
+
+	@Test
+	public void shouldCollectBudgetMetrics() throws SQLException {
+		List<Connection> connections = new ArrayList<>( );
+
+		try {
+			for ( int i = 0; i < 10; i++ ) {
+				connections.add( provider.getConnection( "testClient" ) );
+			}
+
+			try {
+				provider.getConnection( "testClient" );
+				fail( );
+			} catch ( SQLTransientConnectionException ex ) {
+				// the budget is exhausted
+			}
+		} finally {
+			for ( Connection connection : connections ) {
+				provider.releaseConnection( "testClient", connection );
+			}
+		}
+
+		ConnectionProviderMetrics metrics = provider.getMetrics( );
+
+		assertEquals( 1, metrics.getBudgetWaits( ) );
+		assertEquals( 1, metrics.getBudgetTimeouts( ) );
+		assertTrue( metrics.getBudgetMaxWaitMillis( ) >= 15 );
+		assertEquals( metrics.getBudgetMaxWaitMillis( ), metrics.getBudgetTotalWaitMillis( ) );
+	}
+
+	@Test
+	public void shouldPublishMetricsInJmx() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer( );
+		ObjectName objectName = new ObjectName( "org.horizontaldb:type=TenantConnectionProvider,name=test" );
+
+		getUrl( );
+
+		provider.getMetrics( ).register( objectName.toString( ) );
+		// registering again replaces the bean
+		provider.getMetrics( ).register( objectName.toString( ) );
+
+		try {
+			assertEquals( 1, server.getAttribute( objectName, "OpenPools" ) );
+
+			CompositeData[] pools = ( CompositeData[] ) server.getAttribute( objectName, "Pools" );
+
+			assertEquals( 1, pools.length );
+			assertEquals( "testClient", pools[0].get( "tenantId" ) );
+		} finally {
+			provider.getMetrics( ).unregister( );
+		}
+
+		assertFalse( server.isRegistered( objectName ) );
+	}
+
+	private boolean awaitOpenPools( int openPools ) throws InterruptedException {
+		for ( int i = 0; i < 100 && provider.getMetrics( ).getOpenPools( ) < openPools; i++ ) {
+			Thread.sleep( 10 );
+		}
+
+		return provider.getMetrics( ).getOpenPools( ) == openPools;
+	}
+
+	private boolean awaitReferences( String tenantId ) throws InterruptedException {
+		for ( int i = 0; i < 100 && provider.getMetrics( ).getTenantPools( tenantId ).get( 0 ).getReferences( ) == 0; i++ ) {
+			Thread.sleep( 10 );
+		}
+
+		return provider.getMetrics( ).getTenantPools( tenantId ).get( 0 ).getReferences( ) == 1;
+	}
+
+	private boolean awaitWarmUp( String tenantId ) throws InterruptedException {
+		for ( int i = 0; i < 100 && provider.getMetrics( ).getTenantPools( tenantId ).get( 0 ).getSize( ) == 0; i++ ) {
+			Thread.sleep( 10 );
+		}
+
+		return provider.getMetrics( ).getTenantPools( tenantId ).get( 0 ).getSize( ) == 1;
+	}
+
+	private boolean awaitRefusal() throws InterruptedException {
+		boolean retval = false;
+
+		for ( int i = 0; i < 100 && !retval; i++ ) {
+			try {
+				provider.releaseConnection( "testClient", provider.getConnection( "testClient" ) );
+
+				Thread.sleep( 10 );
+			} catch ( SQLTransientConnectionException ex ) {
+				retval = true;
+			} catch ( SQLException ex ) {
+				throw new IllegalStateException( ex );
+			}
+		}
+
+		return retval;
+	}
+
+	private String getUrl() throws SQLException {
+		Connection connection = provider.getConnection( "testClient" );
+
+		try {
+			return connection.getMetaData( ).getURL( );
+		} finally {
+			provider.releaseConnection( "testClient", connection );
+		}
+	}
+
+	private class ReplicatedDataSourceFactory implements DataSourceFactory, ReplicaDataSourceFactory {
+
+		@Override
+		public DataSourceResource getDataSource( String tenantId ) {
+			if ( failingPrimary ) {
+				throw new IllegalStateException( "primary is down" );
+			}
+
+			if ( brokenPrimary ) {
+				throw new NoClassDefFoundError( "org/h2/Driver" );
+			}
+
+			return newResource( "primary_" + tenantId );
+		}
+
+		@Override
+		public int getReplicaCount() {
+			return 2;
+		}
+
+		@Override
+		public DataSourceResource getReplicaDataSource( String tenantId, int replica ) {
+			if ( failingReplicas ) {
+				throw new IllegalStateException( "replica is down" );
+			}
+
+			return newResource( "replica" + replica + "_" + tenantId );
+		}
+
+		private DataSourceResource newResource( String database ) {
+			org.apache.tomcat.jdbc.pool.DataSource dataSource = new org.apache.tomcat.jdbc.pool.DataSource( );
+			dataSource.setDriverClassName( "org.h2.Driver" );
+			dataSource.setUrl( "jdbc:h2:mem:" + database );
+			dataSource.setInitialSize( 1 );
+
+			return new DataSourceResource( dataSource );
+		}
+	}
+
+}
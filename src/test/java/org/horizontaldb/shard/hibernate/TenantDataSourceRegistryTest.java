@@ -0,0 +1,482 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.shard.hibernate;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TenantDataSourceRegistryTest {
+	private DataSourceFactory dataSourceFactory;
+
+	@Before
+	public void setUp() {
+		dataSourceFactory = EasyMock.createMock( DataSourceFactory.class );
+	}
+
+	@After
+	public void tearDown() {
+		dataSourceFactory = null;
+	}
+
+	@Test
+	public void shouldCreateDataSourceOnlyOncePerTenant() {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+
+		DataSourceResource resource = newResource( );
+
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( resource ).once( );
+
+		replay( dataSourceFactory );
+
+		assertSame( resource, registry.getResource( "testClient" ) );
+		assertSame( resource, registry.getResource( "testClient" ) );
+
+		verify( dataSourceFactory );
+	}
+
+	@Test
+	public void shouldReplaceReleasedDataSource() {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+
+		org.apache.tomcat.jdbc.pool.DataSource mockDataSource = EasyMock.createMock( org.apache.tomcat.jdbc.pool.DataSource.class );
+		DataSourceResource released = new DataSourceResource( mockDataSource );
+		DataSourceResource resource = newResource( );
+
+		expect( mockDataSource.getPool( ) ).andReturn( null );
+		mockDataSource.close( true );
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( released );
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( resource );
+
+		replay( dataSourceFactory, mockDataSource );
+
+		registry.getResource( "testClient" ).acquire( );
+		released.release( );
+
+		assertSame( resource, registry.getResource( "testClient" ) );
+
+		verify( dataSourceFactory, mockDataSource );
+	}
+
+	@Test
+	public void shouldRetryCreationAfterFailure() {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+
+		DataSourceResource resource = newResource( );
+
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andThrow( new IllegalStateException( ) );
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( resource );
+
+		replay( dataSourceFactory );
+
+		try {
+			registry.getResource( "testClient" );
+		} catch ( IllegalStateException ex ) {
+			// expected
+		}
+
+		assertSame( resource, registry.getResource( "testClient" ) );
+
+		verify( dataSourceFactory );
+	}
+
+	@Test
+	public void shouldLetConcurrentCallersWaitForTheSameCreation() throws Exception {
+		final CountDownLatch creationStarted = new CountDownLatch( 1 );
+		final CountDownLatch creationAllowed = new CountDownLatch( 1 );
+		final DataSourceResource resource = newResource( );
+
+		final TenantDataSourceRegistry registry = new TenantDataSourceRegistry( new DataSourceFactory( ) {
+
+			private int calls;
+
+			@Override
+			public DataSourceResource getDataSource( String tenantId ) {
+				if ( ++calls > 1 ) {
+					throw new IllegalStateException( "dataSource created more than once" );
+				}
+
+				creationStarted.countDown( );
+
+				try {
+					creationAllowed.await( );
+				} catch ( InterruptedException ex ) {
+					throw new IllegalStateException( ex );
+				}
+
+				return resource;
+			}
+		} );
+
+		ExecutorService executor = Executors.newFixedThreadPool( 2 );
+
+		try {
+			Callable<DataSourceResource> lookup = new Callable<DataSourceResource>( ) {
+
+				@Override
+				public DataSourceResource call() throws Exception {
+					return registry.getResource( "testClient" );
+				}
+			};
+
+			Future<DataSourceResource> first = executor.submit( lookup );
+
+			creationStarted.await( );
+
+			Future<DataSourceResource> second = executor.submit( lookup );
+
+			creationAllowed.countDown( );
+
+			assertSame( resource, first.get( ) );
+			assertSame( resource, second.get( ) );
+		} finally {
+			executor.shutdownNow( );
+		}
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedDataSourceAboveLimit() throws InterruptedException {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+		registry.setMaxOpenDataSources( 2 );
+
+		DataSourceResource first = newResource( );
+		DataSourceResource second = newResource( );
+		DataSourceResource third = newResource( );
+		DataSourceResource recreated = newResource( );
+
+		expect( dataSourceFactory.getDataSource( "first" ) ).andReturn( first );
+		expect( dataSourceFactory.getDataSource( "second" ) ).andReturn( second );
+		expect( dataSourceFactory.getDataSource( "third" ) ).andReturn( third );
+		expect( dataSourceFactory.getDataSource( "first" ) ).andReturn( recreated );
+
+		replay( dataSourceFactory );
+
+		registry.getResource( "first" );
+		Thread.sleep( 5 );
+		registry.getResource( "second" );
+		Thread.sleep( 5 );
+		registry.getResource( "third" );
+
+		assertEquals( 2, registry.size( ) );
+		assertNull( first.getDataSource( ) );
+		assertNotNull( second.getDataSource( ) );
+
+		assertSame( recreated, registry.getResource( "first" ) );
+
+		verify( dataSourceFactory );
+
+		TenantDataSourceStatistics statistics = registry.getStatistics( );
+
+		assertEquals( 0, statistics.getHits( ) );
+		assertEquals( 4, statistics.getMisses( ) );
+		assertEquals( 2, statistics.getEvictions( ) );
+		assertEquals( 1, statistics.getRecreations( ) );
+	}
+
+	@Test
+	public void shouldEvictIdleDataSources() throws InterruptedException {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+		registry.setIdleTimeoutMillis( 1 );
+
+		DataSourceResource resource = newResource( );
+
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( resource );
+
+		replay( dataSourceFactory );
+
+		registry.getResource( "testClient" );
+
+		Thread.sleep( 5 );
+
+		registry.evictIdle( );
+
+		assertEquals( 0, registry.size( ) );
+		assertNull( resource.getDataSource( ) );
+
+		verify( dataSourceFactory );
+	}
+
+	@Test
+	public void shouldNotEvictDataSourcesHeldByConversations() throws InterruptedException {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+		registry.setIdleTimeoutMillis( 1 );
+		registry.setMaxOpenDataSources( 1 );
+
+		DataSourceResource held = newResource( );
+		DataSourceResource other = newResource( );
+
+		expect( dataSourceFactory.getDataSource( "held" ) ).andReturn( held );
+		expect( dataSourceFactory.getDataSource( "other" ) ).andReturn( other );
+
+		replay( dataSourceFactory );
+
+		registry.getResource( "held" ).acquire( );
+
+		Thread.sleep( 5 );
+
+		registry.evictIdle( );
+
+		assertEquals( 1, registry.size( ) );
+		assertNotNull( held.getDataSource( ) );
+
+		// the limit cannot make room either
+		registry.getResource( "other" );
+
+		assertSame( held, registry.getResource( "held" ) );
+		assertNotNull( held.getDataSource( ) );
+
+		verify( dataSourceFactory );
+	}
+
+	@Test
+	public void shouldNotEvictDataSourcesInUse() throws InterruptedException {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+		registry.setIdleTimeoutMillis( 1 );
+
+		DataSourceResource resource = newResource( );
+		DataSourceResource recreated = newResource( );
+
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( resource );
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( recreated );
+
+		replay( dataSourceFactory );
+
+		assertSame( resource, registry.useResource( "testClient" ) );
+
+		Thread.sleep( 5 );
+
+		// looked up, but not yet borrowed from
+		registry.evictIdle( );
+
+		assertNotNull( resource.getDataSource( ) );
+
+		resource.endUse( );
+
+		Thread.sleep( 5 );
+
+		registry.evictIdle( );
+
+		assertNull( resource.getDataSource( ) );
+		assertTrue( resource.isRetired( ) );
+		assertFalse( resource.tryUse( ) );
+
+		assertSame( recreated, registry.useResource( "testClient" ) );
+
+		verify( dataSourceFactory );
+	}
+
+	@Test
+	public void shouldKeepReleasedDataSourceForTheGracePeriod() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor( );
+
+		try {
+			TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+			registry.setReleaseGracePeriod( 50, scheduler );
+
+			DataSourceResource resource = newResource( );
+
+			expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( resource );
+
+			replay( dataSourceFactory );
+
+			registry.getResource( "testClient" ).acquire( );
+			resource.release( );
+
+			assertEquals( 1, registry.size( ) );
+			assertNotNull( resource.getDataSource( ) );
+
+			// a new conversation within the grace period keeps the pool
+			assertSame( resource, registry.getResource( "testClient" ) );
+			resource.acquire( );
+
+			Thread.sleep( 100 );
+
+			assertEquals( 1, registry.size( ) );
+			assertNotNull( resource.getDataSource( ) );
+
+			resource.release( );
+
+			Thread.sleep( 100 );
+
+			assertEquals( 0, registry.size( ) );
+			assertNull( resource.getDataSource( ) );
+
+			verify( dataSourceFactory );
+		} finally {
+			scheduler.shutdownNow( );
+		}
+	}
+
+	@Test
+	public void shouldRetryReleaseOfDataSourceLendingConnections() throws Exception {
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor( );
+
+		try {
+			TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+			registry.setReleaseGracePeriod( 0, scheduler );
+			registry.setReleaseRetryMillis( 10 );
+
+			org.apache.tomcat.jdbc.pool.DataSource dataSource = new org.apache.tomcat.jdbc.pool.DataSource( );
+			dataSource.setDriverClassName( "org.h2.Driver" );
+			dataSource.setUrl( "jdbc:h2:mem:releaseRetry" );
+
+			DataSourceResource resource = new DataSourceResource( dataSource );
+
+			expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( resource );
+
+			replay( dataSourceFactory );
+
+			registry.getResource( "testClient" ).acquire( );
+
+			Connection connection = dataSource.getConnection( );
+
+			// the conversation ends while the connection is still lent out
+			resource.release( );
+
+			Thread.sleep( 50 );
+
+			assertNotNull( resource.getDataSource( ) );
+
+			connection.close( );
+
+			for ( int i = 0; i < 100 && resource.getDataSource( ) != null; i++ ) {
+				Thread.sleep( 10 );
+			}
+
+			assertNull( resource.getDataSource( ) );
+			assertEquals( 0, registry.size( ) );
+
+			verify( dataSourceFactory );
+		} finally {
+			scheduler.shutdownNow( );
+		}
+	}
+
+	@Test
+	public void shouldReleaseDataSourceWithTheLastConversation() {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+
+		DataSourceResource resource = newResource( );
+
+		expect( dataSourceFactory.getDataSource( "testClient" ) ).andReturn( resource );
+
+		replay( dataSourceFactory );
+
+		registry.getResource( "testClient" ).acquire( );
+		registry.getResource( "testClient" ).acquire( );
+
+		resource.release( );
+
+		assertEquals( 1, resource.getReferenceCount( ) );
+		assertNotNull( resource.getDataSource( ) );
+
+		resource.release( );
+
+		assertEquals( 0, registry.size( ) );
+		assertNull( resource.getDataSource( ) );
+
+		verify( dataSourceFactory );
+	}
+
+	@Test
+	public void shouldIgnoreUnmatchedRelease() {
+		final List<DataSourceResource> unreferenced = new ArrayList<DataSourceResource>( );
+
+		DataSourceResource resource = newResource( );
+		resource.setReleaseListener( new DataSourceResource.ReleaseListener( ) {
+
+			@Override
+			public void unreferenced( DataSourceResource resource ) {
+				unreferenced.add( resource );
+			}
+		} );
+
+		resource.acquire( );
+		resource.release( );
+		resource.release( );
+
+		assertEquals( 0, resource.getReferenceCount( ) );
+		assertEquals( 1, unreferenced.size( ) );
+	}
+
+	@Test
+	public void shouldReleaseAllDataSourcesOnTheGivenExecutor() {
+		TenantDataSourceRegistry registry = new TenantDataSourceRegistry( dataSourceFactory );
+
+		DataSourceResource first = newResource( );
+		DataSourceResource second = newResource( );
+		final List<Runnable> releases = new ArrayList<>( );
+
+		expect( dataSourceFactory.getDataSource( "first" ) ).andReturn( first );
+		expect( dataSourceFactory.getDataSource( "second" ) ).andReturn( second );
+
+		replay( dataSourceFactory );
+
+		registry.getResource( "first" );
+		registry.getResource( "second" );
+
+		registry.releaseAll( new Executor( ) {
+
+			@Override
+			public void execute( Runnable command ) {
+				releases.add( command );
+			}
+		} );
+
+		// removed right away, closed by the executor
+		assertEquals( 0, registry.size( ) );
+		assertEquals( 2, releases.size( ) );
+		assertNotNull( first.getDataSource( ) );
+
+		for ( Runnable release : releases ) {
+			release.run( );
+		}
+
+		assertNull( first.getDataSource( ) );
+		assertNull( second.getDataSource( ) );
+		assertEquals( 2, registry.getStatistics( ).getCloses( ) );
+
+		verify( dataSourceFactory );
+	}
+
+	private DataSourceResource newResource() {
+		return new DataSourceResource( new org.apache.tomcat.jdbc.pool.DataSource( ) );
+	}
+
+}
@@ -17,12 +17,14 @@
 package org.horizontaldb.shard.hibernate.advise;
 
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.easymock.EasyMock;
 import org.horizontaldb.shard.ShardContext;
+import org.horizontaldb.shard.StandardDataSourceType;
 import org.horizontaldb.shard.hibernate.TenantContext;
 import org.junit.After;
 import org.junit.Before;
@@ -52,6 +54,9 @@ public class TenantContextEnricherAspectTest {
 
 		expect( pjp.proceed( ) ).andReturn( null );
 		tenantContext.setCurrentTenantId( "testClient" );
+		expect( tenantContext.isReadOnly( ) ).andReturn( false );
+		tenantContext.setReadOnly( false );
+		expectLastCall( ).times( 2 );
 		tenantContext.setCurrentTenantId( null );
 
 		replay( tenantContext, pjp );
@@ -76,6 +81,9 @@ public class TenantContextEnricherAspectTest {
 		tenantContext.setCurrentTenantId( null );
 		tenantContext.setCurrentTenantId( "testClient" );
 		tenantContext.setCurrentTenantId( null );
+		expect( tenantContext.isReadOnly( ) ).andReturn( false ).times( 3 );
+		tenantContext.setReadOnly( false );
+		expectLastCall( ).times( 6 );
 
 		replay( tenantContext, pjp );
 
@@ -96,6 +104,54 @@ public class TenantContextEnricherAspectTest {
 
 		expect( pjp.proceed( ) ).andThrow( new IllegalStateException( ) );
 		tenantContext.setCurrentTenantId( "testClient" );
+		expect( tenantContext.isReadOnly( ) ).andReturn( false );
+		tenantContext.setReadOnly( false );
+		expectLastCall( ).times( 2 );
+		tenantContext.setCurrentTenantId( null );
+
+		replay( tenantContext, pjp );
+
+		enricher.populateTenantContext( pjp, transactional, shardContext );
+
+		verify( tenantContext, pjp );
+	}
+
+	@Test
+	public void shouldFlagReadOnlyTransactions() throws Throwable {
+		TenantContextEnricherAspect enricher = new TenantContextEnricherAspect( tenantContext );
+
+		ShardContext shardContext = new ShardContext( "testClient" );
+		Transactional transactional = EasyMock.createMock( Transactional.class );
+		ProceedingJoinPoint pjp = EasyMock.createMock( ProceedingJoinPoint.class );
+
+		expect( transactional.readOnly( ) ).andReturn( true );
+		expect( pjp.proceed( ) ).andReturn( null );
+		tenantContext.setCurrentTenantId( "testClient" );
+		expect( tenantContext.isReadOnly( ) ).andReturn( false );
+		tenantContext.setReadOnly( true );
+		tenantContext.setReadOnly( false );
+		tenantContext.setCurrentTenantId( null );
+
+		replay( tenantContext, pjp, transactional );
+
+		enricher.populateTenantContext( pjp, transactional, shardContext );
+
+		verify( tenantContext, pjp, transactional );
+	}
+
+	@Test
+	public void shouldFlagReplicaDataSourceType() throws Throwable {
+		TenantContextEnricherAspect enricher = new TenantContextEnricherAspect( tenantContext );
+
+		ShardContext shardContext = new ShardContext( "testClient", StandardDataSourceType.REPLICA );
+		Transactional transactional = null;
+		ProceedingJoinPoint pjp = EasyMock.createMock( ProceedingJoinPoint.class );
+
+		expect( pjp.proceed( ) ).andReturn( null );
+		tenantContext.setCurrentTenantId( "testClient" );
+		expect( tenantContext.isReadOnly( ) ).andReturn( false );
+		tenantContext.setReadOnly( true );
+		tenantContext.setReadOnly( false );
 		tenantContext.setCurrentTenantId( null );
 
 		replay( tenantContext, pjp );
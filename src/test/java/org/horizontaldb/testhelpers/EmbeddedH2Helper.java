@@ -42,6 +42,11 @@ public abstract class EmbeddedH2Helper {
 	@AfterClass
 	public static void stopEmbeddedH2Server() {
 		server.stop( );
+
+		// the next test class primes the databases again
+		for ( TestUser user : TestUser.values( ) ) {
+			new File( BASE_DIR + user + ".mv.db" ).delete( );
+		}
 	}
 
 	private static void primeDatabaseAndTablesForTestUsers() throws SQLException {
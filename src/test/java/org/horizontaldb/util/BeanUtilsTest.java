@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 David Lukacs
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.horizontaldb.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.springframework.aop.TargetSource;
+import org.springframework.aop.framework.ProxyFactory;
+
+public class BeanUtilsTest {
+
+	@Test
+	public void shouldAskStaticTargetSourceOnlyOnce() {
+		Service target = new ServiceImpl( );
+		CountingTargetSource targetSource = new CountingTargetSource( target, true );
+
+		BeanUtils beanUtils = new BeanUtils( );
+		Object proxy = newProxy( targetSource );
+
+		assertSame( target, beanUtils.unpackDynamicProxy( proxy ) );
+		assertSame( target, beanUtils.unpackDynamicProxy( proxy ) );
+
+		assertEquals( 1, targetSource.calls );
+	}
+
+	@Test
+	public void shouldAskOtherTargetSourcesOnEveryCall() {
+		CountingTargetSource targetSource = new CountingTargetSource( new ServiceImpl( ), false );
+
+		BeanUtils beanUtils = new BeanUtils( );
+		Object proxy = newProxy( targetSource );
+
+		beanUtils.unpackDynamicProxy( proxy );
+		beanUtils.unpackDynamicProxy( proxy );
+
+		assertEquals( 2, targetSource.calls );
+	}
+
+	@Test
+	public void shouldKeepTargetsPerProxyInstance() {
+		Service first = new ServiceImpl( );
+		Service second = new ServiceImpl( );
+
+		BeanUtils beanUtils = new BeanUtils( );
+		Object firstProxy = newProxy( new CountingTargetSource( first, true ) );
+		Object secondProxy = newProxy( new CountingTargetSource( second, true ) );
+
+		assertSame( first, beanUtils.unpackDynamicProxy( firstProxy ) );
+		assertSame( second, beanUtils.unpackDynamicProxy( secondProxy ) );
+		assertSame( first, beanUtils.unpackDynamicProxy( firstProxy ) );
+
+		// not a proxy
+		assertSame( first, beanUtils.unpackDynamicProxy( first ) );
+	}
+
+	private Object newProxy( TargetSource targetSource ) {
+		ProxyFactory proxyFactory = new ProxyFactory( );
+		proxyFactory.setInterfaces( Service.class );
+		proxyFactory.setTargetSource( targetSource );
+
+		return proxyFactory.getProxy( );
+	}
+
+	public interface Service {
+	}
+
+	private static class ServiceImpl implements Service {
+	}
+
+	private static class CountingTargetSource implements TargetSource {
+		private final Object target;
+		private final boolean isStatic;
+		private int calls;
+
+		public CountingTargetSource( Object target, boolean isStatic ) {
+			this.target = target;
+			this.isStatic = isStatic;
+		}
+
+		@Override
+		public Class<?> getTargetClass() {
+			return target.getClass( );
+		}
+
+		@Override
+		public boolean isStatic() {
+			return isStatic;
+		}
+
+		@Override
+		public Object getTarget() {
+			calls++;
+
+			return target;
+		}
+
+		@Override
+		public void releaseTarget( Object target ) {
+		}
+	}
+
+}